@@ -27,6 +27,10 @@ public class TransactionXid implements Xid, Serializable {
      * 分支事务编号
      */
     private byte[] branchQualifier;
+    /**
+     * 存储键缓存，不参与序列化
+     */
+    private transient volatile byte[] storeKey;
 
     public TransactionXid() {
         globalTransactionId = uuidToByteArray(UUID.randomUUID());
@@ -58,6 +62,25 @@ public class TransactionXid implements Xid, Serializable {
         this.branchQualifier = branchQualifier;
     }
 
+    /**
+     * 存储用的紧凑键：全局事务编号与分支事务编号的原始字节拼接
+     */
+    public static byte[] toStoreKey(Xid xid) {
+
+        if (xid instanceof TransactionXid) {
+            return ((TransactionXid) xid).toStoreKey();
+        }
+
+        return concat(xid.getGlobalTransactionId(), xid.getBranchQualifier());
+    }
+
+    private static byte[] concat(byte[] globalTransactionId, byte[] branchQualifier) {
+        byte[] key = new byte[globalTransactionId.length + branchQualifier.length];
+        System.arraycopy(globalTransactionId, 0, key, 0, globalTransactionId.length);
+        System.arraycopy(branchQualifier, 0, key, globalTransactionId.length, branchQualifier.length);
+        return key;
+    }
+
     private static byte[] uuidToByteArray(UUID uuid) {
         ByteBuffer bb = ByteBuffer.wrap(new byte[16]);
         bb.putLong(uuid.getMostSignificantBits());
@@ -84,6 +107,7 @@ public class TransactionXid implements Xid, Serializable {
 
     public void setGlobalTransactionId(byte[] globalTransactionId) {
         this.globalTransactionId = globalTransactionId;
+        this.storeKey = null;
     }
 
     @Override
@@ -93,6 +117,22 @@ public class TransactionXid implements Xid, Serializable {
 
     public void setBranchQualifier(byte[] branchQualifier) {
         this.branchQualifier = branchQualifier;
+        this.storeKey = null;
+    }
+
+    /**
+     * 首次使用时计算并缓存，返回的数组不可修改
+     */
+    public byte[] toStoreKey() {
+
+        byte[] key = storeKey;
+
+        if (key == null) {
+            key = concat(globalTransactionId, branchQualifier);
+            storeKey = key;
+        }
+
+        return key;
     }
 
     @Override
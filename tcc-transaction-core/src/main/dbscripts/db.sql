@@ -15,3 +15,7 @@ CREATE TABLE `TCC_TRANSACTION` (
 ) ENGINE=InnoDB AUTO_INCREMENT=1 DEFAULT CHARSET=utf8;
 
 ALTER TABLE `TCC_TRANSACTION` ADD `IS_DELETE` tinyint(1) DEFAULT 0 NOT NULL;
+
+ALTER TABLE `TCC_TRANSACTION` ADD `NEXT_RETRY_TIME` datetime DEFAULT NULL;
+
+CREATE TABLE `TCC_TRANSACTION_DEAD_LETTER` LIKE `TCC_TRANSACTION`;
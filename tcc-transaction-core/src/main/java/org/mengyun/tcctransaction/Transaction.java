@@ -58,6 +58,14 @@ public class Transaction implements Serializable {
      */
     private long version = 0;
     private TransactionXid rootXid;
+    /**
+     * 下次重试时间，恢复失败后按重试次数退避，为空则不退避
+     */
+    private Date nextRetryTime;
+    /**
+     * 设置下次重试时间时的事务恢复间隔（毫秒），恢复按 now - recoverDuration 查询，退避期间的恢复时间需减去它
+     */
+    private long retryRecoverDuration;
 
     public Transaction() {
 
@@ -191,6 +199,26 @@ public class Transaction implements Serializable {
         return createTime;
     }
 
+    public Date getNextRetryTime() {
+        return nextRetryTime;
+    }
+
+    public void setNextRetryTime(Date nextRetryTime, long retryRecoverDuration) {
+        this.nextRetryTime = nextRetryTime;
+        this.retryRecoverDuration = retryRecoverDuration;
+    }
+
+    /**
+     * 恢复时与 now - recoverDuration 比较的时间：未退避时为最后更新时间；
+     * 退避期间为下次重试时间减去 recoverDuration，即到达下次重试时间即可恢复，不再额外等待 recoverDuration
+     */
+    public Date getRecoveryTime() {
+        if (nextRetryTime != null) {
+            return new Date(nextRetryTime.getTime() - retryRecoverDuration);
+        }
+        return lastUpdateTime;
+    }
+
     public void updateTime() {
         this.lastUpdateTime = new Date();
     }
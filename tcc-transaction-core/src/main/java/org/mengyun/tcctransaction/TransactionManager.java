@@ -4,6 +4,7 @@ import org.mengyun.tcctransaction.api.TransactionContext;
 import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.common.TransactionType;
 import org.mengyun.tcctransaction.repository.TransactionRepository;
+import org.mengyun.tcctransaction.repository.helper.TransactionRepositoryHelper;
 import org.slf4j.LoggerFactory;
 
 import java.util.Deque;
@@ -95,7 +96,7 @@ public class TransactionManager {
      */
     public Transaction propagationExistBegin(TransactionContext transactionContext) throws NoExistedTransactionException {
         // 查询事务
-        Transaction transaction = transactionRepository.findByXid(transactionContext.getXid());
+        Transaction transaction = TransactionRepositoryHelper.findByXid(transactionRepository, transactionContext.getXid());
 
         if (transaction != null) {
             registerTransaction(transaction);
@@ -115,9 +116,9 @@ public class TransactionManager {
 
         if (transaction.getVersion() == 0l) {
             // transaction.getVersion() is zero which means never persistent before, need call create to persistent.
-            transactionRepository.create(transaction);
+            TransactionRepositoryHelper.create(transactionRepository, transaction);
         } else {
-            transactionRepository.update(transaction);
+            TransactionRepositoryHelper.update(transactionRepository, transaction);
         }
     }
 
@@ -127,7 +128,7 @@ public class TransactionManager {
         // 设置事务状态为confirm
         transaction.changeStatus(TransactionStatus.CONFIRMING);
         // 更新事务
-        transactionRepository.update(transaction);
+        TransactionRepositoryHelper.update(transactionRepository, transaction);
 
         if (asyncCommit) {
             try {
@@ -157,7 +158,7 @@ public class TransactionManager {
         // 设置事务状态为 CANCELLING
         transaction.changeStatus(TransactionStatus.CANCELLING);
         // 更新事务记录
-        transactionRepository.update(transaction);
+        TransactionRepositoryHelper.update(transactionRepository, transaction);
 
         if (asyncRollback) {
             // 是否是异步操作
@@ -188,15 +189,11 @@ public class TransactionManager {
             // 提交事务
             transaction.commit();
             // 删除事务记录
-            transactionRepository.delete(transaction);
+            TransactionRepositoryHelper.delete(transactionRepository, transaction);
         } catch (Throwable commitException) {
 
             //try save updated transaction
-            try {
-                transactionRepository.update(transaction);
-            } catch (Exception e) {
-                //ignore any exception here
-            }
+            TransactionRepositoryHelper.updateQuietly(transactionRepository, transaction);
 
             logger.warn("compensable transaction confirm failed, recovery job will try to confirm later.", commitException);
             throw new ConfirmingException(commitException);
@@ -208,15 +205,11 @@ public class TransactionManager {
             // 事务回滚
             transaction.rollback();
             // 删除事务记录
-            transactionRepository.delete(transaction);
+            TransactionRepositoryHelper.delete(transactionRepository, transaction);
         } catch (Throwable rollbackException) {
 
             //try save updated transaction
-            try {
-                transactionRepository.update(transaction);
-            } catch (Exception e) {
-                //ignore any exception here
-            }
+            TransactionRepositoryHelper.updateQuietly(transactionRepository, transaction);
             
             logger.warn("compensable transaction rollback failed, recovery job will try to rollback later.", rollbackException);
             throw new CancellingException(rollbackException);
@@ -284,7 +277,7 @@ public class TransactionManager {
         if (asyncSave) {
             asyncSaveExecutorService.submit(new AsyncSaveTask(transaction));
         } else {
-            transactionRepository.update(transaction);
+            TransactionRepositoryHelper.update(transactionRepository, transaction);
         }
     }
 
@@ -303,10 +296,10 @@ public class TransactionManager {
             try {
                 if (transaction != null && transaction.getStatus().equals(TransactionStatus.TRY_SUCCESS)) {
 
-                    Transaction foundTransaction = transactionRepository.findByXid(transaction.getXid());
+                    Transaction foundTransaction = TransactionRepositoryHelper.findByXid(transactionRepository, transaction.getXid());
 
                     if (foundTransaction != null && foundTransaction.getStatus().equals(TransactionStatus.TRYING)) {
-                        transactionRepository.update(transaction);
+                        TransactionRepositoryHelper.update(transactionRepository, transaction);
                     }
                 }
             } catch (Exception e) {
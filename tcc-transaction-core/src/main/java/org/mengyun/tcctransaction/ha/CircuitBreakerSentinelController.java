@@ -0,0 +1,344 @@
+package org.mengyun.tcctransaction.ha;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * degrades automatically when the work repository is slow or failing, as a circuit breaker.
+ * <p/>
+ * CLOSED: the latency and the errors of the work repository calls are kept in a rolling window of windowSeconds,
+ * opens once the window has minimumRequests calls and the error rate reaches errorRateThreshold or the latencyPercentile
+ * reaches latencyThresholdMillis.
+ * OPEN: degraded for openDurationMillis, then HALF_OPEN.
+ * HALF_OPEN: the calls go to the work repository again as probes, any failed or slow call opens again,
+ * closes after probeSuccessThreshold successful calls in a row.
+ * <p/>
+ * the overrideSentinelController, e.g. ZookeeperSentinelController, forces the degradation whenever it degrades.
+ */
+public class CircuitBreakerSentinelController implements SentinelController {
+
+    static final Logger log = LoggerFactory.getLogger(CircuitBreakerSentinelController.class.getSimpleName());
+
+    private static final long EVALUATE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    // upper bounds of the latency histogram in micro seconds, 128us * 2^i, the last one is unbounded
+    private static final int HISTOGRAM_SIZE = 18;
+
+    public enum State {
+        CLOSED, OPEN, HALF_OPEN
+    }
+
+    private SentinelController overrideSentinelController;
+
+    private int windowSeconds = 10;
+
+    private int minimumRequests = 20;
+
+    private double errorRateThreshold = 0.5d;
+
+    private double latencyPercentile = 0.99d;
+
+    private long latencyThresholdMillis = 1000;
+
+    private long openDurationMillis = 5000;
+
+    private int probeSuccessThreshold = 10;
+
+    private final AtomicReference<State> state = new AtomicReference<>(State.CLOSED);
+
+    private volatile long openUntilMillis;
+
+    private final AtomicInteger probeSuccesses = new AtomicInteger();
+
+    private volatile long lastEvaluateNanos = System.nanoTime();
+
+    private volatile Bucket[] buckets;
+
+    // of the last evaluated window with minimumRequests calls
+    private volatile long latencyPercentileNanos = -1;
+
+    @Override
+    public boolean degrade() {
+
+        if (overrideSentinelController != null && overrideSentinelController.degrade()) {
+            return true;
+        }
+
+        State current = state.get();
+
+        if (current == State.OPEN) {
+
+            if (System.currentTimeMillis() < openUntilMillis) {
+                return true;
+            }
+
+            if (state.compareAndSet(State.OPEN, State.HALF_OPEN)) {
+                probeSuccesses.set(0);
+                log.info("work repository is probed again.");
+            }
+        }
+
+        return false;
+    }
+
+    @Override
+    public void recordSuccess(long latencyNanos) {
+
+        if (state.get() == State.HALF_OPEN) {
+
+            if (TimeUnit.NANOSECONDS.toMillis(latencyNanos) >= latencyThresholdMillis) {
+                open(State.HALF_OPEN, "probe is slow");
+            } else if (probeSuccesses.incrementAndGet() >= probeSuccessThreshold && state.compareAndSet(State.HALF_OPEN, State.CLOSED)) {
+                buckets = null;
+                log.info("work repository is recovered, degradation closed.");
+            }
+            return;
+        }
+
+        record(latencyNanos, false);
+    }
+
+    @Override
+    public void recordFailure(long latencyNanos, Throwable throwable) {
+
+        if (state.get() == State.HALF_OPEN) {
+            open(State.HALF_OPEN, "probe failed: " + throwable);
+            return;
+        }
+
+        record(latencyNanos, true);
+    }
+
+    @Override
+    public long getLatencyPercentileNanos() {
+        return latencyPercentileNanos;
+    }
+
+    public State getState() {
+        return state.get();
+    }
+
+    private void record(long latencyNanos, boolean error) {
+
+        if (state.get() != State.CLOSED) {
+            return;
+        }
+
+        getBucket(System.currentTimeMillis() / 1000).record(latencyNanos, error);
+
+        long now = System.nanoTime();
+        if (now - lastEvaluateNanos >= EVALUATE_INTERVAL_NANOS) {
+            lastEvaluateNanos = now;
+            evaluate();
+        }
+    }
+
+    private void evaluate() {
+
+        long currentSecond = System.currentTimeMillis() / 1000;
+
+        long count = 0;
+        long errors = 0;
+        long[] histogram = new long[HISTOGRAM_SIZE];
+
+        for (Bucket bucket : getBuckets()) {
+
+            if (currentSecond - bucket.second >= windowSeconds) {
+                continue;
+            }
+
+            count += bucket.count.sum();
+            errors += bucket.errors.sum();
+            for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+                histogram[i] += bucket.histogram.get(i);
+            }
+        }
+
+        if (count < minimumRequests) {
+            return;
+        }
+
+        double errorRate = (double) errors / count;
+
+        if (errorRate >= errorRateThreshold) {
+            open(State.CLOSED, String.format("error rate %.2f of %d calls", errorRate, count));
+            return;
+        }
+
+        long percentileNanos = percentileNanos(histogram, count);
+        latencyPercentileNanos = percentileNanos;
+
+        long percentileMillis = TimeUnit.NANOSECONDS.toMillis(percentileNanos);
+
+        if (percentileMillis >= latencyThresholdMillis) {
+            open(State.CLOSED, String.format("p%s latency %dms of %d calls", latencyPercentile * 100, percentileMillis, count));
+        }
+    }
+
+    private void open(State from, String reason) {
+        if (state.compareAndSet(from, State.OPEN)) {
+            openUntilMillis = System.currentTimeMillis() + openDurationMillis;
+            log.warn(String.format("work repository degraded for %dms, %s", openDurationMillis, reason));
+        }
+    }
+
+    /*
+     * the upper bound of the histogram bucket the percentile falls in.
+     * */
+    private long percentileNanos(long[] histogram, long count) {
+
+        long rank = (long) Math.ceil(count * latencyPercentile);
+        long seen = 0;
+
+        for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+            seen += histogram[i];
+            if (seen >= rank) {
+                return i == HISTOGRAM_SIZE - 1 ? Long.MAX_VALUE : TimeUnit.MICROSECONDS.toNanos(128L << i);
+            }
+        }
+        return 0;
+    }
+
+    private static int histogramIndex(long latencyNanos) {
+
+        long micros = TimeUnit.NANOSECONDS.toMicros(latencyNanos);
+
+        for (int i = 0; i < HISTOGRAM_SIZE - 1; i++) {
+            if (micros <= (128L << i)) {
+                return i;
+            }
+        }
+        return HISTOGRAM_SIZE - 1;
+    }
+
+    private Bucket getBucket(long second) {
+
+        Bucket bucket = getBuckets()[(int) (second % windowSeconds)];
+
+        if (bucket.second != second) {
+            synchronized (bucket) {
+                if (bucket.second != second) {
+                    bucket.reset(second);
+                }
+            }
+        }
+        return bucket;
+    }
+
+    private Bucket[] getBuckets() {
+
+        Bucket[] current = buckets;
+
+        if (current == null) {
+            synchronized (this) {
+                current = buckets;
+                if (current == null) {
+                    current = new Bucket[windowSeconds];
+                    for (int i = 0; i < windowSeconds; i++) {
+                        current[i] = new Bucket();
+                    }
+                    buckets = current;
+                }
+            }
+        }
+        return current;
+    }
+
+    public SentinelController getOverrideSentinelController() {
+        return overrideSentinelController;
+    }
+
+    public void setOverrideSentinelController(SentinelController overrideSentinelController) {
+        this.overrideSentinelController = overrideSentinelController;
+    }
+
+    public int getWindowSeconds() {
+        return windowSeconds;
+    }
+
+    public void setWindowSeconds(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+    }
+
+    public int getMinimumRequests() {
+        return minimumRequests;
+    }
+
+    public void setMinimumRequests(int minimumRequests) {
+        this.minimumRequests = minimumRequests;
+    }
+
+    public double getErrorRateThreshold() {
+        return errorRateThreshold;
+    }
+
+    public void setErrorRateThreshold(double errorRateThreshold) {
+        this.errorRateThreshold = errorRateThreshold;
+    }
+
+    public double getLatencyPercentile() {
+        return latencyPercentile;
+    }
+
+    public void setLatencyPercentile(double latencyPercentile) {
+        this.latencyPercentile = latencyPercentile;
+    }
+
+    public long getLatencyThresholdMillis() {
+        return latencyThresholdMillis;
+    }
+
+    public void setLatencyThresholdMillis(long latencyThresholdMillis) {
+        this.latencyThresholdMillis = latencyThresholdMillis;
+    }
+
+    public long getOpenDurationMillis() {
+        return openDurationMillis;
+    }
+
+    public void setOpenDurationMillis(long openDurationMillis) {
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    public int getProbeSuccessThreshold() {
+        return probeSuccessThreshold;
+    }
+
+    public void setProbeSuccessThreshold(int probeSuccessThreshold) {
+        this.probeSuccessThreshold = probeSuccessThreshold;
+    }
+
+    private static class Bucket {
+
+        private volatile long second = -1;
+
+        private final LongAdder count = new LongAdder();
+
+        private final LongAdder errors = new LongAdder();
+
+        private final AtomicLongArray histogram = new AtomicLongArray(HISTOGRAM_SIZE);
+
+        private void record(long latencyNanos, boolean error) {
+            count.increment();
+            if (error) {
+                errors.increment();
+            }
+            histogram.incrementAndGet(histogramIndex(latencyNanos));
+        }
+
+        private void reset(long second) {
+            count.reset();
+            errors.reset();
+            for (int i = 0; i < HISTOGRAM_SIZE; i++) {
+                histogram.set(i, 0);
+            }
+            this.second = second;
+        }
+    }
+}
@@ -6,4 +6,24 @@ public interface SentinelController {
         return false;
     }
 
+    /**
+     * called by SentinelTransactionRepository after a call of the work repository succeeds.
+     */
+    default void recordSuccess(long latencyNanos) {
+
+    }
+
+    /**
+     * called by SentinelTransactionRepository after a call of the work repository throws.
+     */
+    default void recordFailure(long latencyNanos, Throwable throwable) {
+
+    }
+
+    /**
+     * a high percentile, e.g. p99, of the latency of the recent work repository calls, -1 if unknown.
+     */
+    default long getLatencyPercentileNanos() {
+        return -1;
+    }
 }
@@ -0,0 +1,98 @@
+package org.mengyun.tcctransaction.recovery;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.xa.Xid;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+/**
+ * the xids are hashed on a ring of the live members with virtualNodes points each, a member owns the xids hashed
+ * up to its points. a joining or leaving member only moves the xids next to its points.
+ * <p/>
+ * the members are set by setMembers, e.g. by ZookeeperRecoveryPartitioner. while the members are unknown or empty, the recovery
+ * is not partitioned and falls back to the RecoveryLock, so only the lock holder recovers, none is owned if the ring empties during a recovery.
+ * while the local member is not in the members yet, none is owned. two members may recover the same transaction while the ring changes,
+ * only one passes the version check of the update.
+ * <p/>
+ * the ownership is checked on the transactions fetched by the recovery scan, every member still reads all the stale transactions
+ * of the domain, so the store reads of a recovery round grow with the number of members, while the recovery calls do not.
+ */
+public class ConsistentHashRecoveryPartitioner implements RecoveryPartitioner {
+
+    static final Logger log = LoggerFactory.getLogger(ConsistentHashRecoveryPartitioner.class.getSimpleName());
+
+    private static final HashFunction HASH_FUNCTION = Hashing.murmur3_128();
+
+    private String localMember = ManagementFactory.getRuntimeMXBean().getName();
+
+    private int virtualNodes = 128;
+
+    private volatile NavigableMap<Long, String> ring = Collections.emptyNavigableMap();
+
+    @Override
+    public boolean isPartitioned() {
+        return !ring.isEmpty();
+    }
+
+    @Override
+    public boolean isOwner(Xid xid) {
+
+        NavigableMap<Long, String> current = ring;
+
+        if (current.isEmpty()) {
+            return false;
+        }
+
+        long hash = HASH_FUNCTION.hashBytes(TransactionXid.toStoreKey(xid)).asLong();
+
+        Map.Entry<Long, String> entry = current.ceilingEntry(hash);
+
+        if (entry == null) {
+            entry = current.firstEntry();
+        }
+
+        return entry.getValue().equals(localMember);
+    }
+
+    public void setMembers(Collection<String> members) {
+
+        NavigableMap<Long, String> newRing = new TreeMap<>();
+
+        for (String member : new TreeSet<>(members)) {
+            for (int i = 0; i < virtualNodes; i++) {
+                newRing.put(HASH_FUNCTION.hashString(member + "#" + i, StandardCharsets.UTF_8).asLong(), member);
+            }
+        }
+
+        ring = newRing;
+
+        log.info(String.format("recovery members changed, %d members:%s, local member:%s", members.size(), members, localMember));
+    }
+
+    public String getLocalMember() {
+        return localMember;
+    }
+
+    public void setLocalMember(String localMember) {
+        this.localMember = localMember;
+    }
+
+    public int getVirtualNodes() {
+        return virtualNodes;
+    }
+
+    public void setVirtualNodes(int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+}
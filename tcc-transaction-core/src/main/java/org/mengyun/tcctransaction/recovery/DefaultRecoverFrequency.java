@@ -20,6 +20,24 @@ public class DefaultRecoverFrequency implements RecoverFrequency {
 
     private int concurrentRecoveryThreadCount = Runtime.getRuntime().availableProcessors() * 2;
 
+    private int retryBackoffSeconds = 0;
+
+    private int maxRetryBackoffSeconds = 3600;
+
+    private double retryBackoffJitter = 0.2d;
+
+    private int recoveryTimeoutSeconds = 60;
+
+    private boolean adaptiveConcurrencyEnabled = false;
+
+    private int minConcurrentRecoveryThreadCount = 1;
+
+    private int recoveryLatencyThresholdMillis = 1000;
+
+    private double recoveryErrorRateThreshold = 0.2d;
+
+    private boolean deadLetterEnabled = false;
+
     @Override
     public int getMaxRetryCount() {
         return maxRetryCount;
@@ -63,4 +81,85 @@ public class DefaultRecoverFrequency implements RecoverFrequency {
     public void setFetchPageSize(int fetchPageSize) {
         this.fetchPageSize = fetchPageSize;
     }
-}
\ No newline at end of file
+
+    @Override
+    public int getRetryBackoffSeconds() {
+        return retryBackoffSeconds;
+    }
+
+    public void setRetryBackoffSeconds(int retryBackoffSeconds) {
+        this.retryBackoffSeconds = retryBackoffSeconds;
+    }
+
+    @Override
+    public int getMaxRetryBackoffSeconds() {
+        return maxRetryBackoffSeconds;
+    }
+
+    public void setMaxRetryBackoffSeconds(int maxRetryBackoffSeconds) {
+        this.maxRetryBackoffSeconds = maxRetryBackoffSeconds;
+    }
+
+    @Override
+    public double getRetryBackoffJitter() {
+        return retryBackoffJitter;
+    }
+
+    public void setRetryBackoffJitter(double retryBackoffJitter) {
+        this.retryBackoffJitter = retryBackoffJitter;
+    }
+
+    @Override
+    public int getRecoveryTimeoutSeconds() {
+        return recoveryTimeoutSeconds;
+    }
+
+    public void setRecoveryTimeoutSeconds(int recoveryTimeoutSeconds) {
+        this.recoveryTimeoutSeconds = recoveryTimeoutSeconds;
+    }
+
+    @Override
+    public boolean isAdaptiveConcurrencyEnabled() {
+        return adaptiveConcurrencyEnabled;
+    }
+
+    public void setAdaptiveConcurrencyEnabled(boolean adaptiveConcurrencyEnabled) {
+        this.adaptiveConcurrencyEnabled = adaptiveConcurrencyEnabled;
+    }
+
+    @Override
+    public int getMinConcurrentRecoveryThreadCount() {
+        return minConcurrentRecoveryThreadCount;
+    }
+
+    public void setMinConcurrentRecoveryThreadCount(int minConcurrentRecoveryThreadCount) {
+        this.minConcurrentRecoveryThreadCount = minConcurrentRecoveryThreadCount;
+    }
+
+    @Override
+    public int getRecoveryLatencyThresholdMillis() {
+        return recoveryLatencyThresholdMillis;
+    }
+
+    public void setRecoveryLatencyThresholdMillis(int recoveryLatencyThresholdMillis) {
+        this.recoveryLatencyThresholdMillis = recoveryLatencyThresholdMillis;
+    }
+
+    @Override
+    public double getRecoveryErrorRateThreshold() {
+        return recoveryErrorRateThreshold;
+    }
+
+    public void setRecoveryErrorRateThreshold(double recoveryErrorRateThreshold) {
+        this.recoveryErrorRateThreshold = recoveryErrorRateThreshold;
+    }
+
+    @Override
+    public boolean isDeadLetterEnabled() {
+        return deadLetterEnabled;
+    }
+
+    public void setDeadLetterEnabled(boolean deadLetterEnabled) {
+        this.deadLetterEnabled = deadLetterEnabled;
+    }
+}
@@ -0,0 +1,193 @@
+package org.mengyun.tcctransaction.recovery;
+
+import com.google.common.util.concurrent.RateLimiter;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.SystemException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * limits the confirm and cancel calls of the recovery per participant target, so a recovered downstream service
+ * is not flooded by the backlog.
+ * <p/>
+ * the target is the class declaring the compensable method, the service interface for the dubbo participants,
+ * or the class and the method name with keyByMethod. each target has a token bucket of permitsPerSecond and at most
+ * maxConcurrency calls in flight, overridden per target by targetPermitsPerSecond and targetMaxConcurrency keyed by the target
+ * or the class name, 0 means unlimited. a call not permitted within acquireTimeoutMillis fails and is retried by the next recovery.
+ */
+public class ParticipantRateLimiter {
+
+    private double permitsPerSecond = 0;
+
+    private int maxConcurrency = 0;
+
+    private Map<String, Double> targetPermitsPerSecond = new HashMap<>();
+
+    private Map<String, Integer> targetMaxConcurrency = new HashMap<>();
+
+    private boolean keyByMethod = false;
+
+    private long acquireTimeoutMillis = 10000;
+
+    private final ConcurrentHashMap<String, TargetLimit> targetLimits = new ConcurrentHashMap<>();
+
+    public void invoke(InvocationContext invocationContext, Runnable call) {
+
+        TargetLimit targetLimit = getTargetLimit(invocationContext);
+
+        if (targetLimit.rateLimiter != null && !targetLimit.rateLimiter.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS)) {
+            targetLimit.rejectedCount.incrementAndGet();
+            throw new SystemException(String.format("recovery call of %s is rate limited", targetLimit.target));
+        }
+
+        if (targetLimit.semaphore != null) {
+
+            boolean acquired;
+            try {
+                acquired = targetLimit.semaphore.tryAcquire(acquireTimeoutMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new SystemException(e);
+            }
+
+            if (!acquired) {
+                targetLimit.rejectedCount.incrementAndGet();
+                throw new SystemException(String.format("recovery calls of %s reach max concurrency %d", targetLimit.target, targetLimit.maxConcurrency));
+            }
+        }
+
+        targetLimit.invokedCount.incrementAndGet();
+
+        try {
+            call.run();
+        } finally {
+            if (targetLimit.semaphore != null) {
+                targetLimit.semaphore.release();
+            }
+        }
+    }
+
+    /**
+     * the limits and the counters of the targets called so far.
+     */
+    public Map<String, TargetLimit> getTargetLimits() {
+        return Collections.unmodifiableMap(targetLimits);
+    }
+
+    private TargetLimit getTargetLimit(InvocationContext invocationContext) {
+
+        String className = invocationContext.getTargetClass().getName();
+        String target = keyByMethod ? className + "#" + invocationContext.getMethodName() : className;
+
+        return targetLimits.computeIfAbsent(target, key -> {
+
+            Double permits = targetPermitsPerSecond.containsKey(key) ? targetPermitsPerSecond.get(key) : targetPermitsPerSecond.get(className);
+            Integer concurrency = targetMaxConcurrency.containsKey(key) ? targetMaxConcurrency.get(key) : targetMaxConcurrency.get(className);
+
+            return new TargetLimit(key, permits == null ? permitsPerSecond : permits, concurrency == null ? maxConcurrency : concurrency);
+        });
+    }
+
+    public double getPermitsPerSecond() {
+        return permitsPerSecond;
+    }
+
+    public void setPermitsPerSecond(double permitsPerSecond) {
+        this.permitsPerSecond = permitsPerSecond;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public void setMaxConcurrency(int maxConcurrency) {
+        this.maxConcurrency = maxConcurrency;
+    }
+
+    public Map<String, Double> getTargetPermitsPerSecond() {
+        return targetPermitsPerSecond;
+    }
+
+    public void setTargetPermitsPerSecond(Map<String, Double> targetPermitsPerSecond) {
+        this.targetPermitsPerSecond = targetPermitsPerSecond;
+    }
+
+    public Map<String, Integer> getTargetMaxConcurrency() {
+        return targetMaxConcurrency;
+    }
+
+    public void setTargetMaxConcurrency(Map<String, Integer> targetMaxConcurrency) {
+        this.targetMaxConcurrency = targetMaxConcurrency;
+    }
+
+    public boolean isKeyByMethod() {
+        return keyByMethod;
+    }
+
+    public void setKeyByMethod(boolean keyByMethod) {
+        this.keyByMethod = keyByMethod;
+    }
+
+    public long getAcquireTimeoutMillis() {
+        return acquireTimeoutMillis;
+    }
+
+    public void setAcquireTimeoutMillis(long acquireTimeoutMillis) {
+        this.acquireTimeoutMillis = acquireTimeoutMillis;
+    }
+
+    public static class TargetLimit {
+
+        private final String target;
+
+        private final double permitsPerSecond;
+
+        private final int maxConcurrency;
+
+        private final RateLimiter rateLimiter;
+
+        private final Semaphore semaphore;
+
+        private final AtomicLong invokedCount = new AtomicLong();
+
+        private final AtomicLong rejectedCount = new AtomicLong();
+
+        private TargetLimit(String target, double permitsPerSecond, int maxConcurrency) {
+            this.target = target;
+            this.permitsPerSecond = permitsPerSecond;
+            this.maxConcurrency = maxConcurrency;
+            this.rateLimiter = permitsPerSecond > 0 ? RateLimiter.create(permitsPerSecond) : null;
+            this.semaphore = maxConcurrency > 0 ? new Semaphore(maxConcurrency) : null;
+        }
+
+        public String getTarget() {
+            return target;
+        }
+
+        public double getPermitsPerSecond() {
+            return permitsPerSecond;
+        }
+
+        public int getMaxConcurrency() {
+            return maxConcurrency;
+        }
+
+        public int getInflight() {
+            return semaphore == null ? 0 : maxConcurrency - semaphore.availablePermits();
+        }
+
+        public long getInvokedCount() {
+            return invokedCount.get();
+        }
+
+        public long getRejectedCount() {
+            return rejectedCount.get();
+        }
+    }
+}
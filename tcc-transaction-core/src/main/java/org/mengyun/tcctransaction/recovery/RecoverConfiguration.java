@@ -20,6 +20,8 @@ public class RecoverConfiguration implements TransactionConfigurator {
     private TransactionRepository transactionRepository;
     private RecoverFrequency recoverFrequency = DefaultRecoverFrequency.INSTANCE;
     private RecoveryLock recoveryLock = RecoveryLock.DEFAULT_LOCK;
+    private RecoveryPartitioner recoveryPartitioner = RecoveryPartitioner.DEFAULT_PARTITIONER;
+    private ParticipantRateLimiter participantRateLimiter;
 
     private Scheduler scheduler;
 
@@ -93,4 +95,22 @@ public class RecoverConfiguration implements TransactionConfigurator {
     public void setRecoveryLock(RecoveryLock recoveryLock) {
         this.recoveryLock = recoveryLock;
     }
+
+    @Override
+    public RecoveryPartitioner getRecoveryPartitioner() {
+        return recoveryPartitioner;
+    }
+
+    public void setRecoveryPartitioner(RecoveryPartitioner recoveryPartitioner) {
+        this.recoveryPartitioner = recoveryPartitioner;
+    }
+
+    @Override
+    public ParticipantRateLimiter getParticipantRateLimiter() {
+        return participantRateLimiter;
+    }
+
+    public void setParticipantRateLimiter(ParticipantRateLimiter participantRateLimiter) {
+        this.participantRateLimiter = participantRateLimiter;
+    }
 }
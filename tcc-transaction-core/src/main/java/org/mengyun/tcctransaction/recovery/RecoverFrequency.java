@@ -26,4 +26,72 @@ public interface RecoverFrequency {
     String getCronExpression();
 
     int getConcurrentRecoveryThreadCount();
+
+    /**
+     * 恢复失败后的退避基数（秒），第 n 次重试后再等待 base * 2^(n-1) 秒才重试，为 0 则不退避
+     * @return
+     */
+    default int getRetryBackoffSeconds() {
+        return 0;
+    }
+
+    /**
+     * 退避时间上限（秒），超过最大重试次数的事务也按该时间退避
+     * @return
+     */
+    default int getMaxRetryBackoffSeconds() {
+        return 3600;
+    }
+
+    /**
+     * 退避时间的随机抖动比例，避免同一批失败的事务同时重试
+     * @return
+     */
+    default double getRetryBackoffJitter() {
+        return 0.2d;
+    }
+
+    /**
+     * 单个事务恢复超时时间（秒），超时后该事务的恢复记为失败，不中断执行线程，不影响其他事务
+     * @return
+     */
+    default int getRecoveryTimeoutSeconds() {
+        return 60;
+    }
+
+    /**
+     * 是否根据恢复的耗时和失败率自适应调整恢复并发数（AIMD），最大为 concurrentRecoveryThreadCount
+     * @return
+     */
+    default boolean isAdaptiveConcurrencyEnabled() {
+        return false;
+    }
+
+    default int getMinConcurrentRecoveryThreadCount() {
+        return 1;
+    }
+
+    /**
+     * 自适应并发时，恢复平均耗时达到该值（毫秒）则并发数减半
+     * @return
+     */
+    default int getRecoveryLatencyThresholdMillis() {
+        return 1000;
+    }
+
+    /**
+     * 自适应并发时，恢复失败（包括超时）比例达到该值则并发数减半
+     * @return
+     */
+    default double getRecoveryErrorRateThreshold() {
+        return 0.2d;
+    }
+
+    /**
+     * 是否将超过最大重试次数的事务移到死信存储（存储支持时），移走后不再被每次恢复查询出来，可在 dashboard 中重放
+     * @return
+     */
+    default boolean isDeadLetterEnabled() {
+        return false;
+    }
 }
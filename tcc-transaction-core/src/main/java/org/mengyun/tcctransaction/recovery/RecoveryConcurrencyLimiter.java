@@ -0,0 +1,108 @@
+package org.mengyun.tcctransaction.recovery;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * limits the concurrent recovering transactions with AIMD.
+ * <p/>
+ * the outcomes are evaluated in windows of limit completions, a window with the error rate (failures and timeouts)
+ * reaching errorRateThreshold or the average latency reaching latencyThresholdMillis halves the limit, down to minLimit,
+ * a healthy window in which the limit was reached increases the limit by one, up to maxLimit.
+ */
+public class RecoveryConcurrencyLimiter {
+
+    static final Logger log = LoggerFactory.getLogger(RecoveryConcurrencyLimiter.class.getSimpleName());
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private final long latencyThresholdNanos;
+
+    private final double errorRateThreshold;
+
+    private int limit;
+
+    private int inflight;
+
+    private int windowCount;
+
+    private int windowErrors;
+
+    private long windowLatencyNanos;
+
+    private boolean windowSaturated;
+
+    public RecoveryConcurrencyLimiter(int minLimit, int maxLimit, long latencyThresholdMillis, double errorRateThreshold) {
+        this.minLimit = Math.max(minLimit, 1);
+        this.maxLimit = Math.max(maxLimit, this.minLimit);
+        this.latencyThresholdNanos = TimeUnit.MILLISECONDS.toNanos(latencyThresholdMillis);
+        this.errorRateThreshold = errorRateThreshold;
+        this.limit = this.maxLimit;
+    }
+
+    public synchronized void acquire() throws InterruptedException {
+
+        while (inflight >= limit) {
+            wait();
+        }
+
+        inflight++;
+
+        if (inflight >= limit) {
+            windowSaturated = true;
+        }
+    }
+
+    public synchronized void release(long latencyNanos, boolean success) {
+
+        inflight--;
+
+        windowCount++;
+        windowLatencyNanos += latencyNanos;
+        if (!success) {
+            windowErrors++;
+        }
+
+        if (windowCount >= limit) {
+            evaluate();
+        }
+
+        notifyAll();
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized int getInflight() {
+        return inflight;
+    }
+
+    private void evaluate() {
+
+        double errorRate = (double) windowErrors / windowCount;
+        long averageLatencyNanos = windowLatencyNanos / windowCount;
+
+        int previous = limit;
+
+        if (errorRate >= errorRateThreshold || averageLatencyNanos >= latencyThresholdNanos) {
+            limit = Math.max(limit / 2, minLimit);
+        } else if (windowSaturated) {
+            limit = Math.min(limit + 1, maxLimit);
+        }
+
+        if (limit < previous) {
+            log.warn(String.format("recovery concurrency decreased from %d to %d, error rate %.2f, average latency %dms",
+                    previous, limit, errorRate, TimeUnit.NANOSECONDS.toMillis(averageLatencyNanos)));
+        }
+
+        windowCount = 0;
+        windowErrors = 0;
+        windowLatencyNanos = 0;
+        windowSaturated = inflight >= limit;
+    }
+}
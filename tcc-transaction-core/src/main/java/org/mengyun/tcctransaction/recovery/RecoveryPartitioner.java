@@ -0,0 +1,36 @@
+package org.mengyun.tcctransaction.recovery;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * decides which node of the domain recovers a transaction, so the nodes recover the stale transactions in parallel.
+ * <p/>
+ * the DEFAULT_PARTITIONER owns all the transactions, the recovery is then done by the node holding the RecoveryLock.
+ * <p/>
+ * isOwner filters the pages of findAllUnmodifiedSince, the stores do not scan by partition, so each node still reads
+ * all the stale transactions of the domain.
+ */
+public interface RecoveryPartitioner {
+
+    RecoveryPartitioner DEFAULT_PARTITIONER = new RecoveryPartitioner() {
+
+        @Override
+        public boolean isPartitioned() {
+            return false;
+        }
+
+        @Override
+        public boolean isOwner(Xid xid) {
+            return true;
+        }
+    };
+
+    /**
+     * if false, the recovery is not partitioned and guarded by the RecoveryLock.
+     */
+    default boolean isPartitioned() {
+        return true;
+    }
+
+    boolean isOwner(Xid xid);
+}
@@ -2,23 +2,37 @@ package org.mengyun.tcctransaction.recovery;
 
 
 import com.alibaba.fastjson.JSON;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
 import org.apache.commons.lang3.exception.ExceptionUtils;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.SystemException;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.TransactionOptimisticLockException;
+import org.mengyun.tcctransaction.api.ParticipantStatus;
+import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.common.TransactionType;
 import org.mengyun.tcctransaction.repository.LocalStorable;
 import org.mengyun.tcctransaction.repository.Page;
 import org.mengyun.tcctransaction.repository.SentinelTransactionRepository;
 import org.mengyun.tcctransaction.repository.TransactionRepository;
+import org.mengyun.tcctransaction.repository.helper.TransactionRepositoryHelper;
 import org.mengyun.tcctransaction.support.TransactionConfigurator;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.transaction.xa.Xid;
 import java.time.Instant;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.locks.Lock;
 import java.util.concurrent.locks.ReentrantLock;
@@ -41,6 +55,8 @@ public class TransactionRecovery {
 
     static volatile ExecutorService recoveryExecutorService = null;
 
+    static volatile ScheduledExecutorService recoveryTimeoutExecutorService = null;
+
     private TransactionConfigurator transactionConfigurator;
 
     /**
@@ -54,6 +70,11 @@ public class TransactionRecovery {
 
     private Lock logSync = new ReentrantLock();
 
+    /**
+     * 自适应并发限制，未开启时为空
+     */
+    private volatile RecoveryConcurrencyLimiter concurrencyLimiter;
+
     public void setTransactionConfigurator(TransactionConfigurator transactionConfigurator) {
         this.transactionConfigurator = transactionConfigurator;
     }
@@ -80,22 +101,36 @@ public class TransactionRecovery {
     }
 
     public void startRecover(TransactionRepository transactionRepository) {
+
+        RecoveryPartitioner recoveryPartitioner = transactionConfigurator.getRecoveryPartitioner();
+
+        // 分区恢复时每个节点只恢复自己拥有的事务，不再需要全局锁；成员为空时不分区，退回使用全局锁
+        boolean partitioned = recoveryPartitioner.isPartitioned() && !(transactionRepository instanceof LocalStorable);
+
         // 如果存储在内存，则使用默认的Lock；如果不是则获取默认的锁
-        Lock recoveryLock = transactionRepository instanceof LocalStorable ? RecoveryLock.DEFAULT_LOCK : transactionConfigurator.getRecoveryLock();
+        Lock recoveryLock = transactionRepository instanceof LocalStorable || partitioned ? RecoveryLock.DEFAULT_LOCK : transactionConfigurator.getRecoveryLock();
 
         // 加锁
         if (recoveryLock.tryLock()) {
+            // 分页查询与恢复并行：查询出的事务直接提交给恢复线程池，不等待当前页恢复完成即查询下一页
+            RecoveryPipeline pipeline = new RecoveryPipeline(transactionRepository);
             try {
                 String offset = null;
                 int totalCount = 0;
+                //当前时间超过 - 事务变更时间( 最后执行时间 ) >= 事务恢复间隔( RecoverConfig#getRecoverDuration() )
+                Date unmodifiedSince = new Date(Instant.now().toEpochMilli() - transactionConfigurator.getRecoverFrequency().getRecoverDuration() * 1000L);
                 do {
                     // 获取异常事务列表
-                    Page<Transaction> page = loadErrorTransactionsByPage(transactionRepository, offset);
+                    Page<Transaction> page = loadErrorTransactionsByPage(transactionRepository, unmodifiedSince, offset);
                     if (page.getData().size() > 0) {
+                        List<Transaction> transactions = getDueTransactions(partitioned ? recoveryPartitioner : null, unmodifiedSince, page.getData());
                         // 并发恢复异常事务
-                        concurrentRecoveryErrorTransactions(transactionRepository, page.getData());
+                        if (!transactions.isEmpty()) {
+                            initLogStatistics();
+                            pipeline.submit(transactions);
+                        }
                         offset = page.getNextOffset();
-                        totalCount += page.getData().size();
+                        totalCount += transactions.size();
                     } else {
                         break;
                     }
@@ -105,56 +140,52 @@ public class TransactionRecovery {
             } catch (Throwable e) {
                 logger.error(String.format("recovery failed from repository:%s.", transactionRepository.getClass().getName()), e);
             } finally {
+                // 等待已提交的事务恢复完成后才释放锁
+                pipeline.awaitCompletion();
                 recoveryLock.unlock();
             }
         }
     }
 
-    private Page<Transaction> loadErrorTransactionsByPage(TransactionRepository transactionRepository, String offset) {
-
-        long currentTimeInMillis = Instant.now().toEpochMilli();
-
-        RecoverFrequency recoverFrequency = transactionConfigurator.getRecoverFrequency();
-        //当前时间超过 - 事务变更时间( 最后执行时间 ) >= 事务恢复间隔( RecoverConfig#getRecoverDuration() )
-        return transactionRepository.findAllUnmodifiedSince(new Date(currentTimeInMillis - recoverFrequency.getRecoverDuration() * 1000), offset, recoverFrequency.getFetchPageSize());
+    private Page<Transaction> loadErrorTransactionsByPage(TransactionRepository transactionRepository, Date unmodifiedSince, String offset) {
+        return transactionRepository.findAllUnmodifiedSince(unmodifiedSince, offset, transactionConfigurator.getRecoverFrequency().getFetchPageSize());
     }
 
-
     /**
-     * 恢复异常事务集合
-     * @param transactionRepository
-     * @param transactions
-     * @throws InterruptedException
-     * @throws ExecutionException
+     * 过滤出需要本节点恢复的事务，未到下次重试时间的事务跳过（存储不支持按下次重试时间查询时会被查询出来），
+     * 恢复时间在退避期间已减去 recoverDuration，与 unmodifiedSince 比较即是下次重试时间与当前时间比较；
+     * 分区在查询之后过滤，每个节点仍查询全部待恢复事务，存储的读取量随节点数增长，恢复调用不随之增长
      */
-    private void concurrentRecoveryErrorTransactions(TransactionRepository transactionRepository, List<Transaction> transactions) throws InterruptedException, ExecutionException {
+    private List<Transaction> getDueTransactions(RecoveryPartitioner recoveryPartitioner, Date unmodifiedSince, List<Transaction> transactions) {
 
-        initLogStatistics();
+        List<Transaction> dueTransactions = new ArrayList<>();
 
-        List<RecoverTask> tasks = new ArrayList<>();
         for (Transaction transaction : transactions) {
-            tasks.add(new RecoverTask(transactionRepository, transaction));
-        }
 
-        List<Future<Void>> futures = recoveryExecutorService.invokeAll(tasks, CONCURRENT_RECOVERY_TIMEOUT, TimeUnit.SECONDS);
+            if (!transaction.getRecoveryTime().before(unmodifiedSince)) {
+                continue;
+            }
 
-        for (Future future : futures) {
-            future.get();
+            if (recoveryPartitioner == null || recoveryPartitioner.isOwner(transaction.getXid())) {
+                dueTransactions.add(transaction);
+            }
         }
-    }
-
-    private void recoverErrorTransactions(TransactionRepository transactionRepository, List<Transaction> transactions) {
 
-        initLogStatistics();
-
-        for (Transaction transaction : transactions) {
-            recoverErrorTransaction(transactionRepository, transaction);
-        }
+        return dueTransactions;
     }
 
-    private void recoverErrorTransaction(TransactionRepository transactionRepository, Transaction transaction) {
+    /**
+     * 恢复单个事务，恢复失败（乐观锁冲突除外）返回 false
+     * @param rootStatuses 已批量查询的根事务状态，根事务不存在时为 Optional.empty()
+     */
+    private boolean recoverErrorTransaction(TransactionRepository transactionRepository, Transaction transaction, Map<Xid, Optional<TransactionStatus>> rootStatuses) {
 
         if (transaction.getRetriedCount() > transactionConfigurator.getRecoverFrequency().getMaxRetryCount()) {
+
+            if (moveToDeadLetter(transactionRepository, transaction)) {
+                return true;
+            }
+
             //当单个事务超过最大重试次数时，不再重试，只打印异常。
             logSync.lock();
             try {
@@ -174,7 +205,8 @@ public class TransactionRecovery {
                 logSync.unlock();
             }
 
-            return;
+            backoffMaxRetriedTransaction(transactionRepository, transaction);
+            return true;
         }
 
         try {
@@ -212,14 +244,14 @@ public class TransactionRecovery {
                         }
 
                         //check the root transaction
-                        Transaction rootTransaction = transactionRepository.findByRootXid(transaction.getRootXid());
+                        TransactionStatus rootStatus = getRootStatus(transactionRepository, rootStatuses, transaction.getRootXid());
 
-                        if (rootTransaction == null) {
+                        if (rootStatus == null) {
                             // In this case means the root transaction is already rollback.
                             // Need cancel this branch transaction.
                             rollbackTransaction(transactionRepository, transaction);
                         } else {
-                            switch (rootTransaction.getStatus()) {
+                            switch (rootStatus) {
                                 case CONFIRMING:
                                     commitTransaction(transactionRepository, transaction);
                                     break;
@@ -238,6 +270,7 @@ public class TransactionRecovery {
 
             }
 
+            return true;
         } catch (Throwable throwable) {
 
             if (throwable instanceof TransactionOptimisticLockException
@@ -248,6 +281,7 @@ public class TransactionRecovery {
                         transaction.getXid(),
                         transaction.getStatus().getId(),
                         transaction.getRetriedCount()));
+                return true;
             } else {
 
                 logSync.lock();
@@ -265,24 +299,178 @@ public class TransactionRecovery {
                 } finally {
                     logSync.unlock();
                 }
+                return false;
             }
         }
     }
 
+    private TransactionStatus getRootStatus(TransactionRepository transactionRepository, Map<Xid, Optional<TransactionStatus>> rootStatuses, Xid rootXid) {
+
+        Optional<TransactionStatus> rootStatus = rootStatuses.get(rootXid);
+
+        if (rootStatus != null) {
+            return rootStatus.orElse(null);
+        }
+
+        Transaction rootTransaction = TransactionRepositoryHelper.findByRootXid(transactionRepository, rootXid);
+        return rootTransaction == null ? null : rootTransaction.getStatus();
+    }
+
     private void rollbackTransaction(TransactionRepository transactionRepository, Transaction transaction) {
         transaction.setRetriedCount(transaction.getRetriedCount() + 1);
         transaction.setStatus(CANCELLING);
-        transactionRepository.update(transaction);
-        transaction.rollback();
-        transactionRepository.delete(transaction);
+        setNextRetryTime(transaction, getNextRetryTime(transaction.getRetriedCount()));
+        TransactionRepositoryHelper.update(transactionRepository, transaction);
+        checkNotCancelled(transaction);
+        rollbackParticipants(transaction);
+        checkNotCancelled(transaction);
+        TransactionRepositoryHelper.delete(transactionRepository, transaction);
     }
 
     private void commitTransaction(TransactionRepository transactionRepository, Transaction transaction) {
         transaction.setRetriedCount(transaction.getRetriedCount() + 1);
         transaction.setStatus(CONFIRMING);
-        transactionRepository.update(transaction);
-        transaction.commit();
-        transactionRepository.delete(transaction);
+        setNextRetryTime(transaction, getNextRetryTime(transaction.getRetriedCount()));
+        TransactionRepositoryHelper.update(transactionRepository, transaction);
+        checkNotCancelled(transaction);
+        commitParticipants(transaction);
+        checkNotCancelled(transaction);
+        TransactionRepositoryHelper.delete(transactionRepository, transaction);
+    }
+
+    /**
+     * 恢复超时被取消（执行线程被中断）后不再继续调用参与者或写存储
+     */
+    private void checkNotCancelled(Transaction transaction) {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new SystemException(String.format("recover cancelled after timeout. txid:%s", transaction.getXid()));
+        }
+    }
+
+    /**
+     * 同 Transaction#commit，配置了 ParticipantRateLimiter 时按参与者目标限流
+     */
+    private void commitParticipants(Transaction transaction) {
+
+        ParticipantRateLimiter participantRateLimiter = transactionConfigurator.getParticipantRateLimiter();
+
+        if (participantRateLimiter == null) {
+            transaction.commit();
+            return;
+        }
+
+        for (Participant participant : transaction.getParticipants()) {
+            if (!participant.getStatus().equals(ParticipantStatus.CONFIRM_SUCCESS)) {
+                invokeParticipant(participantRateLimiter, participant.getConfirmInvocationContext(), participant::commit);
+                participant.setStatus(ParticipantStatus.CONFIRM_SUCCESS);
+            }
+        }
+    }
+
+    /**
+     * 同 Transaction#rollback，配置了 ParticipantRateLimiter 时按参与者目标限流
+     */
+    private void rollbackParticipants(Transaction transaction) {
+
+        ParticipantRateLimiter participantRateLimiter = transactionConfigurator.getParticipantRateLimiter();
+
+        if (participantRateLimiter == null) {
+            transaction.rollback();
+            return;
+        }
+
+        for (Participant participant : transaction.getParticipants()) {
+            if (!participant.getStatus().equals(ParticipantStatus.CANCEL_SUCCESS)) {
+                invokeParticipant(participantRateLimiter, participant.getCancelInvocationContext(), participant::rollback);
+                participant.setStatus(ParticipantStatus.CANCEL_SUCCESS);
+            }
+        }
+    }
+
+    private void invokeParticipant(ParticipantRateLimiter participantRateLimiter, InvocationContext invocationContext, Runnable call) {
+
+        // 没有确认或取消方法时不会调用参与者
+        if (invocationContext == null || StringUtils.isEmpty(invocationContext.getMethodName())) {
+            call.run();
+            return;
+        }
+
+        participantRateLimiter.invoke(invocationContext, call);
+    }
+
+    /**
+     * 本次恢复失败后的下次重试时间，重试次数越多退避越久：base * 2^(retriedCount-1)，不超过上限，并加上随机抖动
+     */
+    private Date getNextRetryTime(int retriedCount) {
+
+        RecoverFrequency recoverFrequency = transactionConfigurator.getRecoverFrequency();
+
+        if (recoverFrequency.getRetryBackoffSeconds() <= 0) {
+            return null;
+        }
+
+        long maxBackoffMillis = recoverFrequency.getMaxRetryBackoffSeconds() * 1000L;
+        long backoffMillis = recoverFrequency.getRetryBackoffSeconds() * 1000L << Math.min(Math.max(retriedCount - 1, 0), 30);
+
+        return new Date(System.currentTimeMillis() + jitter(Math.min(backoffMillis, maxBackoffMillis), recoverFrequency.getRetryBackoffJitter()));
+    }
+
+    /**
+     * 下次重试时间与 now 比较，recoverDuration 只作用于最后更新时间，见 Transaction#getRecoveryTime
+     */
+    private void setNextRetryTime(Transaction transaction, Date nextRetryTime) {
+        transaction.setNextRetryTime(nextRetryTime, transactionConfigurator.getRecoverFrequency().getRecoverDuration() * 1000L);
+    }
+
+    /**
+     * 开启死信时，超过最大重试次数的事务移到死信存储，移动失败（如版本冲突）时按未开启处理
+     */
+    private boolean moveToDeadLetter(TransactionRepository transactionRepository, Transaction transaction) {
+
+        if (!transactionConfigurator.getRecoverFrequency().isDeadLetterEnabled() || !transactionRepository.isDeadLetterSupported()) {
+            return false;
+        }
+
+        try {
+            if (transactionRepository.moveToDeadLetter(transaction) > 0) {
+                logger.warn(String.format("transaction moved to dead letter after max retry count. txid:%s, status:%s, retried count:%d",
+                        transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount()));
+                return true;
+            }
+        } catch (Throwable e) {
+            logger.warn(String.format("move transaction to dead letter failed. txid:%s", transaction.getXid()), e);
+        }
+
+        return false;
+    }
+
+    /**
+     * 超过最大重试次数的事务不再恢复，按退避上限推迟下次查询，避免每次恢复都查询出来
+     */
+    private void backoffMaxRetriedTransaction(TransactionRepository transactionRepository, Transaction transaction) {
+
+        RecoverFrequency recoverFrequency = transactionConfigurator.getRecoverFrequency();
+
+        if (recoverFrequency.getRetryBackoffSeconds() <= 0) {
+            return;
+        }
+
+        try {
+            setNextRetryTime(transaction, new Date(System.currentTimeMillis()
+                    + jitter(recoverFrequency.getMaxRetryBackoffSeconds() * 1000L, recoverFrequency.getRetryBackoffJitter())));
+            TransactionRepositoryHelper.update(transactionRepository, transaction);
+        } catch (Throwable e) {
+            logger.warn(String.format("backoff max retried transaction failed. txid:%s", transaction.getXid()), e);
+        }
+    }
+
+    private long jitter(long millis, double jitter) {
+
+        if (jitter <= 0) {
+            return millis;
+        }
+
+        return Math.max((long) (millis * (1 + ThreadLocalRandom.current().nextDouble(-jitter, jitter))), 0);
     }
 
 
@@ -294,6 +482,9 @@ public class TransactionRecovery {
                     // 创建线程池，用于执行任务
                     recoveryExecutorService = Executors.newFixedThreadPool(transactionConfigurator.getRecoverFrequency().getConcurrentRecoveryThreadCount());
 
+                    recoveryTimeoutExecutorService = Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder().setNameFormat("tcc-recovery-timeout-%d").setDaemon(true).build());
+
                     logMaxPrintCount = transactionConfigurator.getRecoverFrequency().getFetchPageSize() / 2
                             > MAX_ERROR_COUNT_SHREDHOLD ?
                             MAX_ERROR_COUNT_SHREDHOLD : transactionConfigurator.getRecoverFrequency().getFetchPageSize() / 2;
@@ -302,6 +493,19 @@ public class TransactionRecovery {
                 }
             }
         }
+
+        RecoverFrequency recoverFrequency = transactionConfigurator.getRecoverFrequency();
+
+        if (concurrencyLimiter == null && recoverFrequency.isAdaptiveConcurrencyEnabled()) {
+            concurrencyLimiter = new RecoveryConcurrencyLimiter(recoverFrequency.getMinConcurrentRecoveryThreadCount(),
+                    recoverFrequency.getConcurrentRecoveryThreadCount(),
+                    recoverFrequency.getRecoveryLatencyThresholdMillis(),
+                    recoverFrequency.getRecoveryErrorRateThreshold());
+        }
+    }
+
+    public RecoveryConcurrencyLimiter getConcurrencyLimiter() {
+        return concurrencyLimiter;
     }
 
     private void initLogStatistics() {
@@ -310,20 +514,210 @@ public class TransactionRecovery {
     }
 
 
-    class RecoverTask implements Callable<Void> {
+    /**
+     * 恢复流水线，查询线程提交事务，恢复线程池持续消费；
+     * 已提交未完成的事务数不超过两页（fetchPageSize * 2），超过时查询线程阻塞等待，即查询最多领先恢复一页；
+     * 开启自适应并发时，同时恢复的事务数不超过 concurrencyLimiter 的限制；
+     * 每页 TRY_SUCCESS 分支事务的根事务状态在提交前批量查询，本次恢复内缓存，同一根事务只查询一次
+     */
+    class RecoveryPipeline {
 
-        TransactionRepository transactionRepository;
-        Transaction transaction;
+        private final TransactionRepository transactionRepository;
+
+        private final int capacity;
+
+        private final Semaphore permits;
+
+        // 分页查询时恢复中的事务可能被再次查询出来，不重复提交
+        private final Map<Xid, RecoverTask> inflightTasks = new ConcurrentHashMap<>();
 
-        public RecoverTask(TransactionRepository transactionRepository, Transaction transaction) {
+        // 本次恢复内超时取消的事务，取消后执行线程可能仍未退出，不再提交
+        private final Set<Xid> cancelledXids = ConcurrentHashMap.newKeySet();
+
+        private final RecoveryConcurrencyLimiter limiter = concurrencyLimiter;
+
+        private final AtomicInteger timeoutCount = new AtomicInteger();
+
+        private final Map<Xid, Optional<TransactionStatus>> rootStatuses = new ConcurrentHashMap<>();
+
+        RecoveryPipeline(TransactionRepository transactionRepository) {
             this.transactionRepository = transactionRepository;
+            this.capacity = Math.max(transactionConfigurator.getRecoverFrequency().getFetchPageSize(), 1) * 2;
+            this.permits = new Semaphore(capacity);
+        }
+
+        void submit(List<Transaction> transactions) throws InterruptedException {
+
+            findRootStatuses(transactions);
+
+            for (Transaction transaction : transactions) {
+
+                RecoverTask task = new RecoverTask(this, transaction);
+
+                if (cancelledXids.contains(transaction.getXid()) || inflightTasks.putIfAbsent(transaction.getXid(), task) != null) {
+                    continue;
+                }
+
+                permits.acquire();
+
+                if (limiter != null) {
+                    try {
+                        limiter.acquire();
+                    } catch (InterruptedException e) {
+                        inflightTasks.remove(transaction.getXid());
+                        permits.release();
+                        throw e;
+                    }
+                }
+
+                try {
+                    recoveryExecutorService.execute(task.future);
+                } catch (RejectedExecutionException e) {
+                    task.complete(false);
+                    throw e;
+                }
+            }
+        }
+
+        private void findRootStatuses(List<Transaction> transactions) {
+
+            if (transactionRepository.getRootDomain() == null) {
+                return;
+            }
+
+            Set<Xid> rootXids = new HashSet<>();
+
+            for (Transaction transaction : transactions) {
+                if (transaction.getTransactionType() == TransactionType.BRANCH
+                        && transaction.getStatus() == TransactionStatus.TRY_SUCCESS
+                        && transaction.getRootXid() != null
+                        && !rootStatuses.containsKey(transaction.getRootXid())) {
+                    rootXids.add(transaction.getRootXid());
+                }
+            }
+
+            if (rootXids.isEmpty()) {
+                return;
+            }
+
+            try {
+                Map<Xid, TransactionStatus> statuses = transactionRepository.findRootStatuses(rootXids);
+
+                for (Xid rootXid : rootXids) {
+                    rootStatuses.put(rootXid, Optional.ofNullable(statuses.get(rootXid)));
+                }
+            } catch (Throwable e) {
+                // the root transactions are then found one by one
+                logger.warn(String.format("find %d root transaction statuses failed from repository:%s", rootXids.size(), transactionRepository.getClass().getName()), e);
+            }
+        }
+
+        /**
+         * 等待所有已提交的事务结束：超过 CONCURRENT_RECOVERY_TIMEOUT 仍在排队的任务取消不再执行，
+         * 执行中的任务在 recoveryTimeoutSeconds 内完成或被取消，因此等待有上限且返回时没有恢复中的事务
+         */
+        void awaitCompletion() {
+
+            try {
+                if (!permits.tryAcquire(capacity, CONCURRENT_RECOVERY_TIMEOUT, TimeUnit.SECONDS)) {
+
+                    int cancelledCount = 0;
+
+                    for (RecoverTask task : inflightTasks.values()) {
+                        if (task.cancelIfNotStarted()) {
+                            cancelledCount++;
+                        }
+                    }
+
+                    logger.warn(String.format("recovery of %d transactions not completed in %d seconds, %d of them not started are cancelled, from repository:%s",
+                            inflightTasks.size() + cancelledCount, CONCURRENT_RECOVERY_TIMEOUT, cancelledCount, transactionRepository.getClass().getName()));
+
+                    permits.acquire(capacity);
+                }
+
+                permits.release(capacity);
+
+                if (timeoutCount.get() > 0) {
+                    logger.warn(String.format("recovery of %d transactions timed out from repository:%s",
+                            timeoutCount.get(), transactionRepository.getClass().getName()));
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        private void complete(Transaction transaction, long latencyNanos, boolean success) {
+            inflightTasks.remove(transaction.getXid());
+            permits.release();
+            if (limiter != null) {
+                limiter.release(latencyNanos, success);
+            }
+        }
+    }
+
+    /**
+     * 单个事务的恢复任务，超过 recoveryTimeoutSeconds 未完成则取消并中断执行线程，按失败结束：
+     * 许可、inflightTasks 及并发限制在超时时即释放，执行线程在参与者调用或存储写入间检查中断后退出，不再写存储；
+     * 不响应中断的调用（如阻塞的 socket 读）由其自身的超时结束，这期间本次恢复不再提交该事务
+     */
+    class RecoverTask implements Runnable {
+
+        RecoveryPipeline pipeline;
+        Transaction transaction;
+
+        final FutureTask<Void> future = new FutureTask<>(this, null);
+
+        private final AtomicBoolean completed = new AtomicBoolean();
+
+        private volatile boolean started;
+        private volatile long startNanos;
+
+        public RecoverTask(RecoveryPipeline pipeline, Transaction transaction) {
+            this.pipeline = pipeline;
             this.transaction = transaction;
         }
 
         @Override
-        public Void call() throws Exception {
-            recoverErrorTransaction(transactionRepository, transaction);
-            return null;
+        public void run() {
+
+            startNanos = System.nanoTime();
+            started = true;
+
+            ScheduledFuture<?> timeout = recoveryTimeoutExecutorService.schedule(this::timeout,
+                    transactionConfigurator.getRecoverFrequency().getRecoveryTimeoutSeconds(), TimeUnit.SECONDS);
+
+            boolean success = false;
+            try {
+                success = recoverErrorTransaction(pipeline.transactionRepository, transaction, pipeline.rootStatuses);
+            } finally {
+                timeout.cancel(false);
+                complete(success);
+            }
+        }
+
+        boolean cancelIfNotStarted() {
+            if (!started && future.cancel(false)) {
+                complete(false);
+                return true;
+            }
+            return false;
+        }
+
+        private void timeout() {
+
+            pipeline.cancelledXids.add(transaction.getXid());
+            pipeline.timeoutCount.incrementAndGet();
+            logger.warn(String.format("recover timeout, cancelled and counted as failed. txid:%s, status:%s,retried count:%d",
+                    transaction.getXid(), transaction.getStatus().getId(), transaction.getRetriedCount()));
+
+            future.cancel(true);
+            complete(false);
+        }
+
+        private void complete(boolean success) {
+            if (completed.compareAndSet(false, true)) {
+                pipeline.complete(transaction, started ? System.nanoTime() - startNanos : 0, success);
+            }
         }
     }
 
@@ -1,6 +1,8 @@
 package org.mengyun.tcctransaction.repository;
 
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.repository.helper.ParallelShardOffset;
 import org.mengyun.tcctransaction.repository.helper.ShardHolder;
 import org.mengyun.tcctransaction.repository.helper.ShardOffset;
 import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
@@ -10,6 +12,7 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 public abstract class AbstractKVStoreTransactionRepository<T> extends AbstractTransactionRepository {
 
@@ -21,6 +24,15 @@ public abstract class AbstractKVStoreTransactionRepository<T> extends AbstractTr
 
     private TransactionSerializer serializer = new RegisterableKryoTransactionSerializer();
 
+    /**
+     * scan all shards at once instead of one after another while finding transactions.
+     */
+    private boolean parallelScanEnabled = false;
+
+    private int parallelScanConcurrency = 4;
+
+    private volatile ExecutorService parallelScanExecutorService;
+
     @Override
     public String getDomain() {
         return domain;
@@ -43,6 +55,22 @@ public abstract class AbstractKVStoreTransactionRepository<T> extends AbstractTr
         this.serializer = serializer;
     }
 
+    public boolean isParallelScanEnabled() {
+        return parallelScanEnabled;
+    }
+
+    public void setParallelScanEnabled(boolean parallelScanEnabled) {
+        this.parallelScanEnabled = parallelScanEnabled;
+    }
+
+    public int getParallelScanConcurrency() {
+        return parallelScanConcurrency;
+    }
+
+    public void setParallelScanConcurrency(int parallelScanConcurrency) {
+        this.parallelScanConcurrency = parallelScanConcurrency;
+    }
+
     @Override
     protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
 
@@ -54,12 +82,12 @@ public abstract class AbstractKVStoreTransactionRepository<T> extends AbstractTr
 
         do {
 
-            Page<Transaction> page = doFindAll(tryFetchOffset, pageSize - haveFetchedCount);
+            Page<Transaction> page = doFindAll(date, tryFetchOffset, pageSize - haveFetchedCount);
 
             tryFetchOffset = page.getNextOffset();
 
             for (Transaction transaction : page.getData()) {
-                if (transaction.getLastUpdateTime().compareTo(date) < 0) {
+                if (transaction.getRecoveryTime().compareTo(date) < 0) {
                     fetchedTransactions.add(transaction);
                 }
             }
@@ -76,8 +104,13 @@ public abstract class AbstractKVStoreTransactionRepository<T> extends AbstractTr
 
     /*
      * offset: shardIndex:cursor,eg = 0:0,1:0
+     * date: the shards maintaining a time index only return keys unmodified since the date
      * */
-    protected Page<Transaction> doFindAll(String offset, int maxFindCount) {
+    protected Page<Transaction> doFindAll(Date date, String offset, int maxFindCount) {
+
+        if (parallelScanEnabled) {
+            return doParallelFindAll(date, offset, maxFindCount);
+        }
 
         ShardOffset currentShardOffset = new ShardOffset(offset);
 
@@ -89,7 +122,7 @@ public abstract class AbstractKVStoreTransactionRepository<T> extends AbstractTr
 
             List<T> allShards = shardHolder.getAllShards();
 
-            List<Transaction> transactions = findTransactionsFromShards(allShards, currentShardOffset, nextShardOffset, maxFindCount);
+            List<Transaction> transactions = findTransactionsFromShards(allShards, date, currentShardOffset, nextShardOffset, maxFindCount);
 
             page.setNextOffset(nextShardOffset.toString());
             page.setData(transactions);
@@ -102,7 +135,7 @@ public abstract class AbstractKVStoreTransactionRepository<T> extends AbstractTr
         }
     }
 
-    private List<Transaction> findTransactionsFromShards(final List<T> allShards, ShardOffset currentShardOffset, ShardOffset nextShardOffset, int maxFindCount) {
+    private List<Transaction> findTransactionsFromShards(final List<T> allShards, Date date, ShardOffset currentShardOffset, ShardOffset nextShardOffset, int maxFindCount) {
 
         List<Transaction> transactions = new ArrayList<>();
 
@@ -117,7 +150,7 @@ public abstract class AbstractKVStoreTransactionRepository<T> extends AbstractTr
 
             T currentShard = allShards.get(currentShardIndex);
 
-            Page<byte[]> keyPage = findKeysFromOneShard(currentShard, currentCursor, maxFindCount);
+            Page<byte[]> keyPage = findKeysFromOneShard(currentShard, date, currentCursor, maxFindCount);
             List<byte[]> keys = keyPage.getData();
 
             if (keys.size() > 0) {
@@ -168,9 +201,108 @@ public abstract class AbstractKVStoreTransactionRepository<T> extends AbstractTr
         return transactions;
     }
 
+    /*
+     * offset: cursors of all shards, eg = 0,17,$
+     * */
+    protected Page<Transaction> doParallelFindAll(Date date, String offset, int maxFindCount) {
+
+        try (ShardHolder<T> shardHolder = getShardHolder()) {
+
+            List<T> allShards = shardHolder.getAllShards();
+
+            ParallelShardOffset shardOffset = new ParallelShardOffset(offset, allShards.size());
+
+            int unfinishedCount = shardOffset.getUnfinishedCount();
+
+            if (unfinishedCount == 0) {
+                return new Page<Transaction>(shardOffset.toString(), new ArrayList<>());
+            }
+
+            int maxFindCountPerShard = (maxFindCount + unfinishedCount - 1) / unfinishedCount;
+
+            Map<Integer, Future<Page<Transaction>>> futures = new LinkedHashMap<>();
+
+            for (int i = 0; i < allShards.size(); i++) {
+
+                if (shardOffset.isFinished(i)) {
+                    continue;
+                }
+
+                final T shard = allShards.get(i);
+                final String cursor = shardOffset.getCursor(i);
+
+                futures.put(i, getParallelScanExecutorService().submit(
+                        () -> findTransactionsFromOneShard(shard, date, cursor, maxFindCountPerShard)));
+            }
+
+            List<Transaction> transactions = new ArrayList<>();
+
+            for (Map.Entry<Integer, Future<Page<Transaction>>> entry : futures.entrySet()) {
+
+                Page<Transaction> shardPage = entry.getValue().get();
+
+                transactions.addAll(shardPage.getData());
+
+                if (ShardOffset.SCAN_INIT_CURSOR.equals(shardPage.getNextOffset())) {
+                    shardOffset.finish(entry.getKey());
+                } else {
+                    shardOffset.setCursor(entry.getKey(), shardPage.getNextOffset());
+                }
+            }
+
+            return new Page<Transaction>(shardOffset.toString(), transactions);
+
+        } catch (ExecutionException e) {
+            throw new TransactionIOException(e.getCause());
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    /*
+     * scan the shard from the cursor until some keys found or reach the end of the shard.
+     * */
+    private Page<Transaction> findTransactionsFromOneShard(T shard, Date date, String cursor, int maxFindCount) {
+
+        String currentCursor = cursor;
+
+        do {
+            Page<byte[]> keyPage = findKeysFromOneShard(shard, date, currentCursor, maxFindCount);
+
+            currentCursor = (String) keyPage.getAttachment();
+
+            if (keyPage.getData().size() > 0) {
+                return new Page<Transaction>(currentCursor, findTransactionsFromOneShard(shard, new HashSet<>(keyPage.getData())));
+            }
+
+        } while (!ShardOffset.SCAN_INIT_CURSOR.equals(currentCursor));
+
+        return new Page<Transaction>(currentCursor, new ArrayList<>());
+    }
+
+    private ExecutorService getParallelScanExecutorService() {
+
+        if (parallelScanExecutorService == null) {
+            synchronized (this) {
+                if (parallelScanExecutorService == null) {
+                    parallelScanExecutorService = Executors.newFixedThreadPool(parallelScanConcurrency,
+                            new ThreadFactoryBuilder().setNameFormat("tcc-parallel-scan-%d").setDaemon(true).build());
+                }
+            }
+        }
+        return parallelScanExecutorService;
+    }
+
+    @Override
+    public void close() {
+        if (parallelScanExecutorService != null) {
+            parallelScanExecutorService.shutdown();
+        }
+    }
+
     abstract  List<Transaction> findTransactionsFromOneShard(T shard, Set keys);
 
-    abstract  Page findKeysFromOneShard(T shard, String currentCursor, int maxFindCount);
+    abstract  Page findKeysFromOneShard(T shard, Date date, String currentCursor, int maxFindCount);
 
     protected abstract ShardHolder<T> getShardHolder();
 
@@ -1,28 +1,66 @@
 package org.mengyun.tcctransaction.repository;
 
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.repository.helper.JedisCommands;
 import org.mengyun.tcctransaction.repository.helper.RedisCommands;
 import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.repository.helper.ShardHolder;
+import org.mengyun.tcctransaction.repository.helper.ShardOffset;
+import org.mengyun.tcctransaction.repository.helper.ScoreCursor;
 import org.mengyun.tcctransaction.repository.helper.TransactionStoreSerializer;
+import org.mengyun.tcctransaction.utils.ByteUtils;
 import redis.clients.jedis.Jedis;
 import redis.clients.jedis.Pipeline;
+import redis.clients.jedis.Response;
 import redis.clients.jedis.ScanParams;
 import redis.clients.jedis.ScanResult;
-import redis.clients.jedis.exceptions.JedisMovedDataException;
+import redis.clients.jedis.Tuple;
+import redis.clients.jedis.exceptions.JedisRedirectionException;
+import redis.clients.jedis.params.ZAddParams;
 
 import javax.transaction.xa.Xid;
 import java.util.*;
-import java.util.stream.Collectors;
 
 public abstract class AbstractRedisTransactionRepository extends AbstractKVStoreTransactionRepository<Jedis> {
 
     protected boolean isSupportScan = true;
 
+    /**
+     * maintain a sorted set scored by the recovery time (see Transaction.getRecoveryTime) per domain, recovery reads the stale keys from it instead of SCAN the keyspace.
+     */
+    private boolean indexEnabled = true;
+
+    private volatile boolean indexBackfilled = false;
+
+    /**
+     * also look up the transactions stored under the string key of xid.toString(), disable it once they are all completed.
+     */
+    private boolean legacyKeyEnabled = true;
+
+    public boolean isLegacyKeyEnabled() {
+        return legacyKeyEnabled;
+    }
+
+    public void setLegacyKeyEnabled(boolean legacyKeyEnabled) {
+        this.legacyKeyEnabled = legacyKeyEnabled;
+    }
+
+    public boolean isIndexEnabled() {
+        return indexEnabled;
+    }
+
+    public void setIndexEnabled(boolean indexEnabled) {
+        this.indexEnabled = indexEnabled;
+    }
+
     @Override
     protected int doCreate(final Transaction transaction) {
 
-        try (RedisCommands commands = getRedisCommands(RedisHelper.getRedisKey(getDomain(), transaction.getXid()))) {
-            Long statusCode = createByScriptCommand(commands, transaction);
+        byte[] key = RedisHelper.getRedisKey(getDomain(), transaction.getXid());
+
+        try (RedisCommands commands = getRedisCommands(key)) {
+            Long statusCode = createByScriptCommand(commands, key, transaction);
             return statusCode.intValue();
         } catch (Exception e) {
             throw new TransactionIOException(e);
@@ -32,45 +70,110 @@ public abstract class AbstractRedisTransactionRepository extends AbstractKVStore
     @Override
     protected int doUpdate(final Transaction transaction) {
 
-        try (RedisCommands commands = getRedisCommands(RedisHelper.getRedisKey(getDomain(), transaction.getXid()))) {
+        transaction.setLastUpdateTime(new Date());
+        transaction.setVersion(transaction.getVersion() + 1);
 
-            Long statusCode = updateByScriptCommand(commands, transaction);
+        List<byte[]> params = getUpdateParams(transaction);
 
-            return statusCode.intValue();
-        } catch (Exception e) {
-            throw new TransactionIOException(e);
+        Long statusCode = updateByScriptCommand(RedisHelper.getRedisKey(getDomain(), transaction.getXid()), params);
+
+        if (statusCode < 0 && legacyKeyEnabled) {
+            statusCode = updateByScriptCommand(RedisHelper.getLegacyRedisKey(getDomain(), transaction.getXid()), params);
         }
+
+        return statusCode < 0 ? 0 : statusCode.intValue();
     }
 
     @Override
     protected int doDelete(final Transaction transaction) {
 
-        try (RedisCommands commands = getRedisCommands(RedisHelper.getRedisKey(getDomain(), transaction.getXid()))) {
-
-            Long result = commands.del(RedisHelper.getRedisKey(getDomain(), transaction.getXid()));
+        int result = deleteByScriptCommand(RedisHelper.getRedisKey(getDomain(), transaction.getXid()));
 
-            return result.intValue();
-        } catch (Exception e) {
-            throw new TransactionIOException(e);
+        if (result <= 0 && legacyKeyEnabled) {
+            result = deleteByScriptCommand(RedisHelper.getLegacyRedisKey(getDomain(), transaction.getXid()));
         }
+
+        return result;
     }
 
     @Override
     protected Transaction doFindOne(final Xid xid) {
-        return doFind(getDomain(),xid);
+        return doFind(getDomain(), xid);
     }
 
     @Override
     protected Transaction doFindRootOne(Xid xid) {
-        return doFind(getRootDomain(),xid);
+        return doFind(getRootDomain(), xid);
+    }
+
+    /*
+     * only the status fields of the root transactions are read, in one pipeline.
+     * */
+    @Override
+    protected Map<Xid, TransactionStatus> doFindRootStatuses(Collection<Xid> xids) {
+
+        Map<Xid, TransactionStatus> statuses = new HashMap<>();
+
+        if (xids.isEmpty()) {
+            return statuses;
+        }
+
+        List<Xid> xidList = new ArrayList<>(xids);
+        List<byte[]> keys = new ArrayList<>();
+
+        for (Xid xid : xidList) {
+            keys.add(RedisHelper.getRedisKey(getRootDomain(), xid));
+        }
+
+        List<Object> result;
+
+        try (RedisCommands commands = getRedisCommands(keys.get(0))) {
+            result = commands.executePipelined(pipelineCommands -> {
+                // the results are returned by the pipeline, or by the commands if not pipelined, e.g. redis cluster
+                List<Object> statusList = new ArrayList<>();
+                for (byte[] key : keys) {
+                    statusList.add(pipelineCommands.hget(key, TransactionStoreSerializer.STATUS));
+                }
+                return statusList;
+            });
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+
+        for (int i = 0; i < xidList.size(); i++) {
+
+            Object status = result.get(i);
+
+            if (status instanceof byte[]) {
+                statuses.put(xidList.get(i), TransactionStatus.valueOf(ByteUtils.bytesToInt((byte[]) status)));
+            } else if (legacyKeyEnabled) {
+                Transaction transaction = doFind(RedisHelper.getLegacyRedisKey(getRootDomain(), xidList.get(i)));
+                if (transaction != null) {
+                    statuses.put(xidList.get(i), transaction.getStatus());
+                }
+            }
+        }
+
+        return statuses;
     }
 
     private Transaction doFind(String domain, Xid xid) {
-        try (RedisCommands commands = getRedisCommands(RedisHelper.getRedisKey(domain, xid))) {
+
+        Transaction transaction = doFind(RedisHelper.getRedisKey(domain, xid));
+
+        if (transaction == null && legacyKeyEnabled) {
+            transaction = doFind(RedisHelper.getLegacyRedisKey(domain, xid));
+        }
+
+        return transaction;
+    }
+
+    private Transaction doFind(byte[] key) {
+        try (RedisCommands commands = getRedisCommands(key)) {
 
             Long startTime = System.currentTimeMillis();
 
-            Map<byte[], byte[]> content = commands.hgetAll(RedisHelper.getRedisKey(domain, xid));
+            Map<byte[], byte[]> content = commands.hgetAll(key);
 
             if (log.isDebugEnabled()) {
                 log.debug("redis find cost time :" + (System.currentTimeMillis() - startTime));
@@ -85,94 +188,432 @@ public abstract class AbstractRedisTransactionRepository extends AbstractKVStore
         }
     }
 
-    protected Long createByScriptCommand(RedisCommands commands, Transaction transaction) {
+    protected Long createByScriptCommand(RedisCommands commands, byte[] key, Transaction transaction) {
         List<byte[]> params = new ArrayList<byte[]>();
 
+        params.add(ByteUtils.longToBytes(transaction.getRecoveryTime().getTime()));
+
         for (Map.Entry<byte[], byte[]> entry : TransactionStoreSerializer.serialize(getSerializer(), transaction)
                 .entrySet()) {
             params.add(entry.getKey());
             params.add(entry.getValue());
         }
 
-        Object result = commands.eval(
-                "if redis.call('exists', KEYS[1]) == 0 then redis.call('hmset', KEYS[1], unpack(ARGV)); return 1; end; return 0;"
-                        .getBytes(),
-                Arrays.asList(RedisHelper.getRedisKey(getDomain(), transaction.getXid())),
-                params);
+        Object result = commands.evalScript(RedisHelper.CREATE_SCRIPT, getScriptKeys(key), params);
 
         return (Long) result;
     }
 
-    protected Long updateByScriptCommand(RedisCommands commands, Transaction transaction) {
+    protected Long updateByScriptCommand(byte[] key, List<byte[]> params) {
 
-        transaction.setLastUpdateTime(new Date());
-        transaction.setVersion(transaction.getVersion() + 1);
+        try (RedisCommands commands = getRedisCommands(key)) {
+
+            Object result = commands.evalScript(RedisHelper.UPDATE_SCRIPT, getScriptKeys(key), params);
+
+            return (Long) result;
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    private int deleteByScriptCommand(byte[] key) {
+
+        try (RedisCommands commands = getRedisCommands(key)) {
+
+            Object result = commands.evalScript(RedisHelper.DELETE_SCRIPT, getScriptKeys(key), Collections.emptyList());
+
+            return ((Long) result).intValue();
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    private List<byte[]> getUpdateParams(Transaction transaction) {
 
         List<byte[]> params = new ArrayList<byte[]>();
 
+        params.add(ByteUtils.longToBytes(transaction.getVersion() - 1));
+        params.add(ByteUtils.longToBytes(transaction.getRecoveryTime().getTime()));
+
         for (Map.Entry<byte[], byte[]> entry : TransactionStoreSerializer.serialize(getSerializer(), transaction)
                 .entrySet()) {
             params.add(entry.getKey());
             params.add(entry.getValue());
         }
 
-        Object result = commands.eval(String.format(
-                "if redis.call('hget',KEYS[1],'VERSION') == '%s' then redis.call('hmset', KEYS[1], unpack(ARGV)); return 1; end; return 0;",
-                transaction.getVersion() - 1).getBytes(),
-                Arrays.asList(RedisHelper.getRedisKey(
-                        getDomain(),
-                        transaction.getXid())),
-                params);
+        return params;
+    }
 
-        return (Long) result;
+    /*
+     * the dead letter key and the index key are accessed with the transaction key in one script, same as the index.
+     * */
+    @Override
+    public boolean isDeadLetterSupported() {
+        return isIndexSupported();
+    }
+
+    @Override
+    public int moveToDeadLetter(Transaction transaction) {
+
+        if (!isDeadLetterSupported()) {
+            return 0;
+        }
+
+        int result = moveToDeadLetterByScriptCommand(RedisHelper.getRedisKey(getDomain(), transaction.getXid()), transaction.getVersion());
+
+        if (result < 0 && legacyKeyEnabled) {
+            result = moveToDeadLetterByScriptCommand(RedisHelper.getLegacyRedisKey(getDomain(), transaction.getXid()), transaction.getVersion());
+        }
+
+        return result < 0 ? 0 : result;
+    }
+
+    /*
+     * offset: shardIndex::cursor of the SCAN of the dead letter keys.
+     * */
+    @Override
+    public Page<Transaction> findAllDeadLetters(String offset, int pageSize) {
+
+        if (!isDeadLetterSupported()) {
+            return new Page<Transaction>();
+        }
+
+        ShardOffset shardOffset = new ShardOffset(offset);
+
+        List<Transaction> transactions = new ArrayList<>();
+
+        try (ShardHolder<Jedis> shardHolder = getShardHolder()) {
+
+            List<Jedis> allShards = shardHolder.getAllShards();
+
+            ScanParams scanParams = RedisHelper.buildDefaultScanParams(RedisHelper.DEAD_LETTER_KEY_PREFIX + getDomain() + "*", pageSize);
+
+            while (shardOffset.getShardIndex() < allShards.size() && transactions.size() < pageSize) {
+
+                Jedis shard = allShards.get(shardOffset.getShardIndex());
+
+                ScanResult<byte[]> scanResult = shard.scan(shardOffset.getCursor().getBytes(), scanParams);
+
+                if (!scanResult.getResult().isEmpty()) {
+
+                    Pipeline pipeline = shard.pipelined();
+                    List<Response<Map<byte[], byte[]>>> responses = new ArrayList<>();
+                    for (byte[] key : scanResult.getResult()) {
+                        responses.add(pipeline.hgetAll(key));
+                    }
+                    pipeline.sync();
+
+                    for (Response<Map<byte[], byte[]>> response : responses) {
+                        Map<byte[], byte[]> content = response.get();
+                        if (content != null && !content.isEmpty()) {
+                            transactions.add(TransactionStoreSerializer.deserialize(getSerializer(), content));
+                        }
+                    }
+                }
+
+                if (ShardOffset.SCAN_INIT_CURSOR.equals(scanResult.getCursor())) {
+                    shardOffset.setShardIndex(shardOffset.getShardIndex() + 1);
+                }
+                shardOffset.setCursor(scanResult.getCursor());
+            }
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+
+        return new Page<Transaction>(shardOffset.toString(), transactions);
+    }
+
+    /*
+     * the dead letter is on the node of the transaction key, but the sharded client routes by the dead letter key,
+     * so it is looked up on all shards and replayed on the one it is found.
+     * */
+    @Override
+    public int replayDeadLetter(Xid xid) {
+
+        if (!isDeadLetterSupported()) {
+            return 0;
+        }
+
+        byte[] key = RedisHelper.getRedisKey(getDomain(), xid);
+
+        List<byte[]> deadLetterKeys = new ArrayList<>();
+        deadLetterKeys.add(RedisHelper.getDeadLetterKey(key));
+
+        if (legacyKeyEnabled) {
+            deadLetterKeys.add(RedisHelper.getDeadLetterKey(RedisHelper.getLegacyRedisKey(getDomain(), xid)));
+        }
+
+        try (ShardHolder<Jedis> shardHolder = getShardHolder()) {
+
+            for (Jedis shard : shardHolder.getAllShards()) {
+
+                for (byte[] deadLetterKey : deadLetterKeys) {
+
+                    Map<byte[], byte[]> content = shard.hgetAll(deadLetterKey);
+
+                    if (content == null || content.isEmpty()) {
+                        continue;
+                    }
+
+                    Transaction transaction = TransactionStoreSerializer.deserialize(getSerializer(), content);
+                    resetDeadLetter(transaction);
+
+                    List<byte[]> params = new ArrayList<byte[]>();
+                    params.add(ByteUtils.longToBytes(transaction.getRecoveryTime().getTime()));
+
+                    for (Map.Entry<byte[], byte[]> entry : TransactionStoreSerializer.serialize(getSerializer(), transaction).entrySet()) {
+                        params.add(entry.getKey());
+                        params.add(entry.getValue());
+                    }
+
+                    List<byte[]> keys = new ArrayList<>(Arrays.asList(deadLetterKey, key));
+                    if (useIndex()) {
+                        keys.add(RedisHelper.getIndexKey(getDomain()));
+                    }
+
+                    // the shard is closed by the shard holder
+                    Object result = new JedisCommands(shard).evalScript(RedisHelper.REPLAY_DEAD_LETTER_SCRIPT, keys, params);
+
+                    return ((Long) result).intValue();
+                }
+            }
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+
+        return 0;
+    }
+
+    private int moveToDeadLetterByScriptCommand(byte[] key, long version) {
+
+        List<byte[]> keys = new ArrayList<>(Arrays.asList(key, RedisHelper.getDeadLetterKey(key)));
+        if (useIndex()) {
+            keys.add(RedisHelper.getIndexKey(getDomain()));
+        }
+
+        try (RedisCommands commands = getRedisCommands(key)) {
+
+            Object result = commands.evalScript(RedisHelper.MOVE_TO_DEAD_LETTER_SCRIPT, keys, Arrays.asList(ByteUtils.longToBytes(version)));
+
+            return ((Long) result).intValue();
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
     }
 
     @Override
-     List<Transaction> findTransactionsFromOneShard(Jedis shard, Set keys) {
+    protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
+
+        if (useIndex() && !indexBackfilled) {
+            backfillIndex();
+        }
+
+        return super.doFindAllUnmodifiedSince(date, offset, pageSize);
+    }
+
+    @Override
+    List<Transaction> findTransactionsFromOneShard(Jedis shard, Set keys) {
 
         List<Transaction> list = null;
 
+        List<byte[]> keyList = new ArrayList<byte[]>(keys.size());
+
+        for (Object key : keys) {
+            keyList.add((byte[]) key);
+        }
+
         Pipeline pipeline = shard.pipelined();
 
-        for (final Object key : keys) {
-            pipeline.hgetAll((byte[])key);
+        for (final byte[] key : keyList) {
+            pipeline.hgetAll(key);
         }
 
         List<Object> result = pipeline.syncAndReturnAll();
 
         list = new ArrayList<Transaction>();
 
-        for (Object data : result) {
+        List<byte[]> staleKeys = new ArrayList<byte[]>();
+
+        for (int i = 0; i < result.size(); i++) {
+
+            Object data = result.get(i);
 
             if (data != null && data instanceof Map && ((Map<byte[], byte[]>) data).size() > 0) {
                 list.add(TransactionStoreSerializer.deserialize(getSerializer(), (Map<byte[], byte[]>) data));
-            } else if (data instanceof JedisMovedDataException) {
+            } else if (data instanceof JedisRedirectionException) {
                 // ignore the data, this case may happen under redis cluster.
                 log.warn("ignore the data, this case may happen under redis cluster.", data);
+                onShardRedirected();
+            } else if (data instanceof Map && useIndex()) {
+                // the transaction was deleted without maintaining the index, e.g. deleted from dashboard.
+                staleKeys.add(keyList.get(i));
             } else {
                 log.warn("get transaction data failed. result is: " + data == null ? "null" : data.toString());
             }
         }
 
+        if (!staleKeys.isEmpty()) {
+            shard.zrem(RedisHelper.getIndexKey(getDomain()), staleKeys.toArray(new byte[0][]));
+        }
+
         return list;
     }
 
     @Override
-    Page<byte[]> findKeysFromOneShard(Jedis shard, String currentCursor, int maxFindCount) {
+    Page<byte[]> findKeysFromOneShard(Jedis shard, Date date, String currentCursor, int maxFindCount) {
+
+        if (useIndex()) {
+            return findKeysFromIndex(shard, date, currentCursor, maxFindCount);
+        }
 
         Page<byte[]> page = new Page<>();
 
         ScanParams scanParams = RedisHelper.buildDefaultScanParams(getDomain() + "*", maxFindCount);
 
-        ScanResult<String> scanResult = shard.scan(currentCursor, scanParams);
+        ScanResult<byte[]> scanResult = shard.scan(currentCursor.getBytes(), scanParams);
 
-        page.setData(scanResult.getResult().stream().map(v -> v.getBytes()).collect(Collectors.toList()));
+        page.setData(scanResult.getResult());
 
         page.setAttachment(scanResult.getCursor());
 
         return page;
     }
 
+    /*
+     * the members of the cursor score already returned are read again and skipped,
+     * more than one read only if that many transactions share the same recovery time.
+     * */
+    private Page<byte[]> findKeysFromIndex(Jedis shard, Date date, String currentCursor, int maxFindCount) {
+
+        Page<byte[]> page = new Page<>();
+
+        ScoreCursor cursor = new ScoreCursor(currentCursor);
+
+        byte[] indexKey = RedisHelper.getIndexKey(getDomain());
+
+        int offset = 0;
+
+        while (true) {
+
+            Set<Tuple> tuples = shard.zrangeByScoreWithScores(indexKey,
+                    cursor.getMin().getBytes(), ("(" + date.getTime()).getBytes(), offset, maxFindCount);
+
+            for (Tuple tuple : tuples) {
+
+                long score = (long) tuple.getScore();
+
+                if (!cursor.isAfter(score, tuple.getBinaryElement())) {
+                    continue;
+                }
+
+                page.getData().add(tuple.getBinaryElement());
+
+                if (page.getData().size() >= maxFindCount) {
+                    page.setAttachment(ScoreCursor.of(score, tuple.getBinaryElement()));
+                    return page;
+                }
+            }
+
+            if (tuples.size() < maxFindCount) {
+                break;
+            }
+
+            offset += tuples.size();
+        }
+
+        page.setAttachment(ShardOffset.SCAN_INIT_CURSOR);
+
+        return page;
+    }
+
+    /*
+     * add the keys written before the index was enabled, scored by their recovery time.
+     * */
+    private synchronized void backfillIndex() {
+
+        if (indexBackfilled) {
+            return;
+        }
+
+        byte[] indexKey = RedisHelper.getIndexKey(getDomain());
+
+        try (ShardHolder<Jedis> shardHolder = getShardHolder()) {
+
+            for (Jedis shard : shardHolder.getAllShards()) {
+
+                String cursor = RedisHelper.REDIS_SCAN_INIT_CURSOR;
+                ScanParams scanParams = RedisHelper.buildDefaultScanParams(getDomain() + "*", RedisHelper.SCAN_COUNT);
+
+                do {
+                    ScanResult<byte[]> scanResult = shard.scan(cursor.getBytes(), scanParams);
+
+                    if (!scanResult.getResult().isEmpty()) {
+                        backfillIndex(shard, indexKey, scanResult.getResult());
+                    }
+
+                    cursor = scanResult.getCursor();
+                } while (!RedisHelper.REDIS_SCAN_INIT_CURSOR.equals(cursor));
+            }
+
+            indexBackfilled = true;
+        } catch (Exception e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    private void backfillIndex(Jedis shard, byte[] indexKey, List<byte[]> keys) {
+
+        Pipeline pipeline = shard.pipelined();
+
+        List<Response<Map<byte[], byte[]>>> responses = new ArrayList<>();
+        for (byte[] key : keys) {
+            responses.add(pipeline.hgetAll(key));
+        }
+        pipeline.sync();
+
+        for (int i = 0; i < keys.size(); i++) {
+
+            try {
+                Map<byte[], byte[]> data = responses.get(i).get();
+
+                // deleted since scanned
+                if (data == null || data.isEmpty()) {
+                    continue;
+                }
+
+                Transaction transaction = TransactionStoreSerializer.deserialize(getSerializer(), data);
+                pipeline.zadd(indexKey, transaction.getRecoveryTime().getTime(), keys.get(i), ZAddParams.zAddParams().nx());
+            } catch (Exception e) {
+                log.warn("skip the transaction can not be read while backfilling index.", e);
+            }
+        }
+        pipeline.sync();
+    }
+
+    /*
+     * the shard answered MOVED/ASK, the slots have been migrated.
+     * */
+    protected void onShardRedirected() {
+    }
+
+    protected boolean useIndex() {
+        return indexEnabled && isIndexSupported();
+    }
+
+    /*
+     * the index key and the transaction key must be accessible in one script.
+     * */
+    protected boolean isIndexSupported() {
+        return true;
+    }
+
+    private List<byte[]> getScriptKeys(byte[] key) {
+        if (useIndex()) {
+            return Arrays.asList(key, RedisHelper.getIndexKey(getDomain()));
+        }
+        return Arrays.asList(key);
+    }
+
     protected abstract RedisCommands getRedisCommands(byte[] shardKey);
 
     public static class JedisComparator implements Comparator<Jedis> {
@@ -3,9 +3,13 @@ package org.mengyun.tcctransaction.repository;
 
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.TransactionOptimisticLockException;
+import org.mengyun.tcctransaction.api.TransactionStatus;
 
 import javax.transaction.xa.Xid;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * Created by changmingxie on 10/30/15.
@@ -51,6 +55,11 @@ public abstract class AbstractTransactionRepository implements TransactionReposi
         return transaction;
     }
 
+    @Override
+    public Map<Xid, TransactionStatus> findRootStatuses(Collection<Xid> xids) {
+        return doFindRootStatuses(xids);
+    }
+
     @Override
     public Page<Transaction> findAllUnmodifiedSince(Date date, String offset, int pageSize) {
 
@@ -71,4 +80,29 @@ public abstract class AbstractTransactionRepository implements TransactionReposi
 
     protected abstract Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize);
 
+    /*
+     * one by one by default, overridden by the remote repositories to look up in one round trip.
+     * */
+    protected Map<Xid, TransactionStatus> doFindRootStatuses(Collection<Xid> xids) {
+
+        Map<Xid, TransactionStatus> statuses = new HashMap<>();
+
+        for (Xid xid : xids) {
+            Transaction transaction = doFindRootOne(xid);
+            if (transaction != null) {
+                statuses.put(xid, transaction.getStatus());
+            }
+        }
+
+        return statuses;
+    }
+
+    /*
+     * the replayed dead letter keeps its last update time, so it is recovered by the next recovery.
+     * */
+    protected static void resetDeadLetter(Transaction transaction) {
+        transaction.setRetriedCount(0);
+        transaction.setNextRetryTime(null, 0);
+        transaction.setVersion(transaction.getVersion() + 1);
+    }
 }
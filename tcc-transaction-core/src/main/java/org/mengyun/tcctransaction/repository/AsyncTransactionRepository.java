@@ -0,0 +1,35 @@
+package org.mengyun.tcctransaction.repository;
+
+import org.mengyun.tcctransaction.Transaction;
+
+import javax.transaction.xa.Xid;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * 非阻塞的事务存储接口，写操作不占用调用线程，结果通过 CompletionStage 返回。
+ * updateAsync 版本不一致时以 TransactionOptimisticLockException 异常完成。
+ * 已完成事务的删除默认同步等待结果，isAsyncDeleteEnabled 为 true 时才不等待删除结果，删除失败的事务由恢复任务再次处理。
+ * 事务管理器与恢复任务通过 TransactionRepositoryHelper 使用这些方法。
+ */
+public interface AsyncTransactionRepository extends TransactionRepository {
+
+    CompletionStage<Integer> createAsync(Transaction transaction);
+
+    CompletionStage<Integer> updateAsync(Transaction transaction);
+
+    CompletionStage<Integer> deleteAsync(Transaction transaction);
+
+    CompletionStage<Transaction> findByXidAsync(Xid xid);
+
+    CompletionStage<Transaction> findByRootXidAsync(Xid xid);
+
+    /**
+     * 等待异步操作的结果，不超过存储器的命令超时，可被中断；
+     * 版本不一致时抛出 TransactionOptimisticLockException，其他失败抛出 TransactionIOException
+     */
+    <R> R await(CompletionStage<R> stage);
+
+    default boolean isAsyncDeleteEnabled() {
+        return false;
+    }
+}
@@ -0,0 +1,389 @@
+package org.mengyun.tcctransaction.repository;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
+import org.mengyun.tcctransaction.serializer.TransactionSerializer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.xa.Xid;
+import java.util.Collection;
+import java.util.Date;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * keeps copies of the recently written transactions in a bounded local cache in front of the target repository,
+ * findByXid of them is served locally without reading and deserializing from the target repository.
+ * <p/>
+ * write through by default. with writeBehindEnabled, the create of a transaction is kept locally and written to the target
+ * repository after writeBehindDelayMillis, the updates within the delay are merged into the pending create, a transaction
+ * deleted within the delay is never written, the pending creates are lost if the process crashes. updates of a transaction
+ * already written are always written through. a pending create rejected by the target repository is kept, reported by
+ * getRejectedWriteCount and the error log, and the later updates of the transaction fail with optimistic lock exception.
+ * <p/>
+ * the cached copies may be stale if the transaction is updated by other process, e.g. the recovery of another node,
+ * the update with a stale version fails with optimistic lock exception and evicts the copy, keep cacheExpireAfterWriteSeconds short.
+ */
+public class CachingTransactionRepository extends AbstractTransactionRepository {
+
+    static final Logger log = LoggerFactory.getLogger(CachingTransactionRepository.class.getSimpleName());
+
+    private static final int LOCK_STRIPES = 64;
+
+    private AbstractTransactionRepository targetTransactionRepository;
+
+    private TransactionSerializer serializer = new RegisterableKryoTransactionSerializer();
+
+    private long cacheMaximumSize = 10000;
+
+    private int cacheExpireAfterWriteSeconds = 10;
+
+    private boolean writeBehindEnabled = false;
+
+    private long writeBehindDelayMillis = 1000;
+
+    private Cache<Xid, Transaction> cache;
+
+    private final Map<Xid, PendingWrites> pendingWrites = new ConcurrentHashMap<>();
+
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
+    private final AtomicLong rejectedWriteCount = new AtomicLong();
+
+    private ScheduledExecutorService writeBehindExecutorService;
+
+    public void init() {
+
+        if (targetTransactionRepository == null) {
+            throw new SystemException("targetTransactionRepository cann't be null");
+        }
+
+        cache = CacheBuilder.newBuilder()
+                .maximumSize(cacheMaximumSize)
+                .expireAfterWrite(cacheExpireAfterWriteSeconds, TimeUnit.SECONDS)
+                .build();
+
+        if (writeBehindEnabled) {
+            writeBehindExecutorService = Executors.newSingleThreadScheduledExecutor(
+                    new ThreadFactoryBuilder().setNameFormat("tcc-write-behind-%d").setDaemon(true).build());
+
+            long period = Math.max(writeBehindDelayMillis / 2, 1);
+            writeBehindExecutorService.scheduleWithFixedDelay(() -> flush(false), period, period, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected int doCreate(Transaction transaction) {
+
+        if (!writeBehindEnabled) {
+            int result = targetTransactionRepository.doCreate(transaction);
+            cache.put(transaction.getXid(), serializer.clone(transaction));
+            return result;
+        }
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            Transaction copy = serializer.clone(transaction);
+            PendingWrites writes = new PendingWrites(copy);
+            pendingWrites.put(transaction.getXid(), writes);
+            cache.put(transaction.getXid(), copy);
+            return 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected int doUpdate(Transaction transaction) {
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            PendingWrites writes = pendingWrites.get(transaction.getXid());
+
+            if (writes == null) {
+
+                int result = targetTransactionRepository.doUpdate(transaction);
+
+                if (result > 0) {
+                    cache.put(transaction.getXid(), serializer.clone(transaction));
+                } else {
+                    cache.invalidate(transaction.getXid());
+                }
+                return result;
+            }
+
+            // same version check as the target repository, the pending create is the latest copy
+            if (writes.rejected || writes.create.getVersion() != transaction.getVersion()) {
+                return 0;
+            }
+
+            transaction.setVersion(transaction.getVersion() + 1);
+            transaction.setLastUpdateTime(new Date());
+
+            Transaction copy = serializer.clone(transaction);
+
+            writes.create = copy;
+            cache.put(transaction.getXid(), copy);
+            return 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected int doDelete(Transaction transaction) {
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            cache.invalidate(transaction.getXid());
+
+            PendingWrites writes = pendingWrites.get(transaction.getXid());
+
+            if (writes == null) {
+                return targetTransactionRepository.doDelete(transaction);
+            }
+
+            pendingWrites.remove(transaction.getXid());
+
+            if (writes.rejected) {
+                // the copy of the xid that rejected the create
+                return targetTransactionRepository.doDelete(transaction);
+            }
+
+            // never written to the target repository
+            return 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected Transaction doFindOne(Xid xid) {
+
+        PendingWrites writes = pendingWrites.get(xid);
+
+        if (writes != null) {
+            return serializer.clone(writes.create);
+        }
+
+        Transaction transaction = cache.getIfPresent(xid);
+
+        if (transaction != null) {
+            return serializer.clone(transaction);
+        }
+
+        return targetTransactionRepository.doFindOne(xid);
+    }
+
+    @Override
+    protected Transaction doFindRootOne(Xid xid) {
+        return targetTransactionRepository.doFindRootOne(xid);
+    }
+
+    @Override
+    protected Map<Xid, TransactionStatus> doFindRootStatuses(Collection<Xid> xids) {
+        return targetTransactionRepository.doFindRootStatuses(xids);
+    }
+
+    /*
+     * the pending transactions are younger than the write behind delay, not found by recovery.
+     * */
+    @Override
+    protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
+        return targetTransactionRepository.doFindAllUnmodifiedSince(date, offset, pageSize);
+    }
+
+    @Override
+    public boolean isDeadLetterSupported() {
+        return targetTransactionRepository.isDeadLetterSupported();
+    }
+
+    /*
+     * a transaction with pending writes is not moved, the version in the target repository is not the latest.
+     * */
+    @Override
+    public int moveToDeadLetter(Transaction transaction) {
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            if (pendingWrites.containsKey(transaction.getXid())) {
+                return 0;
+            }
+
+            cache.invalidate(transaction.getXid());
+            return targetTransactionRepository.moveToDeadLetter(transaction);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public Page<Transaction> findAllDeadLetters(String offset, int pageSize) {
+        return targetTransactionRepository.findAllDeadLetters(offset, pageSize);
+    }
+
+    @Override
+    public int replayDeadLetter(Xid xid) {
+        return targetTransactionRepository.replayDeadLetter(xid);
+    }
+
+    @Override
+    public String getDomain() {
+        return targetTransactionRepository.getDomain();
+    }
+
+    @Override
+    public String getRootDomain() {
+        return targetTransactionRepository.getRootDomain();
+    }
+
+    @Override
+    public void close() {
+
+        if (writeBehindExecutorService != null) {
+            writeBehindExecutorService.shutdown();
+            try {
+                writeBehindExecutorService.awaitTermination(writeBehindDelayMillis, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        flush(true);
+    }
+
+    /*
+     * writes the pending writes older than the delay, or all of them if force.
+     * */
+    private void flush(boolean force) {
+
+        long now = System.currentTimeMillis();
+
+        for (Map.Entry<Xid, PendingWrites> entry : pendingWrites.entrySet()) {
+
+            if (!force && now - entry.getValue().firstWriteTime < writeBehindDelayMillis) {
+                continue;
+            }
+
+            try {
+                flush(entry.getKey());
+            } catch (Throwable e) {
+                // kept and retried in the next round
+                log.error(String.format("write behind of transaction %s failed.", entry.getKey()), e);
+            }
+        }
+    }
+
+    private void flush(Xid xid) {
+
+        Lock lock = locks.get(xid);
+        lock.lock();
+
+        try {
+            PendingWrites writes = pendingWrites.get(xid);
+
+            if (writes == null || writes.rejected) {
+                return;
+            }
+
+            // the create and the updates in the delay are written as one create of the latest copy
+            if (targetTransactionRepository.doCreate(serializer.clone(writes.create)) <= 0) {
+                writes.rejected = true;
+                rejectedWriteCount.incrementAndGet();
+                log.error(String.format("write behind create of transaction %s version %d is rejected by target repository, kept locally.",
+                        xid, writes.create.getVersion()));
+                return;
+            }
+
+            pendingWrites.remove(xid);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * the acknowledged creates rejected by the target repository, see the class comment.
+     */
+    public long getRejectedWriteCount() {
+        return rejectedWriteCount.get();
+    }
+
+    public AbstractTransactionRepository getTargetTransactionRepository() {
+        return targetTransactionRepository;
+    }
+
+    public void setTargetTransactionRepository(AbstractTransactionRepository targetTransactionRepository) {
+        this.targetTransactionRepository = targetTransactionRepository;
+    }
+
+    public void setSerializer(TransactionSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    public long getCacheMaximumSize() {
+        return cacheMaximumSize;
+    }
+
+    public void setCacheMaximumSize(long cacheMaximumSize) {
+        this.cacheMaximumSize = cacheMaximumSize;
+    }
+
+    public int getCacheExpireAfterWriteSeconds() {
+        return cacheExpireAfterWriteSeconds;
+    }
+
+    public void setCacheExpireAfterWriteSeconds(int cacheExpireAfterWriteSeconds) {
+        this.cacheExpireAfterWriteSeconds = cacheExpireAfterWriteSeconds;
+    }
+
+    public boolean isWriteBehindEnabled() {
+        return writeBehindEnabled;
+    }
+
+    public void setWriteBehindEnabled(boolean writeBehindEnabled) {
+        this.writeBehindEnabled = writeBehindEnabled;
+    }
+
+    public long getWriteBehindDelayMillis() {
+        return writeBehindDelayMillis;
+    }
+
+    public void setWriteBehindDelayMillis(long writeBehindDelayMillis) {
+        this.writeBehindDelayMillis = writeBehindDelayMillis;
+    }
+
+    private static class PendingWrites {
+
+        private final long firstWriteTime = System.currentTimeMillis();
+
+        // the latest copy to create
+        private volatile Transaction create;
+
+        // the create is rejected by the target repository
+        private volatile boolean rejected;
+
+        private PendingWrites(Transaction create) {
+            this.create = create;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+package org.mengyun.tcctransaction.repository;
+
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.mengyun.tcctransaction.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.xa.Xid;
+import java.util.Date;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * moves the transactions written to the degraded repository during degradation back to the work repository
+ * once the sentinel controller no longer degrades, rate limited to migrationRatePerSecond.
+ * <p/>
+ * a transaction is created in the work repository with its version, then deleted from the degraded repository,
+ * under the lock of its xid shared with the fallback calls of SentinelTransactionRepository.
+ * a transaction already in the work repository with the same or a newer version is only deleted from the degraded repository,
+ * so an interrupted migration is just done again. one with an older version is a conflict, the work copy is updated to the degraded
+ * content once per missing version with the version checked, so it ends with the version the caller holds, then the degraded copy is deleted.
+ */
+public class DegradedTransactionMigrator {
+
+    static final Logger log = LoggerFactory.getLogger(DegradedTransactionMigrator.class.getSimpleName());
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final SentinelTransactionRepository sentinelTransactionRepository;
+
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
+    private final AtomicLong degradedWriteCount = new AtomicLong();
+
+    // the degradedWriteCount when the degraded repository is found empty, -1 before since it may be left from the last run
+    private volatile long drainedWriteCount = -1;
+
+    private final AtomicLong migratedCount = new AtomicLong();
+
+    private final AtomicLong conflictCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private volatile long lastRoundTime;
+
+    private RateLimiter rateLimiter;
+
+    private ScheduledExecutorService migrateExecutorService;
+
+    DegradedTransactionMigrator(SentinelTransactionRepository sentinelTransactionRepository) {
+        this.sentinelTransactionRepository = sentinelTransactionRepository;
+    }
+
+    void start() {
+
+        rateLimiter = RateLimiter.create(sentinelTransactionRepository.getMigrationRatePerSecond());
+
+        migrateExecutorService = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactoryBuilder().setNameFormat("tcc-degraded-migrate-%d").setDaemon(true).build());
+
+        int interval = sentinelTransactionRepository.getMigrationIntervalSeconds();
+        migrateExecutorService.scheduleWithFixedDelay(this::migrate, interval, interval, TimeUnit.SECONDS);
+    }
+
+    void stop() {
+
+        if (migrateExecutorService != null) {
+            migrateExecutorService.shutdownNow();
+        }
+    }
+
+    /*
+     * called after a transaction is written to the degraded repository.
+     * */
+    void degradedWritten() {
+        degradedWriteCount.incrementAndGet();
+    }
+
+    /*
+     * true if the degraded repository may have transactions not migrated yet.
+     * */
+    public boolean isPending() {
+        return degradedWriteCount.get() != drainedWriteCount;
+    }
+
+    Lock getLock(Xid xid) {
+        return locks.get(xid);
+    }
+
+    private void migrate() {
+
+        try {
+            migrateRound();
+        } catch (Throwable e) {
+            log.error("migrate degraded transactions failed.", e);
+        }
+    }
+
+    private void migrateRound() {
+
+        if (!isPending() || sentinelTransactionRepository.getSentinelController().degrade()) {
+            return;
+        }
+
+        lastRoundTime = System.currentTimeMillis();
+
+        long writeCount = degradedWriteCount.get();
+
+        AbstractTransactionRepository degradedTransactionRepository = sentinelTransactionRepository.getDegradedTransactionRepository();
+        int pageSize = sentinelTransactionRepository.getMigrationPageSize();
+
+        String offset = null;
+        int migrated = 0;
+        boolean remaining = false;
+
+        while (true) {
+
+            Page<Transaction> page = degradedTransactionRepository.doFindAllUnmodifiedSince(new Date(), offset, pageSize);
+
+            if (page.getData().isEmpty()) {
+                break;
+            }
+
+            for (Transaction transaction : page.getData()) {
+
+                if (sentinelTransactionRepository.getSentinelController().degrade()) {
+                    log.info(String.format("migrate degraded transactions paused after %d migrated.", migrated));
+                    return;
+                }
+
+                rateLimiter.acquire();
+
+                if (migrate(transaction.getXid())) {
+                    migrated++;
+                } else {
+                    remaining = true;
+                }
+            }
+
+            offset = page.getNextOffset();
+        }
+
+        if (!remaining) {
+            drainedWriteCount = writeCount;
+        }
+
+        if (migrated > 0) {
+            log.info(String.format("%d degraded transactions migrated to work repository, total migrated:%d, conflicts:%d, failures:%d",
+                    migrated, migratedCount.get(), conflictCount.get(), failedCount.get()));
+        }
+    }
+
+    /*
+     * returns true if the transaction is no longer in the degraded repository.
+     * */
+    private boolean migrate(Xid xid) {
+
+        if (sentinelTransactionRepository.isHedging(xid)) {
+            // migrated in the next round
+            return false;
+        }
+
+        AbstractTransactionRepository degradedTransactionRepository = sentinelTransactionRepository.getDegradedTransactionRepository();
+
+        Lock lock = getLock(xid);
+        lock.lock();
+
+        try {
+            // read again, it may be updated or deleted since found
+            Transaction transaction = degradedTransactionRepository.doFindOne(xid);
+
+            if (transaction == null) {
+                return true;
+            }
+
+            Transaction existing = sentinelTransactionRepository.callWork(() -> sentinelTransactionRepository.getWorkTransactionRepository().doFindOne(xid));
+
+            if (existing == null) {
+
+                if (sentinelTransactionRepository.callWork(() -> sentinelTransactionRepository.getWorkTransactionRepository().doCreate(transaction)) <= 0) {
+                    failedCount.incrementAndGet();
+                    return false;
+                }
+
+                migratedCount.incrementAndGet();
+
+            } else if (existing.getVersion() < transaction.getVersion()) {
+
+                conflictCount.incrementAndGet();
+
+                if (!updateWork(existing, transaction)) {
+                    failedCount.incrementAndGet();
+                    log.warn(String.format("transaction %s of version %d in work repository is changed while updated to newer version %d, retried in the next round.",
+                            xid, existing.getVersion(), transaction.getVersion()));
+                    return false;
+                }
+
+                migratedCount.incrementAndGet();
+            }
+
+            degradedTransactionRepository.doDelete(transaction);
+            return true;
+
+        } catch (Throwable e) {
+            failedCount.incrementAndGet();
+            log.error(String.format("migrate degraded transaction %s failed.", xid), e);
+            return false;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * each update checks the version of the work copy, so a write to it in between fails the migration.
+     * */
+    private boolean updateWork(Transaction existing, Transaction newer) {
+
+        Transaction transaction = sentinelTransactionRepository.getSerializer().clone(newer);
+        transaction.setVersion(existing.getVersion());
+
+        while (transaction.getVersion() < newer.getVersion()) {
+
+            long version = transaction.getVersion();
+
+            if (sentinelTransactionRepository.callWork(() -> sentinelTransactionRepository.getWorkTransactionRepository().doUpdate(transaction)) <= 0
+                    || transaction.getVersion() <= version) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    public long getMigratedCount() {
+        return migratedCount.get();
+    }
+
+    public long getConflictCount() {
+        return conflictCount.get();
+    }
+
+    public long getFailedCount() {
+        return failedCount.get();
+    }
+
+    public long getLastRoundTime() {
+        return lastRoundTime;
+    }
+}
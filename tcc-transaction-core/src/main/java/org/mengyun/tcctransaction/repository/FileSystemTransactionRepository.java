@@ -1,9 +1,14 @@
 package org.mengyun.tcctransaction.repository;
 
+import com.google.common.primitives.UnsignedBytes;
+import com.google.common.util.concurrent.Striped;
 import org.apache.commons.lang3.StringUtils;
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.repository.helper.ParallelShardOffset;
 import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
 import org.mengyun.tcctransaction.serializer.TransactionSerializer;
+import org.mengyun.tcctransaction.utils.ByteUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -21,14 +26,20 @@ import java.nio.file.Paths;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.List;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.concurrent.locks.Lock;
 
 public class FileSystemTransactionRepository extends AbstractTransactionRepository {
 
     static final Logger log = LoggerFactory.getLogger(FileSystemTransactionRepository.class.getSimpleName());
 
     private static final String FILE_NAME_DELIMITER = "&";
-    private static final String FILE_NAME_PATTERN = "*-*-*-*-*" + FILE_NAME_DELIMITER + "*-*-*-*-*";
+    private static final int LOCK_STRIPES = 64;
+    // matches both the hex file names and the legacy uuid file names
+    private static final String FILE_NAME_PATTERN = "*" + FILE_NAME_DELIMITER + "*";
 
     private String domain = "/var/log/";
 
@@ -36,6 +47,20 @@ public class FileSystemTransactionRepository extends AbstractTransactionReposito
 
     private volatile boolean initialized;
 
+    // serializes the version check and the write of the same transaction
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
+    // time ordered index of the stored files, keyed by the 8 bytes recovery time followed by the file name,
+    // recovery only reads the stale files. the domain is assumed to be written by this repository only.
+    private final ConcurrentSkipListSet<byte[]> timeIndex = new ConcurrentSkipListSet<>(UnsignedBytes.lexicographicalComparator());
+
+    private final ConcurrentHashMap<String, Long> lastUpdateTimes = new ConcurrentHashMap<>();
+
+    private volatile boolean indexBuilt;
+
+    // file names of the transactions still stored under the legacy file name, found while building the index
+    private final Set<String> legacyFileNames = ConcurrentHashMap.newKeySet();
+
     @Override
     public String getDomain() {
         return domain;
@@ -58,82 +83,136 @@ public class FileSystemTransactionRepository extends AbstractTransactionReposito
 
     @Override
     protected int doCreate(Transaction transaction) {
-        writeFile(transaction);
-        return 1;
+
+        ensureIndexBuilt();
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            writeFile(transaction);
+            index(transaction);
+            return 1;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     protected int doUpdate(Transaction transaction) {
 
-        Transaction foundTransaction = doFindOne(transaction.getXid());
-        if (foundTransaction.getVersion() != transaction.getVersion()) {
-            return 0;
-        }
+        ensureIndexBuilt();
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            Transaction foundTransaction = doFindOne(transaction.getXid());
+            if (foundTransaction == null || foundTransaction.getVersion() != transaction.getVersion()) {
+                return 0;
+            }
+
+            transaction.setVersion(transaction.getVersion() + 1);
+            transaction.setLastUpdateTime(new Date());
 
-        transaction.setVersion(transaction.getVersion() + 1);
-        transaction.setLastUpdateTime(new Date());
+            writeFile(transaction);
+            index(transaction);
 
-        writeFile(transaction);
-        return 1;
+            // move the transaction stored under the legacy file name
+            if (legacyFileNames.remove(getFileName(transaction.getXid()))) {
+                new File(getLegacyFullFileName(domain, transaction.getXid())).delete();
+            }
+            return 1;
+        } finally {
+            lock.unlock();
+        }
     }
 
     @Override
     protected int doDelete(Transaction transaction) {
-        String fullFileName = getFullFileName(transaction.getXid());
-        File file = new File(fullFileName);
-        if (file.exists()) {
-            return file.delete() ? 1 : 0;
+
+        ensureIndexBuilt();
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            String fileName = getFileName(transaction.getXid());
+            unindex(fileName);
+
+            File file = new File(getFullFileName(domain, transaction.getXid()));
+            if (legacyFileNames.remove(fileName) && !file.exists()) {
+                file = new File(getLegacyFullFileName(domain, transaction.getXid()));
+            }
+            if (file.exists()) {
+                return file.delete() ? 1 : 0;
+            }
+            return 1;
+        } finally {
+            lock.unlock();
         }
-        return 1;
     }
 
     @Override
     protected Transaction doFindOne(Xid xid) {
-        return doFind(domain,xid);
+        ensureIndexBuilt();
+        return doFind(domain, xid, legacyFileNames.contains(getFileName(xid)));
     }
 
     @Override
     protected Transaction doFindRootOne(Xid xid) {
-        return doFind(rootDomain,xid);
+        return doFind(rootDomain, xid, true);
     }
 
+    /*
+     * offset: hex of the time index key to start from, $ if the index is scanned to the date.
+     * */
     @Override
     protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
 
-        List<Transaction> fetchedTransactions = new ArrayList<>();
+        ensureIndexBuilt();
 
-        String tryFetchOffset = offset;
+        List<Transaction> transactions = new ArrayList<>();
 
-        int haveFetchedCount = 0;
+        if (ParallelShardOffset.FINISHED_CURSOR.equals(offset)) {
+            return new Page<Transaction>(offset, transactions);
+        }
 
-        do {
+        Set<byte[]> indexKeys = StringUtils.isEmpty(offset) ? timeIndex : timeIndex.tailSet(ByteUtils.hexToBytes(offset), true);
 
-            Page<Transaction> page = doFindAll(tryFetchOffset, pageSize - haveFetchedCount);
+        String nextOffset = ParallelShardOffset.FINISHED_CURSOR;
 
-            tryFetchOffset = page.getNextOffset();
+        for (byte[] indexKey : indexKeys) {
 
-            for (Transaction transaction : page.getData()) {
-                if (transaction.getLastUpdateTime().compareTo(date) < 0) {
-                    fetchedTransactions.add(transaction);
-                }
+            if (ByteBuffer.wrap(indexKey).getLong() >= date.getTime()) {
+                break;
             }
 
-            haveFetchedCount += page.getData().size();
-
-            if (page.getData().size() <= 0 || haveFetchedCount >= pageSize) {
+            if (transactions.size() >= pageSize) {
+                nextOffset = ByteUtils.bytesToHex(indexKey);
                 break;
             }
-        } while (true);
 
+            // only the stale files are read
+            String fileName = new String(indexKey, Long.BYTES, indexKey.length - Long.BYTES);
+            Transaction transaction = doFind(domain, toXid(fileName), legacyFileNames.contains(fileName));
+
+            if (transaction != null && transaction.getRecoveryTime().compareTo(date) < 0) {
+                transactions.add(transaction);
+            }
+        }
 
-        return new Page<Transaction>(tryFetchOffset, fetchedTransactions);
+        return new Page<Transaction>(nextOffset, transactions);
     }
 
-    private Transaction doFind(String domain,Xid xid) {
+    private Transaction doFind(String domain, Xid xid, boolean legacyFileNamePossible) {
         makeDirIfNecessary(domain);
 
-        String fullFileName = getFullFileName(xid);
-        File file = new File(fullFileName);
+        File file = new File(getFullFileName(domain, xid));
+
+        if (legacyFileNamePossible && !file.exists()) {
+            file = new File(getLegacyFullFileName(domain, xid));
+        }
 
         if (file.exists()) {
             return readTransaction(file);
@@ -142,67 +221,10 @@ public class FileSystemTransactionRepository extends AbstractTransactionReposito
         return null;
     }
 
-    /*
-     * offset: jedisIndex:cursor,eg = 0:0,1:0
-     * */
-    private Page<Transaction> doFindAll(String offset, int maxFindCount) {
-
-        makeDirIfNecessary(domain);
-
-        Page<Transaction> page = new Page<Transaction>();
-
-        Path dir = Paths.get(domain);
-
-        int currentOffset = StringUtils.isEmpty(offset) ? 0 : Integer.valueOf(offset);
-        int nextOffset = currentOffset;
-
-        int index = 0;
-
-        List<Transaction> transactions = new ArrayList<Transaction>();
-
-        try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, FILE_NAME_PATTERN)) {
-
-            for (Path path : stream) {
-
-                if (index < currentOffset) {
-                    index++;
-                    continue;
-                }
-
-                if (index < currentOffset + maxFindCount) {
-
-                    try {
-
-                        Transaction transaction = readTransaction(path.toFile());
-                        if (transaction != null) {
-                            transactions.add(transaction);
-                        }
-
-                    } catch (Exception e) {
-                        // ignore the read error.
-                    }
-
-                    index++;
-                    nextOffset = index;
-                } else {
-                    break;
-                }
-            }
-
-            page.setNextOffset(String.valueOf(nextOffset));
-            page.setData(transactions);
-
-            return page;
-
-        } catch (IOException e) {
-            throw new TransactionIOException(e);
-        }
-    }
-
     private void writeFile(Transaction transaction) {
         makeDirIfNecessary(domain);
 
-        String file = getFullFileName(transaction.getXid());
+        String file = getFullFileName(domain, transaction.getXid());
 
         FileChannel channel = null;
         RandomAccessFile raf = null;
@@ -284,7 +306,98 @@ public class FileSystemTransactionRepository extends AbstractTransactionReposito
         }
     }
 
-    private String getFullFileName(Xid xid) {
+    private String getFullFileName(String domain, Xid xid) {
+        StringBuilder stringBuilder = new StringBuilder(domain);
+        if (!domain.endsWith("/")) {
+            stringBuilder.append("/");
+        }
+        return stringBuilder.append(getFileName(xid)).toString();
+    }
+
+    private String getFileName(Xid xid) {
+        return ByteUtils.bytesToHex(xid.getGlobalTransactionId()) + FILE_NAME_DELIMITER + ByteUtils.bytesToHex(xid.getBranchQualifier());
+    }
+
+    private Xid toXid(String fileName) {
+        String[] ids = fileName.split(FILE_NAME_DELIMITER);
+        return new TransactionXid(ByteUtils.hexToBytes(ids[0]), ByteUtils.hexToBytes(ids[1]));
+    }
+
+    /*
+     * reads every file once, the index is kept by the writes of this repository since then.
+     * the legacy file names are only checked for the transactions found under them here.
+     * */
+    private void ensureIndexBuilt() {
+
+        if (indexBuilt) {
+            return;
+        }
+
+        synchronized (this) {
+
+            if (indexBuilt) {
+                return;
+            }
+
+            makeDirIfNecessary(domain);
+
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(Paths.get(domain), FILE_NAME_PATTERN)) {
+
+                for (Path path : stream) {
+                    try {
+                        Transaction transaction = readTransaction(path.toFile());
+                        if (transaction != null) {
+                            index(transaction);
+
+                            String fileName = getFileName(transaction.getXid());
+                            if (!fileName.equals(path.getFileName().toString())) {
+                                legacyFileNames.add(fileName);
+                            }
+                        }
+                    } catch (Exception e) {
+                        log.warn("skip the file can not be read while building index:" + path, e);
+                    }
+                }
+            } catch (IOException e) {
+                throw new TransactionIOException(e);
+            }
+
+            log.info(String.format("index built for %d transactions of %s", lastUpdateTimes.size(), domain));
+
+            indexBuilt = true;
+        }
+    }
+
+    private void index(Transaction transaction) {
+
+        String fileName = getFileName(transaction.getXid());
+        long lastUpdateTime = transaction.getRecoveryTime().getTime();
+
+        Long previous = lastUpdateTimes.put(fileName, lastUpdateTime);
+        if (previous != null) {
+            timeIndex.remove(toTimeIndexKey(previous, fileName));
+        }
+        timeIndex.add(toTimeIndexKey(lastUpdateTime, fileName));
+    }
+
+    private void unindex(String fileName) {
+
+        Long previous = lastUpdateTimes.remove(fileName);
+        if (previous != null) {
+            timeIndex.remove(toTimeIndexKey(previous, fileName));
+        }
+    }
+
+    // big endian, the keys are ordered by time as the time is positive
+    private static byte[] toTimeIndexKey(long lastUpdateTime, String fileName) {
+        byte[] name = fileName.getBytes();
+        return ByteBuffer.allocate(Long.BYTES + name.length).putLong(lastUpdateTime).put(name).array();
+    }
+
+    /*
+     * file name of the transactions stored before the hex file name is used.
+     * */
+    private String getLegacyFullFileName(String domain, Xid xid) {
         return String.format(domain.endsWith("/") ? "%s%s" + FILE_NAME_DELIMITER + "%s" : "%s/%s" + FILE_NAME_DELIMITER + "%s", domain,
                 UUID.nameUUIDFromBytes(xid.getGlobalTransactionId()).toString(),
                 UUID.nameUUIDFromBytes(xid.getBranchQualifier()).toString());
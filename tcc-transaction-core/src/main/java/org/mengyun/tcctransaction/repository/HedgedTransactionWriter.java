@@ -0,0 +1,265 @@
+package org.mengyun.tcctransaction.repository;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.Transaction;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.xa.Xid;
+import java.util.Date;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
+
+/**
+ * hedged writes of SentinelTransactionRepository.
+ * <p/>
+ * the write is issued to the work repository first, if not acknowledged within the latency percentile reported by
+ * the sentinel controller (bounded by hedgeMinDelayMillis and hedgeDelayMillis), the same write is also put to the degraded repository
+ * and the caller completes with the first one acknowledged. the work repository writes of a transaction are chained in order,
+ * the late ones still complete in background, so both repositories may have the transaction with the same version,
+ * the degraded copies are reconciled by DegradedTransactionMigrator.
+ * <p/>
+ * the version check of a hedged update is done against the copy of the degraded repository, or the copy of the work repository
+ * if the degraded repository has none, an update of a stale version is never acknowledged by the degraded repository.
+ * a late work repository write rejected by the version check leaves the newer copy in the degraded repository, recovered locally.
+ * a hedged delete is acknowledged when the deadline passes and completed in background.
+ */
+public class HedgedTransactionWriter {
+
+    static final Logger log = LoggerFactory.getLogger(HedgedTransactionWriter.class.getSimpleName());
+
+    private final SentinelTransactionRepository sentinelTransactionRepository;
+
+    private final DegradedTransactionMigrator migrator;
+
+    private final ConcurrentHashMap<Xid, CompletableFuture<Integer>> inflightWrites = new ConcurrentHashMap<>();
+
+    private final AtomicLong hedgedCount = new AtomicLong();
+
+    private final AtomicLong degradedAcknowledgedCount = new AtomicLong();
+
+    private ThreadPoolExecutor writeExecutor;
+
+    HedgedTransactionWriter(SentinelTransactionRepository sentinelTransactionRepository, DegradedTransactionMigrator migrator) {
+        this.sentinelTransactionRepository = sentinelTransactionRepository;
+        this.migrator = migrator;
+    }
+
+    void start() {
+
+        int threads = sentinelTransactionRepository.getHedgeThreadPoolSize();
+
+        writeExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<>(),
+                new ThreadFactoryBuilder().setNameFormat("tcc-hedged-write-%d").setDaemon(true).build());
+        writeExecutor.allowCoreThreadTimeOut(true);
+    }
+
+    void stop() {
+        if (writeExecutor != null) {
+            writeExecutor.shutdown();
+        }
+    }
+
+    boolean isInflight(Xid xid) {
+        return inflightWrites.containsKey(xid);
+    }
+
+    int create(Transaction transaction) {
+
+        Transaction workCopy = sentinelTransactionRepository.getSerializer().clone(transaction);
+        Transaction degradedCopy = sentinelTransactionRepository.getSerializer().clone(transaction);
+
+        return write(transaction, workCopy, () -> sentinelTransactionRepository.getWorkTransactionRepository().doCreate(workCopy), degradedCopy, false);
+    }
+
+    int update(Transaction transaction) {
+
+        Transaction workCopy = sentinelTransactionRepository.getSerializer().clone(transaction);
+        Transaction degradedCopy = sentinelTransactionRepository.getSerializer().clone(transaction);
+        degradedCopy.setVersion(transaction.getVersion() + 1);
+        degradedCopy.setLastUpdateTime(new Date());
+
+        return write(transaction, workCopy, () -> sentinelTransactionRepository.getWorkTransactionRepository().doUpdate(workCopy), degradedCopy, true);
+    }
+
+    int delete(Transaction transaction) {
+
+        CompletableFuture<Integer> future = submit(transaction.getXid(), () -> sentinelTransactionRepository.getWorkTransactionRepository().doDelete(transaction));
+
+        Lock lock = migrator.getLock(transaction.getXid());
+        lock.lock();
+        try {
+            sentinelTransactionRepository.getDegradedTransactionRepository().doDelete(transaction);
+        } finally {
+            lock.unlock();
+        }
+
+        try {
+            return future.get(getHedgeDelayNanos(), TimeUnit.NANOSECONDS);
+        } catch (TimeoutException e) {
+            hedgedCount.incrementAndGet();
+            future.whenComplete((result, throwable) -> {
+                if (throwable != null) {
+                    log.error(String.format("hedged delete of transaction %s failed, left to recovery.", transaction.getXid()), throwable);
+                }
+            });
+            return 1;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SystemException(e);
+        } catch (ExecutionException e) {
+            throw propagate(e);
+        }
+    }
+
+    private int write(Transaction transaction, Transaction workCopy, Supplier<Integer> workWrite, Transaction degradedCopy, boolean update) {
+
+        CompletableFuture<Integer> future = submit(transaction.getXid(), workWrite);
+
+        try {
+            int result = future.get(getHedgeDelayNanos(), TimeUnit.NANOSECONDS);
+
+            if (result > 0) {
+                acknowledge(transaction, workCopy);
+                return result;
+            }
+
+            // the previous update may be acknowledged by the degraded repository only
+            return update && migrator.isPending() ? writeDegraded(transaction, degradedCopy, true, false) : result;
+
+        } catch (TimeoutException e) {
+            hedgedCount.incrementAndGet();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new SystemException(e);
+        } catch (ExecutionException e) {
+            throw propagate(e);
+        }
+
+        int degradedResult = 0;
+
+        try {
+            degradedResult = writeDegraded(transaction, degradedCopy, false, update);
+        } catch (Throwable e) {
+            log.error(String.format("hedged write of transaction %s to degraded repository failed.", transaction.getXid()), e);
+        }
+
+        if (future.isDone() || degradedResult <= 0) {
+
+            try {
+                int result = Uninterruptibles.getUninterruptibly(future);
+                if (result > 0) {
+                    acknowledge(transaction, workCopy);
+                    return result;
+                }
+            } catch (ExecutionException e) {
+                if (degradedResult <= 0) {
+                    throw propagate(e);
+                }
+            }
+        }
+
+        if (degradedResult > 0) {
+            degradedAcknowledgedCount.incrementAndGet();
+            acknowledge(transaction, degradedCopy);
+        }
+
+        return degradedResult;
+    }
+
+    /*
+     * puts the copy with the version after the write, checked against the existing copy of the degraded repository,
+     * or against the copy of the work repository for an update without a degraded copy.
+     * */
+    private int writeDegraded(Transaction transaction, Transaction degradedCopy, boolean requireExisting, boolean checkWork) {
+
+        AbstractTransactionRepository degradedTransactionRepository = sentinelTransactionRepository.getDegradedTransactionRepository();
+
+        Lock lock = migrator.getLock(transaction.getXid());
+        lock.lock();
+
+        try {
+            Transaction existing = degradedTransactionRepository.doFindOne(transaction.getXid());
+
+            if (existing == null ? requireExisting : existing.getVersion() != transaction.getVersion()) {
+                return 0;
+            }
+
+            if (existing == null && checkWork) {
+
+                Transaction workExisting = sentinelTransactionRepository.callWork(
+                        () -> sentinelTransactionRepository.getWorkTransactionRepository().doFindOne(transaction.getXid()));
+
+                // a stale version, or the work write is already done and acknowledged by itself
+                if (workExisting == null || workExisting.getVersion() != transaction.getVersion()) {
+                    return 0;
+                }
+            }
+
+            int result = degradedTransactionRepository.doCreate(degradedCopy);
+
+            if (result > 0) {
+                migrator.degradedWritten();
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * the work repository writes of a transaction are issued after the previous one completes.
+     * */
+    private CompletableFuture<Integer> submit(Xid xid, Supplier<Integer> workWrite) {
+
+        Supplier<Integer> call = () -> sentinelTransactionRepository.callWork(workWrite);
+
+        CompletableFuture<Integer> future = inflightWrites.compute(xid, (key, previous) -> previous == null
+                ? CompletableFuture.supplyAsync(call, writeExecutor)
+                : previous.handle((result, throwable) -> null).thenApplyAsync(ignore -> call.get(), writeExecutor));
+
+        future.whenComplete((result, throwable) -> inflightWrites.remove(xid, future));
+
+        return future;
+    }
+
+    private void acknowledge(Transaction transaction, Transaction acknowledged) {
+        transaction.setVersion(acknowledged.getVersion());
+        transaction.setLastUpdateTime(acknowledged.getLastUpdateTime());
+    }
+
+    private long getHedgeDelayNanos() {
+
+        long maxDelay = TimeUnit.MILLISECONDS.toNanos(sentinelTransactionRepository.getHedgeDelayMillis());
+        long percentile = sentinelTransactionRepository.getSentinelController().getLatencyPercentileNanos();
+
+        if (percentile < 0) {
+            return maxDelay;
+        }
+
+        return Math.min(Math.max(percentile, TimeUnit.MILLISECONDS.toNanos(sentinelTransactionRepository.getHedgeMinDelayMillis())), maxDelay);
+    }
+
+    private RuntimeException propagate(ExecutionException e) {
+        Throwable cause = e.getCause();
+        return cause instanceof RuntimeException ? (RuntimeException) cause : new SystemException(cause);
+    }
+
+    public long getHedgedCount() {
+        return hedgedCount.get();
+    }
+
+    public long getDegradedAcknowledgedCount() {
+        return degradedAcknowledgedCount.get();
+    }
+}
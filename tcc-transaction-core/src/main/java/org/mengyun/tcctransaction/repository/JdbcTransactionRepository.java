@@ -3,23 +3,31 @@ package org.mengyun.tcctransaction.repository;
 import org.apache.commons.lang3.StringUtils;
 import org.mengyun.tcctransaction.Transaction;
 import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.api.TransactionXid;
 import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
 import org.mengyun.tcctransaction.serializer.TransactionSerializer;
 import org.mengyun.tcctransaction.utils.CollectionUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.sql.DataSource;
 import javax.transaction.xa.Xid;
 import java.sql.*;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Created by changmingxie on 10/30/15.
  */
 public class JdbcTransactionRepository extends AbstractTransactionRepository {
 
+    static final Logger log = LoggerFactory.getLogger(JdbcTransactionRepository.class.getSimpleName());
+
     /**
      * 领域，或者也可以称为模块名，应用名，用于唯一标识一个资源。例如，Maven 模块 xxx-order，我们可以配置该属性为 ORDER。
      */
@@ -41,6 +49,12 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
 
     private TransactionSerializer serializer = new RegisterableKryoTransactionSerializer();
 
+    /**
+     * 是否维护 NEXT_RETRY_TIME 列（见 db.sql），开启后恢复只查询到达重试时间的事务，未开启时退避中的事务仍会被查询出来再跳过；
+     * 该列保存退避事务的恢复时间（见 Transaction#getRecoveryTime），与 LAST_UPDATE_TIME 使用同一查询时间
+     */
+    private boolean nextRetryTimeEnabled = false;
+
     @Override
     public String getDomain() {
         return domain;
@@ -79,6 +93,14 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
         this.serializer = serializer;
     }
 
+    public boolean isNextRetryTimeEnabled() {
+        return nextRetryTimeEnabled;
+    }
+
+    public void setNextRetryTimeEnabled(boolean nextRetryTimeEnabled) {
+        this.nextRetryTimeEnabled = nextRetryTimeEnabled;
+    }
+
     public DataSource getDataSource() {
         return dataSource;
     }
@@ -91,38 +113,15 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
     protected int doCreate(Transaction transaction) {
 
         Connection connection = null;
-        PreparedStatement stmt = null;
 
         try {
             connection = this.getConnection();
 
-            StringBuilder builder = new StringBuilder();
-            builder.append("INSERT INTO " + getTableName() +
-                    "(GLOBAL_TX_ID,BRANCH_QUALIFIER,TRANSACTION_TYPE,CONTENT,STATUS,RETRIED_COUNT,CREATE_TIME,LAST_UPDATE_TIME,VERSION");
-            builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN) VALUES (?,?,?,?,?,?,?,?,?,?)" : ") VALUES (?,?,?,?,?,?,?,?,?)");
-
-            stmt = connection.prepareStatement(builder.toString());
-
-            stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
-            stmt.setBytes(2, transaction.getXid().getBranchQualifier());
-            stmt.setInt(3, transaction.getTransactionType().getId());
-            stmt.setBytes(4, serializer.serialize(transaction));
-            stmt.setInt(5, transaction.getStatus().getId());
-            stmt.setInt(6, transaction.getRetriedCount());
-            stmt.setTimestamp(7, new Timestamp(transaction.getCreateTime().getTime()));
-            stmt.setTimestamp(8, new Timestamp(transaction.getLastUpdateTime().getTime()));
-            stmt.setLong(9, transaction.getVersion());
-
-            if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(10, domain);
-            }
-
-            return stmt.executeUpdate();
+            return insert(connection, getTableName(), transaction);
 
         } catch (SQLException e) {
             throw new TransactionIOException(e);
         } finally {
-            closeStatement(stmt);
             this.releaseConnection(connection);
         }
     }
@@ -143,7 +142,9 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
 
             StringBuilder builder = new StringBuilder();
             builder.append("UPDATE " + getTableName() + " SET " +
-                    "CONTENT = ?,STATUS = ?,LAST_UPDATE_TIME = ?, RETRIED_COUNT = ?,VERSION = VERSION+1 WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? AND VERSION = ?");
+                    "CONTENT = ?,STATUS = ?,LAST_UPDATE_TIME = ?, RETRIED_COUNT = ?,VERSION = VERSION+1");
+            builder.append(nextRetryTimeEnabled ? ",NEXT_RETRY_TIME = ?" : "");
+            builder.append(" WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? AND VERSION = ?");
 
             builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
 
@@ -154,12 +155,19 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
             stmt.setTimestamp(3, new Timestamp(transaction.getLastUpdateTime().getTime()));
 
             stmt.setInt(4, transaction.getRetriedCount());
-            stmt.setBytes(5, transaction.getXid().getGlobalTransactionId());
-            stmt.setBytes(6, transaction.getXid().getBranchQualifier());
-            stmt.setLong(7, currentVersion);
+
+            int i = 4;
+
+            if (nextRetryTimeEnabled) {
+                stmt.setTimestamp(++i, toNextRetryTimestamp(transaction));
+            }
+
+            stmt.setBytes(++i, transaction.getXid().getGlobalTransactionId());
+            stmt.setBytes(++i, transaction.getXid().getBranchQualifier());
+            stmt.setLong(++i, currentVersion);
 
             if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(8, domain);
+                stmt.setString(++i, domain);
             }
 
             int result = stmt.executeUpdate();
@@ -236,17 +244,189 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
 
             builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
             builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
-            builder.append("  FROM " + getTableName() + " WHERE LAST_UPDATE_TIME < ?");
+            builder.append("  FROM " + getTableName());
+            builder.append(nextRetryTimeEnabled ? " WHERE (NEXT_RETRY_TIME IS NULL AND LAST_UPDATE_TIME < ? OR NEXT_RETRY_TIME < ?)" : " WHERE LAST_UPDATE_TIME < ?");
             builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
             builder.append(" ORDER BY TRANSACTION_ID ASC");
             builder.append(String.format(" LIMIT %s, %d", currentOffset, pageSize));
 
             stmt = connection.prepareStatement(builder.toString());
 
-            stmt.setTimestamp(1, new Timestamp(date.getTime()));
+            int i = 0;
+
+            stmt.setTimestamp(++i, new Timestamp(date.getTime()));
+
+            if (nextRetryTimeEnabled) {
+                stmt.setTimestamp(++i, new Timestamp(date.getTime()));
+            }
+
+            if (StringUtils.isNotEmpty(domain)) {
+                stmt.setString(++i, domain);
+            }
+
+            ResultSet resultSet = stmt.executeQuery();
+
+            this.constructTransactions(resultSet, transactions);
+        } catch (Throwable e) {
+            throw new TransactionIOException(e);
+        } finally {
+            closeStatement(stmt);
+            this.releaseConnection(connection);
+        }
+
+        return new Page<Transaction>(String.valueOf(currentOffset + transactions.size()), transactions);
+    }
+
+    /*
+     * only the status column of the root transactions, in one statement.
+     * */
+    @Override
+    protected Map<Xid, TransactionStatus> doFindRootStatuses(Collection<Xid> xids) {
+
+        Map<Xid, TransactionStatus> statuses = new HashMap<Xid, TransactionStatus>();
+
+        if (CollectionUtils.isEmpty(xids)) {
+            return statuses;
+        }
+
+        String rootDomain = getRootDomain();
+
+        Connection connection = null;
+        PreparedStatement stmt = null;
+
+        try {
+            connection = this.getConnection();
+
+            StringBuilder builder = new StringBuilder();
+            builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, STATUS FROM " + getRootTableName() + " WHERE (");
+
+            for (int i = 0; i < xids.size(); i++) {
+                builder.append(i == 0 ? "" : " OR").append(" ( GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? )");
+            }
+
+            builder.append(" )");
+            builder.append(StringUtils.isNotEmpty(rootDomain) ? " AND DOMAIN = ?" : "");
+
+            stmt = connection.prepareStatement(builder.toString());
+
+            int i = 0;
+
+            for (Xid xid : xids) {
+                stmt.setBytes(++i, xid.getGlobalTransactionId());
+                stmt.setBytes(++i, xid.getBranchQualifier());
+            }
+
+            if (StringUtils.isNotEmpty(rootDomain)) {
+                stmt.setString(++i, rootDomain);
+            }
+
+            ResultSet resultSet = stmt.executeQuery();
+
+            while (resultSet.next()) {
+                statuses.put(new TransactionXid(resultSet.getBytes(1), resultSet.getBytes(2)), TransactionStatus.valueOf(resultSet.getInt(3)));
+            }
+        } catch (Throwable e) {
+            throw new TransactionIOException(e);
+        } finally {
+            closeStatement(stmt);
+            this.releaseConnection(connection);
+        }
+
+        // keyed by the given xids
+        Map<Xid, TransactionStatus> result = new HashMap<Xid, TransactionStatus>();
+
+        for (Xid xid : xids) {
+            TransactionStatus status = statuses.get(new TransactionXid(xid.getGlobalTransactionId(), xid.getBranchQualifier()));
+            if (status != null) {
+                result.put(xid, status);
+            }
+        }
+
+        return result;
+    }
+
+    /**
+     * 死信表为 ${事务表名}_DEAD_LETTER，表结构与事务表相同（见 db.sql）
+     */
+    @Override
+    public boolean isDeadLetterSupported() {
+        return true;
+    }
+
+    /*
+     * deleted from the transaction table with the version check and inserted into the dead letter table in one local transaction.
+     * */
+    @Override
+    public int moveToDeadLetter(Transaction transaction) {
+
+        Connection connection = null;
+        PreparedStatement stmt = null;
+
+        try {
+            connection = this.getConnection();
+            connection.setAutoCommit(false);
+
+            StringBuilder builder = new StringBuilder();
+            builder.append("DELETE FROM " + getTableName() +
+                    " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ? AND VERSION = ?");
+
+            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+
+            stmt = connection.prepareStatement(builder.toString());
+
+            stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
+            stmt.setBytes(2, transaction.getXid().getBranchQualifier());
+            stmt.setLong(3, transaction.getVersion());
 
             if (StringUtils.isNotEmpty(domain)) {
-                stmt.setString(2, domain);
+                stmt.setString(4, domain);
+            }
+
+            if (stmt.executeUpdate() <= 0) {
+                connection.rollback();
+                return 0;
+            }
+
+            insert(connection, getDeadLetterTableName(), transaction);
+
+            connection.commit();
+            return 1;
+
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new TransactionIOException(e);
+        } finally {
+            closeStatement(stmt);
+            this.releaseConnection(connection);
+        }
+    }
+
+    @Override
+    public Page<Transaction> findAllDeadLetters(String offset, int pageSize) {
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+
+        Connection connection = null;
+        PreparedStatement stmt = null;
+
+        int currentOffset = StringUtils.isEmpty(offset) ? 0 : Integer.valueOf(offset);
+
+        try {
+            connection = this.getConnection();
+
+            StringBuilder builder = new StringBuilder();
+
+            builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
+            builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
+            builder.append("  FROM " + getDeadLetterTableName());
+            builder.append(StringUtils.isNotEmpty(domain) ? " WHERE DOMAIN = ?" : "");
+            builder.append(" ORDER BY TRANSACTION_ID ASC");
+            builder.append(String.format(" LIMIT %s, %d", currentOffset, pageSize));
+
+            stmt = connection.prepareStatement(builder.toString());
+
+            if (StringUtils.isNotEmpty(domain)) {
+                stmt.setString(1, domain);
             }
 
             ResultSet resultSet = stmt.executeQuery();
@@ -262,6 +442,102 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
         return new Page<Transaction>(String.valueOf(currentOffset + transactions.size()), transactions);
     }
 
+    @Override
+    public int replayDeadLetter(Xid xid) {
+
+        Transaction transaction = doFind(getDomain(), getDeadLetterTableName(), xid);
+
+        if (transaction == null) {
+            return 0;
+        }
+
+        resetDeadLetter(transaction);
+
+        Connection connection = null;
+        PreparedStatement stmt = null;
+
+        try {
+            connection = this.getConnection();
+            connection.setAutoCommit(false);
+
+            StringBuilder builder = new StringBuilder();
+            builder.append("DELETE FROM " + getDeadLetterTableName() +
+                    " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?");
+
+            builder.append(StringUtils.isNotEmpty(domain) ? " AND DOMAIN = ?" : "");
+
+            stmt = connection.prepareStatement(builder.toString());
+
+            stmt.setBytes(1, xid.getGlobalTransactionId());
+            stmt.setBytes(2, xid.getBranchQualifier());
+
+            if (StringUtils.isNotEmpty(domain)) {
+                stmt.setString(3, domain);
+            }
+
+            if (stmt.executeUpdate() <= 0) {
+                // replayed by others
+                connection.rollback();
+                return 0;
+            }
+
+            insert(connection, getTableName(), transaction);
+
+            connection.commit();
+            return 1;
+
+        } catch (SQLException e) {
+            rollback(connection);
+            throw new TransactionIOException(e);
+        } finally {
+            closeStatement(stmt);
+            this.releaseConnection(connection);
+        }
+    }
+
+    private int insert(Connection connection, String tableName, Transaction transaction) throws SQLException {
+
+        PreparedStatement stmt = null;
+
+        try {
+            StringBuilder builder = new StringBuilder();
+            builder.append("INSERT INTO " + tableName +
+                    "(GLOBAL_TX_ID,BRANCH_QUALIFIER,TRANSACTION_TYPE,CONTENT,STATUS,RETRIED_COUNT,CREATE_TIME,LAST_UPDATE_TIME,VERSION");
+            builder.append(nextRetryTimeEnabled ? ",NEXT_RETRY_TIME" : "");
+            builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
+            builder.append(") VALUES (?,?,?,?,?,?,?,?,?");
+            builder.append(nextRetryTimeEnabled ? ",?" : "");
+            builder.append(StringUtils.isNotEmpty(domain) ? ",?)" : ")");
+
+            stmt = connection.prepareStatement(builder.toString());
+
+            stmt.setBytes(1, transaction.getXid().getGlobalTransactionId());
+            stmt.setBytes(2, transaction.getXid().getBranchQualifier());
+            stmt.setInt(3, transaction.getTransactionType().getId());
+            stmt.setBytes(4, serializer.serialize(transaction));
+            stmt.setInt(5, transaction.getStatus().getId());
+            stmt.setInt(6, transaction.getRetriedCount());
+            stmt.setTimestamp(7, new Timestamp(transaction.getCreateTime().getTime()));
+            stmt.setTimestamp(8, new Timestamp(transaction.getLastUpdateTime().getTime()));
+            stmt.setLong(9, transaction.getVersion());
+
+            int i = 9;
+
+            if (nextRetryTimeEnabled) {
+                stmt.setTimestamp(++i, toNextRetryTimestamp(transaction));
+            }
+
+            if (StringUtils.isNotEmpty(domain)) {
+                stmt.setString(++i, domain);
+            }
+
+            return stmt.executeUpdate();
+
+        } finally {
+            closeStatement(stmt);
+        }
+    }
+
     private Transaction doFind(String domain, String tableName,Xid xid) {
 
         List<Transaction> transactions = doFinds(domain,tableName,Arrays.asList(xid));
@@ -289,7 +565,7 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
             StringBuilder builder = new StringBuilder();
             builder.append("SELECT GLOBAL_TX_ID, BRANCH_QUALIFIER, CONTENT,STATUS,TRANSACTION_TYPE,CREATE_TIME,LAST_UPDATE_TIME,RETRIED_COUNT,VERSION");
             builder.append(StringUtils.isNotEmpty(domain) ? ",DOMAIN" : "");
-            builder.append("  FROM " + getTableName() + " WHERE");
+            builder.append("  FROM " + tableName + " WHERE");
 
             if (!CollectionUtils.isEmpty(xids)) {
                 for (Xid xid : xids) {
@@ -339,6 +615,28 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
         }
     }
 
+    private Timestamp toTimestamp(Date date) {
+        return date == null ? null : new Timestamp(date.getTime());
+    }
+
+    /*
+     * NEXT_RETRY_TIME is compared with the same date as LAST_UPDATE_TIME, so it keeps the recovery time of the transaction
+     * in backoff, which is the next retry time minus the recover duration.
+     * */
+    private Timestamp toNextRetryTimestamp(Transaction transaction) {
+        return transaction.getNextRetryTime() == null ? null : toTimestamp(transaction.getRecoveryTime());
+    }
+
+    private void rollback(Connection connection) {
+        try {
+            if (connection != null && !connection.getAutoCommit()) {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            log.warn("rollback failed.", e);
+        }
+    }
+
     private Connection getConnection() {
         try {
             return this.dataSource.getConnection();
@@ -350,6 +648,9 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
     private void releaseConnection(Connection con) {
         try {
             if (con != null && !con.isClosed()) {
+                if (!con.getAutoCommit()) {
+                    con.setAutoCommit(true);
+                }
                 con.close();
             }
         } catch (SQLException e) {
@@ -372,6 +673,10 @@ public class JdbcTransactionRepository extends AbstractTransactionRepository {
     }
 
 
+    private String getDeadLetterTableName() {
+        return getTableName() + "_DEAD_LETTER";
+    }
+
     private String getRootTableName() {
         return StringUtils.isNotEmpty(rootTbSuffix) ? "AGG_TRANSACTION_" + rootTbSuffix : "AGG_TRANSACTION";
     }
@@ -12,13 +12,35 @@ import java.util.*;
 
 public class JedisClusterTransactionRepository extends AbstractRedisTransactionRepository {
 
+    private static final int MASTER_NODE_INDEX = 2;
+
     private JedisCluster jedisCluster;
 
+    /**
+     * interval in milliseconds to discover the master nodes again, the topology is also refreshed on MOVED/ASK.
+     */
+    private long topologyRefreshInterval = 60 * 1000L;
+
+    private volatile List<String> sortedMasterNodeKeys;
+
+    private volatile long lastTopologyRefreshTime;
+
     @Override
     protected RedisCommands getRedisCommands(byte[] shardKey) {
         return new JedisClusterCommands(jedisCluster);
     }
 
+    @Override
+    protected boolean isIndexSupported() {
+        // the index key and transaction keys are in different slots, keep scanning the keys under cluster.
+        return false;
+    }
+
+    @Override
+    protected void onShardRedirected() {
+        lastTopologyRefreshTime = 0;
+    }
+
     @Override
     protected ShardHolder<Jedis> getShardHolder() {
         return new JedisClusterShardHolder();
@@ -32,9 +54,15 @@ public class JedisClusterTransactionRepository extends AbstractRedisTransactionR
         this.jedisCluster = jedisCluster;
     }
 
-    class JedisClusterShardHolder implements ShardHolder<Jedis> {
+    public long getTopologyRefreshInterval() {
+        return topologyRefreshInterval;
+    }
 
-        private static final int MASTER_NODE_INDEX = 2;
+    public void setTopologyRefreshInterval(long topologyRefreshInterval) {
+        this.topologyRefreshInterval = topologyRefreshInterval;
+    }
+
+    class JedisClusterShardHolder implements ShardHolder<Jedis> {
 
         private List<Jedis> allShards = new ArrayList<>();
 
@@ -57,76 +85,135 @@ public class JedisClusterTransactionRepository extends AbstractRedisTransactionR
 
             if (allShards.isEmpty()) {
 
-                Map<String, JedisPool> clusterNodes = jedisCluster.getClusterNodes();
+                try {
+                    borrowShards(getSortedMasterNodeKeys(false));
+                } catch (JedisException e) {
+                    // the cached master may be removed from the cluster, discover the topology again.
+                    log.warn("borrow jedis from cached master nodes failed, refresh the cluster topology.", e);
+                    closeQuietly();
+
+                    try {
+                        borrowShards(getSortedMasterNodeKeys(true));
+                    } catch (JedisException ex) {
+                        // no partial shard list is returned
+                        closeQuietly();
+                        throw ex;
+                    }
+                }
+            }
 
-                Set<String> masterNodeKeys = getMasterNodeKeys(clusterNodes);
+            return allShards;
+        }
 
-                for (String masterNodeKey : masterNodeKeys) {
+        private void borrowShards(List<String> masterNodeKeys) {
 
-                    JedisPool jedisPool = clusterNodes.get(masterNodeKey);
+            Map<String, JedisPool> clusterNodes = jedisCluster.getClusterNodes();
 
-                    if (jedisPool != null) {
-                        Jedis jedis = clusterNodes.get(masterNodeKey).getResource();
-                        allShards.add(jedis);
-                    }
+            for (String masterNodeKey : masterNodeKeys) {
+
+                JedisPool jedisPool = clusterNodes.get(masterNodeKey);
+
+                if (jedisPool == null) {
+                    // jedis cluster not aware of the new master yet, skipping it would shift the shard index in offset,
+                    // so the page fails and the topology is discovered again.
+                    onShardRedirected();
+                    throw new JedisException("no jedis pool found for master node " + masterNodeKey);
                 }
 
-                allShards.sort(new AbstractRedisTransactionRepository.JedisComparator());
+                allShards.add(jedisPool.getResource());
             }
-
-            return allShards;
         }
 
-        private Set<String> getMasterNodeKeys(Map<String, JedisPool> clusterNodes) {
-            Set<String> masterNodeKeys = new HashSet<>();
-
-            for (Map.Entry<String, JedisPool> entry : clusterNodes.entrySet()) {
+        private void closeQuietly() {
+            try {
+                close();
+            } catch (IOException e) {
+                // ignore
+            }
+            allShards.clear();
+        }
+    }
 
-                try (Jedis jedis = entry.getValue().getResource()) {
+    /*
+     * the sorted master node keys are cached unless empty, so that the shard index in offset keeps pointing to the same master.
+     * */
+    private List<String> getSortedMasterNodeKeys(boolean forceRefresh) {
 
-                    List<Object> slots = jedis.clusterSlots();
+        if (forceRefresh || isTopologyExpired()) {
 
-                    for (Object slotInfoObj : slots) {
-                        List<Object> slotInfo = (List<Object>) slotInfoObj;
+            synchronized (this) {
 
-                        if (slotInfo.size() <= MASTER_NODE_INDEX) {
-                            continue;
-                        }
+                if (forceRefresh || isTopologyExpired()) {
 
-                        // hostInfos
-                        List<Object> hostInfos = (List<Object>) slotInfo.get(MASTER_NODE_INDEX);
-                        if (hostInfos.isEmpty()) {
-                            continue;
-                        }
+                    List<String> masterNodeKeys = new ArrayList<>(getMasterNodeKeys(jedisCluster.getClusterNodes()));
+                    Collections.sort(masterNodeKeys);
 
-                        // at this time, we just use master, discard slave information
-                        HostAndPort node = generateHostAndPort(hostInfos);
-                        masterNodeKeys.add(JedisClusterInfoCache.getNodeKey(node));
+                    if (masterNodeKeys.isEmpty()) {
+                        // the cluster nodes are not discovered yet or being refreshed, not cached so that discovered again on next call.
+                        log.warn("no master node found in the cluster, discover the cluster topology again on next call.");
+                        return masterNodeKeys;
                     }
 
-                    break;
-                } catch (Exception e) {
-                    // try next jedispool
+                    sortedMasterNodeKeys = masterNodeKeys;
+                    lastTopologyRefreshTime = System.currentTimeMillis();
                 }
             }
-            return masterNodeKeys;
         }
 
-        private HostAndPort generateHostAndPort(List<Object> hostInfos) {
-            String host = encode((byte[]) hostInfos.get(0));
-            int port = ((Long) hostInfos.get(1)).intValue();
-            return new HostAndPort(host, port);
-        }
+        return sortedMasterNodeKeys;
+    }
 
+    private boolean isTopologyExpired() {
+        return sortedMasterNodeKeys == null || System.currentTimeMillis() - lastTopologyRefreshTime > topologyRefreshInterval;
+    }
 
-        private String encode(final byte[] data) {
-            try {
-                return new String(data, Protocol.CHARSET);
-            } catch (UnsupportedEncodingException e) {
-                throw new JedisException(e);
+    private Set<String> getMasterNodeKeys(Map<String, JedisPool> clusterNodes) {
+        Set<String> masterNodeKeys = new HashSet<>();
+
+        for (Map.Entry<String, JedisPool> entry : clusterNodes.entrySet()) {
+
+            try (Jedis jedis = entry.getValue().getResource()) {
+
+                List<Object> slots = jedis.clusterSlots();
+
+                for (Object slotInfoObj : slots) {
+                    List<Object> slotInfo = (List<Object>) slotInfoObj;
+
+                    if (slotInfo.size() <= MASTER_NODE_INDEX) {
+                        continue;
+                    }
+
+                    // hostInfos
+                    List<Object> hostInfos = (List<Object>) slotInfo.get(MASTER_NODE_INDEX);
+                    if (hostInfos.isEmpty()) {
+                        continue;
+                    }
+
+                    // at this time, we just use master, discard slave information
+                    HostAndPort node = generateHostAndPort(hostInfos);
+                    masterNodeKeys.add(JedisClusterInfoCache.getNodeKey(node));
+                }
+
+                break;
+            } catch (Exception e) {
+                // try next jedispool
             }
         }
+        return masterNodeKeys;
+    }
+
+    private HostAndPort generateHostAndPort(List<Object> hostInfos) {
+        String host = encode((byte[]) hostInfos.get(0));
+        int port = ((Long) hostInfos.get(1)).intValue();
+        return new HostAndPort(host, port);
     }
 
-}
 
+    private String encode(final byte[] data) {
+        try {
+            return new String(data, Protocol.CHARSET);
+        } catch (UnsupportedEncodingException e) {
+            throw new JedisException(e);
+        }
+    }
+}
@@ -0,0 +1,594 @@
+package org.mengyun.tcctransaction.repository;
+
+import io.lettuce.core.*;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.api.sync.RedisCommands;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisClusterAsyncCommands;
+import io.lettuce.core.cluster.models.partitions.RedisClusterNode;
+import io.lettuce.core.codec.ByteArrayCodec;
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.TransactionOptimisticLockException;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.repository.helper.*;
+import org.mengyun.tcctransaction.utils.ByteUtils;
+
+import javax.transaction.xa.Xid;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.function.Function;
+
+/**
+ * Redis transaction repository on lettuce, commands of all threads are pipelined on a few shared connections.
+ * set redisClient for standalone redis, or redisClusterClient for redis cluster.
+ * <p/>
+ * As the storage of transaction need safely durable,make sure the redis server is set as AOF mode and always fsync.
+ */
+public class LettuceTransactionRepository extends AbstractKVStoreTransactionRepository<RedisCommands<byte[], byte[]>> implements AsyncTransactionRepository {
+
+    private RedisClient redisClient;
+
+    private RedisClusterClient redisClusterClient;
+
+    /**
+     * maintain the time index under standalone redis, see AbstractRedisTransactionRepository.
+     */
+    private boolean indexEnabled = true;
+
+    private volatile boolean indexBackfilled = false;
+
+    /**
+     * also look up the transactions stored under the legacy string key, see AbstractRedisTransactionRepository.
+     */
+    private boolean legacyKeyEnabled = true;
+
+    /**
+     * the completed transactions are deleted without waiting for the result, see AsyncTransactionRepository.
+     */
+    private boolean asyncDeleteEnabled = false;
+
+    private volatile StatefulRedisConnection<byte[], byte[]> connection;
+
+    private volatile StatefulRedisClusterConnection<byte[], byte[]> clusterConnection;
+
+    public RedisClient getRedisClient() {
+        return redisClient;
+    }
+
+    public void setRedisClient(RedisClient redisClient) {
+        this.redisClient = redisClient;
+    }
+
+    public RedisClusterClient getRedisClusterClient() {
+        return redisClusterClient;
+    }
+
+    public void setRedisClusterClient(RedisClusterClient redisClusterClient) {
+        this.redisClusterClient = redisClusterClient;
+    }
+
+    public boolean isIndexEnabled() {
+        return indexEnabled;
+    }
+
+    public void setIndexEnabled(boolean indexEnabled) {
+        this.indexEnabled = indexEnabled;
+    }
+
+    public boolean isLegacyKeyEnabled() {
+        return legacyKeyEnabled;
+    }
+
+    public void setLegacyKeyEnabled(boolean legacyKeyEnabled) {
+        this.legacyKeyEnabled = legacyKeyEnabled;
+    }
+
+    @Override
+    public boolean isAsyncDeleteEnabled() {
+        return asyncDeleteEnabled;
+    }
+
+    public void setAsyncDeleteEnabled(boolean asyncDeleteEnabled) {
+        this.asyncDeleteEnabled = asyncDeleteEnabled;
+    }
+
+    public void init() {
+
+        if (connection == null && clusterConnection == null) {
+
+            synchronized (this) {
+
+                if (connection == null && clusterConnection == null) {
+
+                    if (redisClusterClient != null) {
+                        clusterConnection = redisClusterClient.connect(ByteArrayCodec.INSTANCE);
+                    } else if (redisClient != null) {
+                        connection = redisClient.connect(ByteArrayCodec.INSTANCE);
+                    } else {
+                        throw new SystemException("redisClient or redisClusterClient is required.");
+                    }
+                }
+            }
+        }
+    }
+
+    @Override
+    public CompletionStage<Integer> createAsync(Transaction transaction) {
+        transaction.setVersion(1l);
+        return doCreateAsync(transaction);
+    }
+
+    @Override
+    public CompletionStage<Integer> updateAsync(Transaction transaction) {
+        return doUpdateAsync(transaction).thenApply(result -> {
+            if (result <= 0) {
+                throw new TransactionOptimisticLockException();
+            }
+            return result;
+        });
+    }
+
+    @Override
+    public CompletionStage<Integer> deleteAsync(Transaction transaction) {
+        return evalScript(RedisHelper.DELETE_SCRIPT,
+                getScriptKeys(RedisHelper.getRedisKey(getDomain(), transaction.getXid())),
+                Collections.emptyList())
+                .thenCompose(result -> {
+                    if (result <= 0 && legacyKeyEnabled) {
+                        return evalScript(RedisHelper.DELETE_SCRIPT,
+                                getScriptKeys(RedisHelper.getLegacyRedisKey(getDomain(), transaction.getXid())),
+                                Collections.emptyList());
+                    }
+                    return CompletableFuture.completedFuture(result);
+                });
+    }
+
+    @Override
+    public CompletionStage<Transaction> findByXidAsync(Xid xid) {
+        return findAsync(getDomain(), xid);
+    }
+
+    @Override
+    public CompletionStage<Transaction> findByRootXidAsync(Xid xid) {
+        return findAsync(getRootDomain(), xid);
+    }
+
+    @Override
+    protected int doCreate(Transaction transaction) {
+        return await(doCreateAsync(transaction));
+    }
+
+    @Override
+    protected int doUpdate(Transaction transaction) {
+        return await(doUpdateAsync(transaction));
+    }
+
+    @Override
+    protected int doDelete(Transaction transaction) {
+        return await(deleteAsync(transaction));
+    }
+
+    @Override
+    protected Transaction doFindOne(Xid xid) {
+        return await(findByXidAsync(xid));
+    }
+
+    @Override
+    protected Transaction doFindRootOne(Xid xid) {
+        return await(findByRootXidAsync(xid));
+    }
+
+    private CompletionStage<Integer> doCreateAsync(Transaction transaction) {
+
+        List<byte[]> params = new ArrayList<byte[]>();
+
+        params.add(ByteUtils.longToBytes(transaction.getRecoveryTime().getTime()));
+
+        addFields(params, transaction);
+
+        return evalScript(RedisHelper.CREATE_SCRIPT,
+                getScriptKeys(RedisHelper.getRedisKey(getDomain(), transaction.getXid())),
+                params);
+    }
+
+    private CompletionStage<Integer> doUpdateAsync(Transaction transaction) {
+
+        transaction.setLastUpdateTime(new Date());
+        transaction.setVersion(transaction.getVersion() + 1);
+
+        List<byte[]> params = new ArrayList<byte[]>();
+
+        params.add(ByteUtils.longToBytes(transaction.getVersion() - 1));
+        params.add(ByteUtils.longToBytes(transaction.getRecoveryTime().getTime()));
+
+        addFields(params, transaction);
+
+        return evalScript(RedisHelper.UPDATE_SCRIPT,
+                getScriptKeys(RedisHelper.getRedisKey(getDomain(), transaction.getXid())),
+                params)
+                .thenCompose(result -> {
+                    if (result < 0 && legacyKeyEnabled) {
+                        return evalScript(RedisHelper.UPDATE_SCRIPT,
+                                getScriptKeys(RedisHelper.getLegacyRedisKey(getDomain(), transaction.getXid())),
+                                params);
+                    }
+                    return CompletableFuture.completedFuture(result);
+                })
+                .thenApply(result -> result < 0 ? 0 : result);
+    }
+
+    /*
+     * the status fields of the root transactions are read asynchronously, pipelined by the connection.
+     * */
+    @Override
+    protected Map<Xid, TransactionStatus> doFindRootStatuses(Collection<Xid> xids) {
+
+        Map<Xid, CompletionStage<TransactionStatus>> futures = new LinkedHashMap<>();
+
+        for (Xid xid : xids) {
+            futures.put(xid, findStatusAsync(getRootDomain(), xid));
+        }
+
+        Map<Xid, TransactionStatus> statuses = new HashMap<>();
+
+        for (Map.Entry<Xid, CompletionStage<TransactionStatus>> entry : futures.entrySet()) {
+            TransactionStatus status = await(entry.getValue());
+            if (status != null) {
+                statuses.put(entry.getKey(), status);
+            }
+        }
+
+        return statuses;
+    }
+
+    private CompletionStage<TransactionStatus> findStatusAsync(String domain, Xid xid) {
+        return getAsyncCommands().hget(RedisHelper.getRedisKey(domain, xid), TransactionStoreSerializer.STATUS).thenCompose(status -> {
+            if (status != null) {
+                return CompletableFuture.completedFuture(TransactionStatus.valueOf(ByteUtils.bytesToInt(status)));
+            }
+            if (legacyKeyEnabled) {
+                return findAsync(RedisHelper.getLegacyRedisKey(domain, xid)).thenApply(transaction -> transaction == null ? null : transaction.getStatus());
+            }
+            return CompletableFuture.completedFuture(null);
+        });
+    }
+
+    private CompletionStage<Transaction> findAsync(String domain, Xid xid) {
+        return findAsync(RedisHelper.getRedisKey(domain, xid)).thenCompose(transaction -> {
+            if (transaction == null && legacyKeyEnabled) {
+                return findAsync(RedisHelper.getLegacyRedisKey(domain, xid));
+            }
+            return CompletableFuture.completedFuture(transaction);
+        });
+    }
+
+    private CompletionStage<Transaction> findAsync(byte[] key) {
+        return getAsyncCommands().hgetall(key).thenApply(content -> {
+            if (content != null && content.size() > 0) {
+                return TransactionStoreSerializer.deserialize(getSerializer(), content);
+            }
+            return null;
+        });
+    }
+
+    private void addFields(List<byte[]> params, Transaction transaction) {
+        for (Map.Entry<byte[], byte[]> entry : TransactionStoreSerializer.serialize(getSerializer(), transaction)
+                .entrySet()) {
+            params.add(entry.getKey());
+            params.add(entry.getValue());
+        }
+    }
+
+    private CompletionStage<Integer> evalScript(RedisScript script, List<byte[]> keys, List<byte[]> params) {
+
+        RedisClusterAsyncCommands<byte[], byte[]> commands = getAsyncCommands();
+
+        byte[][] keyArray = keys.toArray(new byte[0][]);
+        byte[][] paramArray = params.toArray(new byte[0][]);
+
+        return commands.<Long>evalsha(new String(script.getSha1(), StandardCharsets.UTF_8), ScriptOutputType.INTEGER, keyArray, paramArray)
+                .<CompletionStage<Long>>handle((result, e) -> {
+                    if (e == null) {
+                        return CompletableFuture.completedFuture(result);
+                    }
+                    if (e instanceof RedisNoScriptException) {
+                        // script cache flushed or node restarted, EVAL loads the script into the cache again.
+                        return commands.<Long>eval(new String(script.getScript(), StandardCharsets.UTF_8), ScriptOutputType.INTEGER, keyArray, paramArray);
+                    }
+                    CompletableFuture<Long> failed = new CompletableFuture<>();
+                    failed.completeExceptionally(e);
+                    return failed;
+                })
+                .thenCompose(Function.identity())
+                .thenApply(Long::intValue);
+    }
+
+    @Override
+    protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
+
+        if (useIndex() && !indexBackfilled) {
+            backfillIndex();
+        }
+
+        return super.doFindAllUnmodifiedSince(date, offset, pageSize);
+    }
+
+    @Override
+    List<Transaction> findTransactionsFromOneShard(RedisCommands<byte[], byte[]> shard, Set keys) {
+
+        List<byte[]> keyList = new ArrayList<byte[]>(keys.size());
+
+        for (Object key : keys) {
+            keyList.add((byte[]) key);
+        }
+
+        RedisAsyncCommands<byte[], byte[]> asyncCommands = shard.getStatefulConnection().async();
+
+        List<RedisFuture<Map<byte[], byte[]>>> futures = new ArrayList<>();
+
+        for (byte[] key : keyList) {
+            futures.add(asyncCommands.hgetall(key));
+        }
+
+        List<Transaction> list = new ArrayList<Transaction>();
+
+        List<byte[]> staleKeys = new ArrayList<byte[]>();
+
+        for (int i = 0; i < futures.size(); i++) {
+
+            try {
+                Map<byte[], byte[]> data = futures.get(i).get();
+
+                if (data != null && data.size() > 0) {
+                    list.add(TransactionStoreSerializer.deserialize(getSerializer(), data));
+                } else if (useIndex()) {
+                    staleKeys.add(keyList.get(i));
+                }
+            } catch (ExecutionException e) {
+                // MOVED may happen under redis cluster while the slots are migrating.
+                log.warn("get transaction data failed.", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new TransactionIOException(e);
+            }
+        }
+
+        if (!staleKeys.isEmpty()) {
+            shard.zrem(RedisHelper.getIndexKey(getDomain()), staleKeys.toArray(new byte[0][]));
+        }
+
+        return list;
+    }
+
+    @Override
+    Page<byte[]> findKeysFromOneShard(RedisCommands<byte[], byte[]> shard, Date date, String currentCursor, int maxFindCount) {
+
+        if (useIndex()) {
+            return findKeysFromIndex(shard, date, currentCursor, maxFindCount);
+        }
+
+        Page<byte[]> page = new Page<>();
+
+        KeyScanCursor<byte[]> scanCursor = shard.scan(ScanCursor.of(currentCursor),
+                ScanArgs.Builder.matches(getDomain() + "*").limit(maxFindCount));
+
+        page.setData(scanCursor.getKeys());
+        page.setAttachment(scanCursor.isFinished() ? ShardOffset.SCAN_INIT_CURSOR : scanCursor.getCursor());
+
+        return page;
+    }
+
+    /*
+     * the members of the cursor score already returned are read again and skipped,
+     * more than one read only if that many transactions share the same recovery time.
+     * */
+    private Page<byte[]> findKeysFromIndex(RedisCommands<byte[], byte[]> shard, Date date, String currentCursor, int maxFindCount) {
+
+        Page<byte[]> page = new Page<>();
+
+        ScoreCursor cursor = new ScoreCursor(currentCursor);
+
+        Range<Long> range = Range.from(cursor.isInit() ? Range.Boundary.<Long>unbounded() : Range.Boundary.including(cursor.getScore()),
+                Range.Boundary.excluding(date.getTime()));
+
+        int offset = 0;
+
+        while (true) {
+
+            List<ScoredValue<byte[]>> scoredValues = shard.zrangebyscoreWithScores(RedisHelper.getIndexKey(getDomain()),
+                    range, Limit.create(offset, maxFindCount));
+
+            for (ScoredValue<byte[]> scoredValue : scoredValues) {
+
+                long score = (long) scoredValue.getScore();
+
+                if (!cursor.isAfter(score, scoredValue.getValue())) {
+                    continue;
+                }
+
+                page.getData().add(scoredValue.getValue());
+
+                if (page.getData().size() >= maxFindCount) {
+                    page.setAttachment(ScoreCursor.of(score, scoredValue.getValue()));
+                    return page;
+                }
+            }
+
+            if (scoredValues.size() < maxFindCount) {
+                break;
+            }
+
+            offset += scoredValues.size();
+        }
+
+        page.setAttachment(ShardOffset.SCAN_INIT_CURSOR);
+
+        return page;
+    }
+
+    /*
+     * the masters are sorted so that the shard index in offset keeps pointing to the same master,
+     * the partitions are cached and refreshed by the cluster client.
+     * */
+    @Override
+    protected ShardHolder<RedisCommands<byte[], byte[]>> getShardHolder() {
+
+        List<RedisCommands<byte[], byte[]>> allShards = new ArrayList<>();
+
+        if (isClusterMode()) {
+
+            List<RedisClusterNode> masters = new ArrayList<>();
+
+            for (RedisClusterNode node : getClusterConnection().getPartitions()) {
+                if (node.is(RedisClusterNode.NodeFlag.MASTER)) {
+                    masters.add(node);
+                }
+            }
+
+            masters.sort(Comparator.comparing(node -> node.getUri().getHost() + ":" + node.getUri().getPort()));
+
+            for (RedisClusterNode master : masters) {
+                allShards.add(getClusterConnection().getConnection(master.getNodeId()).sync());
+            }
+        } else {
+            allShards.add(getConnection().sync());
+        }
+
+        return new ShardHolder<RedisCommands<byte[], byte[]>>() {
+            @Override
+            public List<RedisCommands<byte[], byte[]>> getAllShards() {
+                return allShards;
+            }
+
+            @Override
+            public void close() throws IOException {
+                // connections are shared, closed with the repository.
+            }
+        };
+    }
+
+    /*
+     * add the keys written before the index was enabled, scored by their recovery time.
+     * */
+    private synchronized void backfillIndex() {
+
+        if (indexBackfilled) {
+            return;
+        }
+
+        byte[] indexKey = RedisHelper.getIndexKey(getDomain());
+
+        RedisCommands<byte[], byte[]> commands = getConnection().sync();
+
+        ScanCursor cursor = ScanCursor.INITIAL;
+        ScanArgs scanArgs = ScanArgs.Builder.matches(getDomain() + "*").limit(RedisHelper.SCAN_COUNT);
+
+        do {
+            KeyScanCursor<byte[]> scanCursor = commands.scan(cursor, scanArgs);
+
+            List<RedisFuture<Map<byte[], byte[]>>> dataFutures = new ArrayList<>();
+            for (byte[] key : scanCursor.getKeys()) {
+                dataFutures.add(getConnection().async().hgetall(key));
+            }
+
+            List<RedisFuture<Long>> futures = new ArrayList<>();
+            for (int i = 0; i < dataFutures.size(); i++) {
+                try {
+                    Map<byte[], byte[]> data = dataFutures.get(i).get();
+
+                    // deleted since scanned
+                    if (data == null || data.isEmpty()) {
+                        continue;
+                    }
+
+                    Transaction transaction = TransactionStoreSerializer.deserialize(getSerializer(), data);
+                    futures.add(getConnection().async().zadd(indexKey, ZAddArgs.Builder.nx(), transaction.getRecoveryTime().getTime(), scanCursor.getKeys().get(i)));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new TransactionIOException(e);
+                } catch (Exception e) {
+                    log.warn("skip the transaction can not be read while backfilling index.", e);
+                }
+            }
+            LettuceFutures.awaitAll(getConnection().getTimeout(), futures.toArray(new RedisFuture<?>[0]));
+
+            cursor = scanCursor;
+        } while (!cursor.isFinished());
+
+        indexBackfilled = true;
+    }
+
+    private boolean useIndex() {
+        // the index key and transaction keys are in different slots under cluster.
+        return indexEnabled && !isClusterMode();
+    }
+
+    private List<byte[]> getScriptKeys(byte[] key) {
+        if (useIndex()) {
+            return Arrays.asList(key, RedisHelper.getIndexKey(getDomain()));
+        }
+        return Arrays.asList(key);
+    }
+
+    private boolean isClusterMode() {
+        return redisClusterClient != null;
+    }
+
+    private RedisClusterAsyncCommands<byte[], byte[]> getAsyncCommands() {
+        return isClusterMode() ? getClusterConnection().async() : getConnection().async();
+    }
+
+    private StatefulRedisConnection<byte[], byte[]> getConnection() {
+        init();
+        return connection;
+    }
+
+    private StatefulRedisClusterConnection<byte[], byte[]> getClusterConnection() {
+        init();
+        return clusterConnection;
+    }
+
+    /*
+     * waits up to the command timeout of the connection, the command may still be executed after the timeout.
+     * */
+    @Override
+    public <R> R await(CompletionStage<R> stage) {
+        long timeoutMillis = (isClusterMode() ? getClusterConnection().getTimeout() : getConnection().getTimeout()).toMillis();
+        try {
+            return stage.toCompletableFuture().get(timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new TransactionIOException(e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof TransactionOptimisticLockException) {
+                throw (TransactionOptimisticLockException) e.getCause();
+            }
+            throw new TransactionIOException(e.getCause());
+        } catch (TimeoutException e) {
+            throw new TransactionIOException(String.format("redis command not completed in %dms", timeoutMillis));
+        }
+    }
+
+    @Override
+    public void close() {
+
+        super.close();
+
+        if (connection != null) {
+            connection.close();
+        }
+
+        if (clusterConnection != null) {
+            clusterConnection.close();
+        }
+    }
+}
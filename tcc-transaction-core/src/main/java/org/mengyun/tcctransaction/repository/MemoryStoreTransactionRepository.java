@@ -1,18 +1,65 @@
 package org.mengyun.tcctransaction.repository;
 
 import com.google.common.collect.Lists;
+import com.google.common.primitives.UnsignedBytes;
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.TransactionOptimisticLockException;
+import org.mengyun.tcctransaction.api.TransactionXid;
 import org.mengyun.tcctransaction.repository.helper.ShardHolder;
 import org.mengyun.tcctransaction.repository.helper.ShardOffset;
+import org.mengyun.tcctransaction.utils.ByteUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import javax.transaction.xa.Xid;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
 
+/**
+ * transactions kept in memory and ordered by the last update time, recovery scans the stale ones from the oldest.
+ * <p/>
+ * with a capacity, the oldest transactions are spilled to spillTransactionRepository (a local disk store) once it is exceeded,
+ * or the new transactions are rejected if no spill repository is set. the spilled transactions are still found, updated and
+ * recovered through this repository with their version kept. a failed spill is logged and retried on the next create.
+ */
 public class MemoryStoreTransactionRepository extends AbstractKVStoreTransactionRepository<Map<Xid, Transaction>> implements LocalStorable {
 
-    private Map<Xid, Transaction> db = new ConcurrentHashMap<>();
+    static final Logger log = LoggerFactory.getLogger(MemoryStoreTransactionRepository.class.getSimpleName());
+
+    private static final String SPILL_OFFSET_PREFIX = "spill:";
+
+    private ConcurrentHashMap<Xid, Transaction> db = new ConcurrentHashMap<>();
+
+    // keyed by the 8 bytes recovery time followed by the xid store key, updated with the transaction in the compute of db
+    private final ConcurrentSkipListMap<byte[], Xid> timeIndex = new ConcurrentSkipListMap<>(UnsignedBytes.lexicographicalComparator());
+
+    private final ConcurrentHashMap<Xid, byte[]> timeIndexKeys = new ConcurrentHashMap<>();
+
+    // keyed by the xid store key, in the order of the dead letter pages
+    private final ConcurrentSkipListMap<byte[], Transaction> deadLetters = new ConcurrentSkipListMap<>(UnsignedBytes.lexicographicalComparator());
+
+    private int capacity = Integer.MAX_VALUE;
+
+    private AbstractTransactionRepository spillTransactionRepository;
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public void setCapacity(int capacity) {
+        this.capacity = capacity;
+    }
+
+    public AbstractTransactionRepository getSpillTransactionRepository() {
+        return spillTransactionRepository;
+    }
+
+    public void setSpillTransactionRepository(AbstractTransactionRepository spillTransactionRepository) {
+        this.spillTransactionRepository = spillTransactionRepository;
+    }
 
     @Override
     List<Transaction> findTransactionsFromOneShard(Map<Xid, Transaction> shard, Set keys) {
@@ -20,38 +67,41 @@ public class MemoryStoreTransactionRepository extends AbstractKVStoreTransaction
         List<Transaction> list = new ArrayList<Transaction>();
 
         for (Object key : keys) {
-            list.add(shard.get(key));
+            Transaction transaction = shard.get(key);
+            // deleted or spilled since the key is found
+            if (transaction != null) {
+                list.add(transaction);
+            }
         }
 
         return list;
     }
 
+    /*
+     * cursor: hex of the time index key to start from.
+     * */
     @Override
-    Page<Xid> findKeysFromOneShard(Map<Xid, Transaction> shard, String currentCursor, int maxFindCount) {
+    Page<Xid> findKeysFromOneShard(Map<Xid, Transaction> shard, Date date, String currentCursor, int maxFindCount) {
 
         Page<Xid> page = new Page<>();
-        Iterator<Xid> iterator = shard.keySet().iterator();
-        int iteratorIndex = 0;
-        int currentIndex = Integer.valueOf(currentCursor);
 
-        int count = 0;
+        Map<byte[], Xid> entries = ShardOffset.SCAN_INIT_CURSOR.equals(currentCursor)
+                ? timeIndex : timeIndex.tailMap(ByteUtils.hexToBytes(currentCursor), true);
 
-        while (iterator.hasNext() && count < maxFindCount) {
+        String nextCursor = ShardOffset.SCAN_INIT_CURSOR;
 
-            if (iteratorIndex < currentIndex) {
-                iteratorIndex++;
-                continue;
-            }
+        for (Map.Entry<byte[], Xid> entry : entries.entrySet()) {
 
-            page.getData().add(iterator.next());
-            count++;
+            if (ByteBuffer.wrap(entry.getKey()).getLong() >= date.getTime()) {
+                break;
+            }
 
-            iteratorIndex++;
-        }
-        String nextCursor = ShardOffset.SCAN_INIT_CURSOR;
+            if (page.getData().size() >= maxFindCount) {
+                nextCursor = ByteUtils.bytesToHex(entry.getKey());
+                break;
+            }
 
-        if (iterator.hasNext() && count == maxFindCount) {
-            nextCursor = String.valueOf(iteratorIndex);
+            page.getData().add(entry.getValue());
         }
 
         page.setAttachment(nextCursor);
@@ -59,6 +109,33 @@ public class MemoryStoreTransactionRepository extends AbstractKVStoreTransaction
         return page;
     }
 
+    /*
+     * offset: the offset of the memory scan, then spill: followed by the offset of the spill repository once the memory is scanned.
+     * */
+    @Override
+    protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
+
+        if (spillTransactionRepository == null) {
+            return super.doFindAllUnmodifiedSince(date, offset, pageSize);
+        }
+
+        String spillOffset = null;
+
+        if (offset != null && offset.startsWith(SPILL_OFFSET_PREFIX)) {
+            spillOffset = offset.substring(SPILL_OFFSET_PREFIX.length());
+        } else {
+            Page<Transaction> page = super.doFindAllUnmodifiedSince(date, offset, pageSize);
+            if (page.getData().size() > 0) {
+                return page;
+            }
+        }
+
+        Page<Transaction> spillPage = spillTransactionRepository.findAllUnmodifiedSince(date, spillOffset == null || spillOffset.isEmpty() ? null : spillOffset, pageSize);
+
+        String nextOffset = spillPage.getNextOffset() == null ? "" : spillPage.getNextOffset();
+        return new Page<Transaction>(SPILL_OFFSET_PREFIX + nextOffset, spillPage.getData());
+    }
+
     @Override
     protected ShardHolder<Map<Xid, Transaction>> getShardHolder() {
         return new ShardHolder<Map<Xid, Transaction>>() {
@@ -75,37 +152,260 @@ public class MemoryStoreTransactionRepository extends AbstractKVStoreTransaction
 
     @Override
     protected int doCreate(Transaction transaction) {
-        db.put(transaction.getXid(), transaction);
+
+        if (db.size() >= capacity && spillTransactionRepository == null) {
+            throw new TransactionIOException(String.format("memory store is full, capacity:%d", capacity));
+        }
+
+        db.compute(transaction.getXid(), (xid, foundTransaction) -> {
+            index(xid, transaction);
+            return transaction;
+        });
+
+        spillIfNecessary();
         return 1;
     }
 
     @Override
     protected int doUpdate(Transaction transaction) {
 
-        Transaction foundTransaction = doFindOne(transaction.getXid());
-        if (foundTransaction.getVersion() != transaction.getVersion()) {
-            return 0;
+        int[] result = new int[1];
+        boolean[] found = new boolean[1];
+
+        // the version check and the put are atomic for the key
+        db.computeIfPresent(transaction.getXid(), (xid, foundTransaction) -> {
+
+            found[0] = true;
+
+            if (foundTransaction.getVersion() != transaction.getVersion()) {
+                return foundTransaction;
+            }
+
+            transaction.setVersion(transaction.getVersion() + 1);
+            transaction.setLastUpdateTime(new Date());
+            index(xid, transaction);
+            result[0] = 1;
+            return transaction;
+        });
+
+        if (!found[0] && spillTransactionRepository != null) {
+            try {
+                return spillTransactionRepository.update(transaction);
+            } catch (TransactionOptimisticLockException e) {
+                return 0;
+            }
         }
 
-        transaction.setVersion(transaction.getVersion() + 1);
-        transaction.setLastUpdateTime(new Date());
-        db.put(transaction.getXid(), transaction);
-        return 1;
+        return result[0];
     }
 
     @Override
     protected int doDelete(Transaction transaction) {
-        db.remove(transaction.getXid());
+
+        boolean[] found = new boolean[1];
+
+        db.computeIfPresent(transaction.getXid(), (xid, foundTransaction) -> {
+            found[0] = true;
+            unindex(xid);
+            return null;
+        });
+
+        if (!found[0] && spillTransactionRepository != null) {
+            spillTransactionRepository.delete(transaction);
+        }
+
         return 1;
     }
 
     @Override
     protected Transaction doFindOne(Xid xid) {
-        return db.get(xid);
+
+        Transaction transaction = db.get(xid);
+
+        if (transaction == null && spillTransactionRepository != null) {
+            transaction = spillTransactionRepository.findByXid(xid);
+        }
+
+        return transaction;
     }
 
     @Override
     protected Transaction doFindRootOne(Xid xid) {
-        return db.get(xid);
+        return doFindOne(xid);
+    }
+
+    @Override
+    public boolean isDeadLetterSupported() {
+        return true;
+    }
+
+    @Override
+    public int moveToDeadLetter(Transaction transaction) {
+
+        int[] result = new int[1];
+        boolean[] found = new boolean[1];
+
+        db.computeIfPresent(transaction.getXid(), (xid, foundTransaction) -> {
+
+            found[0] = true;
+
+            if (foundTransaction.getVersion() != transaction.getVersion()) {
+                return foundTransaction;
+            }
+
+            deadLetters.put(TransactionXid.toStoreKey(xid), foundTransaction);
+            unindex(xid);
+            result[0] = 1;
+            return null;
+        });
+
+        if (!found[0] && spillTransactionRepository != null && spillTransactionRepository.isDeadLetterSupported()) {
+            return spillTransactionRepository.moveToDeadLetter(transaction);
+        }
+
+        return result[0];
+    }
+
+    /*
+     * offset: hex of the store key of the last dead letter returned.
+     * */
+    @Override
+    public Page<Transaction> findAllDeadLetters(String offset, int pageSize) {
+
+        Map<byte[], Transaction> entries = offset == null || offset.isEmpty()
+                ? deadLetters : deadLetters.tailMap(ByteUtils.hexToBytes(offset), false);
+
+        List<Transaction> transactions = new ArrayList<Transaction>();
+        String nextOffset = offset;
+
+        for (Map.Entry<byte[], Transaction> entry : entries.entrySet()) {
+
+            if (transactions.size() >= pageSize) {
+                break;
+            }
+
+            transactions.add(entry.getValue());
+            nextOffset = ByteUtils.bytesToHex(entry.getKey());
+        }
+
+        return new Page<Transaction>(nextOffset, transactions);
+    }
+
+    @Override
+    public int replayDeadLetter(Xid xid) {
+
+        byte[] storeKey = TransactionXid.toStoreKey(xid);
+
+        Transaction transaction = deadLetters.remove(storeKey);
+
+        if (transaction == null) {
+            return 0;
+        }
+
+        boolean[] replayed = new boolean[1];
+
+        db.compute(transaction.getXid(), (key, foundTransaction) -> {
+
+            if (foundTransaction != null) {
+                return foundTransaction;
+            }
+
+            resetDeadLetter(transaction);
+            index(key, transaction);
+            replayed[0] = true;
+            return transaction;
+        });
+
+        if (!replayed[0]) {
+            // the xid is used by the transaction store again, keep the dead letter
+            deadLetters.put(storeKey, transaction);
+            return 0;
+        }
+
+        return 1;
+    }
+
+    /*
+     * spills the oldest transactions until the capacity is not exceeded.
+     * a copy is written to the spill repository outside the compute, then the transaction is removed from memory
+     * only if not changed in between, otherwise the spilled copy is deleted and the transaction stays in memory.
+     * */
+    private void spillIfNecessary() {
+
+        while (db.size() > capacity) {
+
+            Map.Entry<byte[], Xid> oldest = timeIndex.firstEntry();
+
+            if (oldest == null) {
+                return;
+            }
+
+            Transaction transaction = db.get(oldest.getValue());
+
+            if (transaction == null) {
+                // deleted since found
+                timeIndex.remove(oldest.getKey(), oldest.getValue());
+                continue;
+            }
+
+            Transaction spilledTransaction = getSerializer().clone(transaction);
+
+            try {
+                if (spillTransactionRepository.doCreate(spilledTransaction) <= 0) {
+                    log.error(String.format("spill transaction %s failed, memory store exceeds capacity:%d", spilledTransaction.getXid(), capacity));
+                    return;
+                }
+            } catch (Throwable e) {
+                log.error(String.format("spill transaction %s failed, memory store exceeds capacity:%d", spilledTransaction.getXid(), capacity), e);
+                return;
+            }
+
+            boolean[] spilled = new boolean[1];
+
+            db.computeIfPresent(spilledTransaction.getXid(), (xid, foundTransaction) -> {
+
+                if (foundTransaction != transaction || foundTransaction.getVersion() != spilledTransaction.getVersion()) {
+                    return foundTransaction;
+                }
+
+                unindex(xid);
+                spilled[0] = true;
+                return null;
+            });
+
+            if (!spilled[0]) {
+                // updated or deleted while spilled
+                try {
+                    spillTransactionRepository.doDelete(spilledTransaction);
+                } catch (Throwable e) {
+                    log.error(String.format("delete spilled transaction %s failed.", spilledTransaction.getXid()), e);
+                    return;
+                }
+            }
+        }
+    }
+
+    /*
+     * called in the compute of the xid.
+     * */
+    private void index(Xid xid, Transaction transaction) {
+
+        byte[] storeKey = TransactionXid.toStoreKey(xid);
+        byte[] indexKey = ByteBuffer.allocate(Long.BYTES + storeKey.length)
+                .putLong(transaction.getRecoveryTime().getTime()).put(storeKey).array();
+
+        byte[] previous = timeIndexKeys.put(xid, indexKey);
+        if (previous != null) {
+            timeIndex.remove(previous);
+        }
+        timeIndex.put(indexKey, xid);
+    }
+
+    private void unindex(Xid xid) {
+
+        byte[] previous = timeIndexKeys.remove(xid);
+        if (previous != null) {
+            timeIndex.remove(previous);
+        }
     }
 }
@@ -1,24 +1,29 @@
 package org.mengyun.tcctransaction.repository;
 
 import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
 import org.apache.commons.lang3.ArrayUtils;
 import org.apache.commons.lang3.StringUtils;
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.repository.helper.RocksDbGroupCommitWriter;
+import org.mengyun.tcctransaction.repository.helper.RocksDbTuning;
 import org.mengyun.tcctransaction.repository.helper.ShardHolder;
 import org.mengyun.tcctransaction.repository.helper.ShardOffset;
-import org.rocksdb.Options;
-import org.rocksdb.RocksDB;
-import org.rocksdb.RocksDBException;
-import org.rocksdb.RocksIterator;
+import org.mengyun.tcctransaction.utils.ByteUtils;
+import org.rocksdb.*;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.transaction.xa.Xid;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Set;
+import java.util.concurrent.locks.Lock;
 
 public class RocksDbTransactionRepository extends AbstractKVStoreTransactionRepository<RocksDB> implements LocalStorable {
     static final Logger log = LoggerFactory.getLogger(RocksDbTransactionRepository.class.getSimpleName());
@@ -27,16 +32,59 @@ public class RocksDbTransactionRepository extends AbstractKVStoreTransactionRepo
         RocksDB.loadLibrary();
     }
 
+    private static final int LOCK_STRIPES = 64;
+
+    // column family of the version and recovery time, 16 bytes each, the optimistic lock check reads it instead of the whole transaction
+    private static final byte[] VERSION_COLUMN_FAMILY = "version".getBytes();
+
+    // column family keyed by the 8 bytes recovery time followed by the transaction key, recovery scans only the stale keys
+    private static final byte[] TIME_INDEX_COLUMN_FAMILY = "time".getBytes();
+
+    // put in the version column family once the time index is built for the transactions written before it is added
+    private static final byte[] TIME_INDEX_BUILT_MARKER = "#time-index".getBytes();
+
+    private static final byte[] EMPTY_VALUE = new byte[0];
+
+    private static final int BUILD_BATCH_SIZE = 1000;
+
     private Options options;
 
+    private DBOptions dbOptions;
+
+    private ColumnFamilyOptions columnFamilyOptions;
+
+    private final List<ColumnFamilyHandle> columnFamilyHandles = new ArrayList<>();
+
     private RocksDB db;
 
-    private Options rootOptions;
+    private ColumnFamilyHandle versionHandle;
+
+    private ColumnFamilyHandle timeIndexHandle;
 
     private RocksDB rootDb;
 
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
     private String location = "/var/log/";
 
+    private RocksDbTuning tuning = new RocksDbTuning();
+
+    private Cache blockCache;
+
+    private Filter bloomFilter;
+
+    private WriteOptions writeOptions;
+
+    // coalesce the writes of concurrent transactions into one batch and one WAL sync, worth it with syncWrite on.
+    private boolean groupCommitEnabled = false;
+
+    // 0 groups the writes queued while the last batch is synced, a longer interval trades latency for larger batches.
+    private long groupCommitIntervalMillis = 0;
+
+    private int groupCommitMaxBatchSize = 256;
+
+    private RocksDbGroupCommitWriter groupCommitWriter;
+
     private volatile boolean initialized = false;
 
     public String getLocation() {
@@ -47,6 +95,38 @@ public class RocksDbTransactionRepository extends AbstractKVStoreTransactionRepo
         this.location = location;
     }
 
+    public RocksDbTuning getTuning() {
+        return tuning;
+    }
+
+    public void setTuning(RocksDbTuning tuning) {
+        this.tuning = tuning;
+    }
+
+    public boolean isGroupCommitEnabled() {
+        return groupCommitEnabled;
+    }
+
+    public void setGroupCommitEnabled(boolean groupCommitEnabled) {
+        this.groupCommitEnabled = groupCommitEnabled;
+    }
+
+    public long getGroupCommitIntervalMillis() {
+        return groupCommitIntervalMillis;
+    }
+
+    public void setGroupCommitIntervalMillis(long groupCommitIntervalMillis) {
+        this.groupCommitIntervalMillis = groupCommitIntervalMillis;
+    }
+
+    public int getGroupCommitMaxBatchSize() {
+        return groupCommitMaxBatchSize;
+    }
+
+    public void setGroupCommitMaxBatchSize(int groupCommitMaxBatchSize) {
+        this.groupCommitMaxBatchSize = groupCommitMaxBatchSize;
+    }
+
     public RocksDbTransactionRepository() {
 
     }
@@ -58,17 +138,34 @@ public class RocksDbTransactionRepository extends AbstractKVStoreTransactionRepo
             synchronized (this) {
 
                 if (!initialized) {
+
+                    // the block cache and bloom filter are shared by the domain and root domain databases.
+                    blockCache = tuning.newBlockCache();
+                    bloomFilter = tuning.newBloomFilter();
+                    writeOptions = tuning.newWriteOptions();
+
                     if (options == null)
                         // the Options class contains a set of configurable DB options
                         // that determines the behaviour of the database.
-                        options = new Options().setCreateIfMissing(true).setKeepLogFileNum(1l);
+                        options = tuning.newOptions(blockCache, bloomFilter);
+
+                    dbOptions = new DBOptions(options).setCreateMissingColumnFamilies(true);
+                    columnFamilyOptions = new ColumnFamilyOptions(options);
+
                     String filePath = getPath(this.location, this.getDomain());
-                    db = RocksDB.open(options, filePath);
+                    List<ColumnFamilyHandle> handles = new ArrayList<>();
+                    db = open(filePath, handles);
+                    versionHandle = handles.get(1);
+                    timeIndexHandle = handles.get(2);
+                    buildTimeIndexIfNecessary();
+
+                    if (groupCommitEnabled) {
+                        groupCommitWriter = new RocksDbGroupCommitWriter(db, writeOptions, groupCommitIntervalMillis, groupCommitMaxBatchSize);
+                    }
 
                     if(this.getRootDomain() != null) {
-                        rootOptions = new Options().setCreateIfMissing(true).setKeepLogFileNum(1l);
                         String rootFilePath = getPath(this.location, this.getRootDomain());
-                        rootDb = RocksDB.open(rootOptions, filePath);
+                        rootDb = open(rootFilePath, new ArrayList<>());
                     }
 
                     initialized = true;
@@ -80,80 +177,143 @@ public class RocksDbTransactionRepository extends AbstractKVStoreTransactionRepo
     @Override
     protected int doCreate(Transaction transaction) {
 
+        byte[] key = TransactionXid.toStoreKey(transaction.getXid());
+        long recoveryTime = transaction.getRecoveryTime().getTime();
+
+        byte[] content = getSerializer().serialize(transaction);
+        byte[] meta = toMeta(transaction.getVersion(), recoveryTime);
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
         try {
-            db.put(transaction.getXid().toString().getBytes(), getSerializer().serialize(transaction));
+            // the key may exist when written again by the spill, migrate or hedge paths, its time index key is replaced
+            long[] previousMeta = findMeta(transaction.getXid());
+
+            write(writeBatch -> {
+                writeBatch.put(key, content);
+                writeBatch.put(versionHandle, key, meta);
+                if (previousMeta != null) {
+                    writeBatch.delete(timeIndexHandle, toTimeIndexKey(previousMeta[1], key));
+                }
+                writeBatch.put(timeIndexHandle, toTimeIndexKey(recoveryTime, key), EMPTY_VALUE);
+            });
             return 1;
         } catch (RocksDBException e) {
             throw new TransactionIOException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     protected int doUpdate(Transaction transaction) {
 
+        byte[] key = TransactionXid.toStoreKey(transaction.getXid());
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
         try {
 
-            Transaction foundTransaction = doFindOne(transaction.getXid());
-            if(foundTransaction.getVersion() != transaction.getVersion()) {
+            long[] meta = findMeta(transaction.getXid());
+            if (meta == null || meta[0] != transaction.getVersion()) {
                 return 0;
             }
 
             transaction.setVersion(transaction.getVersion() + 1);
             transaction.setLastUpdateTime(new Date());
-            db.put(transaction.getXid().toString().getBytes(), getSerializer().serialize(transaction));
+            long recoveryTime = transaction.getRecoveryTime().getTime();
+
+            byte[] content = getSerializer().serialize(transaction);
+            byte[] newMeta = toMeta(transaction.getVersion(), recoveryTime);
+
+            write(writeBatch -> {
+                writeBatch.put(key, content);
+                writeBatch.put(versionHandle, key, newMeta);
+                writeBatch.delete(timeIndexHandle, toTimeIndexKey(meta[1], key));
+                writeBatch.put(timeIndexHandle, toTimeIndexKey(recoveryTime, key), EMPTY_VALUE);
+            });
             return 1;
         } catch (RocksDBException e) {
             throw new TransactionIOException(e);
+        } finally {
+            lock.unlock();
         }
     }
 
     @Override
     protected int doDelete(Transaction transaction) {
 
+        byte[] key = TransactionXid.toStoreKey(transaction.getXid());
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
         try {
-            db.delete(transaction.getXid().toString().getBytes());
+
+            long[] meta = findMeta(transaction.getXid());
+
+            write(writeBatch -> {
+                writeBatch.delete(key);
+                writeBatch.delete(versionHandle, key);
+                if (meta != null) {
+                    writeBatch.delete(timeIndexHandle, toTimeIndexKey(meta[1], key));
+                }
+            });
         } catch (RocksDBException e) {
             throw new TransactionIOException(e);
+        } finally {
+            lock.unlock();
         }
         return 1;
     }
 
     @Override
     protected Transaction doFindOne(Xid xid) {
-        return doFind(db,xid);
+        // the legacy keys of db are moved when the time index is built in init
+        return doFind(db, xid, false);
     }
 
     @Override
     protected Transaction doFindRootOne(Xid xid) {
-        return doFind(rootDb,xid);
+        return doFind(rootDb, xid, true);
     }
 
     @Override
-    Page<byte[]> findKeysFromOneShard(RocksDB shard, String currentCursor, int maxFindCount) {
+    Page<byte[]> findKeysFromOneShard(RocksDB shard, Date date, String currentCursor, int maxFindCount) {
 
         Page<byte[]> page = new Page<>();
 
-        try (final RocksIterator iterator = shard.newIterator()) {
+        try (final RocksIterator iterator = shard.newIterator(timeIndexHandle)) {
 
             if (ShardOffset.SCAN_INIT_CURSOR.equals(currentCursor)) {
                 iterator.seekToFirst();
             } else {
-                iterator.seek(currentCursor.getBytes());
+                iterator.seek(ByteUtils.hexToBytes(currentCursor));
             }
 
             int count = 0;
+            boolean reachedDate = false;
 
             while (iterator.isValid() && count < maxFindCount) {
 
-                page.getData().add(iterator.key());
+                byte[] indexKey = iterator.key();
+
+                if (ByteBuffer.wrap(indexKey).getLong() >= date.getTime()) {
+                    reachedDate = true;
+                    break;
+                }
+
+                page.getData().add(Arrays.copyOfRange(indexKey, Long.BYTES, indexKey.length));
 
                 count++;
                 iterator.next();
             }
 
             String nextCursor = ShardOffset.SCAN_INIT_CURSOR;
-            if (iterator.isValid() && count == maxFindCount) {
-                nextCursor = new String(iterator.key());
+            if (!reachedDate && iterator.isValid() && count == maxFindCount) {
+                nextCursor = ByteUtils.bytesToHex(iterator.key());
             }
 
             page.setAttachment(nextCursor);
@@ -202,8 +362,21 @@ public class RocksDbTransactionRepository extends AbstractKVStoreTransactionRepo
         };
     }
 
+    @Override
     public void close() {
 
+        super.close();
+
+        // flush the pending writes before the database is closed.
+        if (groupCommitWriter != null) {
+            groupCommitWriter.close();
+        }
+
+        // the column family handles are closed before the databases.
+        for (ColumnFamilyHandle handle : columnFamilyHandles) {
+            handle.close();
+        }
+
         if (db != null) {
             db.close();
         }
@@ -216,8 +389,24 @@ public class RocksDbTransactionRepository extends AbstractKVStoreTransactionRepo
             options.close();
         }
 
-        if(rootOptions != null) {
-            rootOptions.close();
+        if (dbOptions != null) {
+            dbOptions.close();
+        }
+
+        if (columnFamilyOptions != null) {
+            columnFamilyOptions.close();
+        }
+
+        if (writeOptions != null) {
+            writeOptions.close();
+        }
+
+        if (bloomFilter != null) {
+            bloomFilter.close();
+        }
+
+        if (blockCache != null) {
+            blockCache.close();
         }
     }
 
@@ -237,10 +426,13 @@ public class RocksDbTransactionRepository extends AbstractKVStoreTransactionRepo
         return stringBuilder.toString();
     }
 
-    private Transaction doFind(RocksDB db, Xid xid) {
+    private Transaction doFind(RocksDB db, Xid xid, boolean legacyKeyPossible) {
 
         try {
-            byte[] values = db.get(xid.toString().getBytes());
+            byte[] values = db.get(TransactionXid.toStoreKey(xid));
+            if (ArrayUtils.isEmpty(values) && legacyKeyPossible) {
+                values = db.get(getLegacyKey(xid));
+            }
             if (ArrayUtils.isNotEmpty(values)) {
                 return getSerializer().deserialize(values);
             }
@@ -249,4 +441,111 @@ public class RocksDbTransactionRepository extends AbstractKVStoreTransactionRepo
         }
         return null;
     }
+
+    /*
+     * written by the group commit writer if enabled, returns after the batch containing the mutation is written.
+     * */
+    private void write(RocksDbGroupCommitWriter.Mutation mutation) throws RocksDBException {
+
+        if (groupCommitWriter != null) {
+            groupCommitWriter.write(mutation);
+            return;
+        }
+
+        try (WriteBatch writeBatch = new WriteBatch()) {
+            mutation.apply(writeBatch);
+            db.write(writeOptions, writeBatch);
+        }
+    }
+
+    /*
+     * the stored version and recovery time, null if the transaction does not exist.
+     * */
+    private long[] findMeta(Xid xid) throws RocksDBException {
+
+        byte[] meta = db.get(versionHandle, TransactionXid.toStoreKey(xid));
+
+        if (meta != null && meta.length == Long.BYTES * 2) {
+            ByteBuffer buffer = ByteBuffer.wrap(meta);
+            return new long[]{buffer.getLong(), buffer.getLong()};
+        }
+
+        Transaction transaction = doFind(db, xid, false);
+        return transaction == null ? null : new long[]{transaction.getVersion(), transaction.getRecoveryTime().getTime()};
+    }
+
+    /*
+     * add the version and time index of the transactions written before, and move the ones under the legacy key.
+     * */
+    private void buildTimeIndexIfNecessary() throws RocksDBException {
+
+        if (db.get(versionHandle, TIME_INDEX_BUILT_MARKER) != null) {
+            return;
+        }
+
+        int count = 0;
+
+        try (RocksIterator iterator = db.newIterator(); WriteBatch writeBatch = new WriteBatch()) {
+
+            for (iterator.seekToFirst(); iterator.isValid(); iterator.next()) {
+
+                Transaction transaction;
+                try {
+                    transaction = getSerializer().deserialize(iterator.value());
+                } catch (Exception e) {
+                    log.warn("skip the transaction can not be deserialized while building time index.", e);
+                    continue;
+                }
+
+                byte[] key = TransactionXid.toStoreKey(transaction.getXid());
+                long recoveryTime = transaction.getRecoveryTime().getTime();
+
+                if (!Arrays.equals(key, iterator.key())) {
+                    writeBatch.delete(iterator.key());
+                    writeBatch.put(key, iterator.value());
+                }
+
+                writeBatch.put(versionHandle, key, toMeta(transaction.getVersion(), recoveryTime));
+                writeBatch.put(timeIndexHandle, toTimeIndexKey(recoveryTime, key), EMPTY_VALUE);
+
+                if (++count % BUILD_BATCH_SIZE == 0) {
+                    db.write(writeOptions, writeBatch);
+                    writeBatch.clear();
+                }
+            }
+
+            writeBatch.put(versionHandle, TIME_INDEX_BUILT_MARKER, EMPTY_VALUE);
+            db.write(writeOptions, writeBatch);
+        }
+
+        log.info(String.format("time index built for %d transactions of domain %s", count, getDomain()));
+    }
+
+    private RocksDB open(String path, List<ColumnFamilyHandle> handles) throws RocksDBException {
+
+        List<ColumnFamilyDescriptor> descriptors = Arrays.asList(
+                new ColumnFamilyDescriptor(RocksDB.DEFAULT_COLUMN_FAMILY, columnFamilyOptions),
+                new ColumnFamilyDescriptor(VERSION_COLUMN_FAMILY, columnFamilyOptions),
+                new ColumnFamilyDescriptor(TIME_INDEX_COLUMN_FAMILY, columnFamilyOptions));
+
+        RocksDB rocksDB = RocksDB.open(dbOptions, path, descriptors, handles);
+        columnFamilyHandles.addAll(handles);
+        return rocksDB;
+    }
+
+    private static byte[] toMeta(long version, long lastUpdateTime) {
+        return ByteBuffer.allocate(Long.BYTES * 2).putLong(version).putLong(lastUpdateTime).array();
+    }
+
+    // big endian, the keys are ordered by time as the time is positive
+    private static byte[] toTimeIndexKey(long lastUpdateTime, byte[] key) {
+        return ByteBuffer.allocate(Long.BYTES + key.length).putLong(lastUpdateTime).put(key).array();
+    }
+
+    /*
+     * key of the transactions stored before the compact binary key is used.
+     * */
+    private byte[] getLegacyKey(Xid xid) {
+        return xid.toString().getBytes();
+    }
 }
@@ -0,0 +1,324 @@
+package org.mengyun.tcctransaction.repository;
+
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.apache.commons.lang3.StringUtils;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.repository.helper.SegmentLog;
+import org.mengyun.tcctransaction.repository.helper.ShardHolder;
+import org.mengyun.tcctransaction.repository.helper.ShardOffset;
+import org.mengyun.tcctransaction.utils.ByteUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.xa.Xid;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * local repository on a segmented append-only log, the transactions are appended to memory mapped segment files
+ * instead of one file per transaction, see SegmentLog.
+ */
+public class SegmentLogTransactionRepository extends AbstractKVStoreTransactionRepository<SegmentLog> implements LocalStorable {
+
+    static final Logger log = LoggerFactory.getLogger(SegmentLogTransactionRepository.class.getSimpleName());
+
+    private static final int LOCK_STRIPES = 64;
+
+    private String location = "/var/log/";
+
+    private int segmentSize = 64 * 1024 * 1024;
+
+    // force the appended records before returning, the concurrent writers share one force.
+    private boolean syncWrite = true;
+
+    private int checkpointIntervalSeconds = 60;
+
+    private int compactionIntervalSeconds = 30;
+
+    // the oldest segment is compacted when its live records take less than the ratio of it.
+    private double compactionLiveRatio = 0.5;
+
+    private SegmentLog segmentLog;
+
+    private SegmentLog rootSegmentLog;
+
+    private ScheduledExecutorService maintainExecutorService;
+
+    private final Striped<Lock> locks = Striped.lock(LOCK_STRIPES);
+
+    private volatile boolean initialized = false;
+
+    public void init() {
+
+        if (!initialized) {
+
+            synchronized (this) {
+
+                if (!initialized) {
+
+                    segmentLog = SegmentLog.open(new File(getPath(location, getDomain())), segmentSize, syncWrite);
+
+                    if (getRootDomain() != null) {
+                        rootSegmentLog = SegmentLog.openReadOnly(new File(getPath(location, getRootDomain())));
+                    }
+
+                    maintainExecutorService = Executors.newSingleThreadScheduledExecutor(
+                            new ThreadFactoryBuilder().setNameFormat("tcc-segment-log-maintain-%d").setDaemon(true).build());
+
+                    maintainExecutorService.scheduleWithFixedDelay(this::checkpoint, checkpointIntervalSeconds, checkpointIntervalSeconds, TimeUnit.SECONDS);
+                    maintainExecutorService.scheduleWithFixedDelay(this::compact, compactionIntervalSeconds, compactionIntervalSeconds, TimeUnit.SECONDS);
+
+                    initialized = true;
+                }
+            }
+        }
+    }
+
+    @Override
+    protected int doCreate(Transaction transaction) {
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            segmentLog.put(TransactionXid.toStoreKey(transaction.getXid()), transaction.getVersion(),
+                    transaction.getRecoveryTime().getTime(), getSerializer().serialize(transaction));
+            return 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected int doUpdate(Transaction transaction) {
+
+        byte[] key = TransactionXid.toStoreKey(transaction.getXid());
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            SegmentLog.Entry entry = segmentLog.getEntry(key);
+            if (entry == null || entry.getVersion() != transaction.getVersion()) {
+                return 0;
+            }
+
+            transaction.setVersion(transaction.getVersion() + 1);
+            transaction.setLastUpdateTime(new Date());
+
+            segmentLog.put(key, transaction.getVersion(), transaction.getRecoveryTime().getTime(), getSerializer().serialize(transaction));
+            return 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected int doDelete(Transaction transaction) {
+
+        Lock lock = locks.get(transaction.getXid());
+        lock.lock();
+
+        try {
+            segmentLog.delete(TransactionXid.toStoreKey(transaction.getXid()));
+            return 1;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    protected Transaction doFindOne(Xid xid) {
+        return doFind(segmentLog, xid);
+    }
+
+    @Override
+    protected Transaction doFindRootOne(Xid xid) {
+
+        if (rootSegmentLog == null) {
+            return null;
+        }
+
+        rootSegmentLog.catchUp();
+        return doFind(rootSegmentLog, xid);
+    }
+
+    @Override
+    Page<byte[]> findKeysFromOneShard(SegmentLog shard, Date date, String currentCursor, int maxFindCount) {
+
+        Page<byte[]> page = new Page<>();
+
+        Map<byte[], SegmentLog.Entry> entries = ShardOffset.SCAN_INIT_CURSOR.equals(currentCursor)
+                ? shard.getIndex() : shard.getIndex().tailMap(ByteUtils.hexToBytes(currentCursor), true);
+
+        String nextCursor = ShardOffset.SCAN_INIT_CURSOR;
+
+        for (Map.Entry<byte[], SegmentLog.Entry> entry : entries.entrySet()) {
+
+            if (page.getData().size() >= maxFindCount) {
+                nextCursor = ByteUtils.bytesToHex(entry.getKey());
+                break;
+            }
+
+            if (entry.getValue().getLastUpdateTime() < date.getTime()) {
+                page.getData().add(entry.getKey());
+            }
+        }
+
+        page.setAttachment(nextCursor);
+        return page;
+    }
+
+    @Override
+    List<Transaction> findTransactionsFromOneShard(SegmentLog shard, Set keys) {
+
+        List<Transaction> list = new ArrayList<Transaction>();
+
+        for (Object key : keys) {
+            byte[] value = shard.get((byte[]) key);
+            if (value != null) {
+                list.add(getSerializer().deserialize(value));
+            }
+        }
+
+        return list;
+    }
+
+    @Override
+    protected ShardHolder<SegmentLog> getShardHolder() {
+        return new ShardHolder<SegmentLog>() {
+            @Override
+            public List<SegmentLog> getAllShards() {
+                return Lists.newArrayList(segmentLog);
+            }
+
+            @Override
+            public void close() throws IOException {
+
+            }
+        };
+    }
+
+    @Override
+    public void close() {
+
+        super.close();
+
+        if (maintainExecutorService != null) {
+            maintainExecutorService.shutdown();
+            try {
+                maintainExecutorService.awaitTermination(checkpointIntervalSeconds, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        if (segmentLog != null) {
+            segmentLog.close();
+        }
+
+        if (rootSegmentLog != null) {
+            rootSegmentLog.close();
+        }
+    }
+
+    private void checkpoint() {
+        try {
+            segmentLog.checkpoint();
+        } catch (Throwable e) {
+            log.error("checkpoint segment log failed.", e);
+        }
+    }
+
+    private void compact() {
+        try {
+            int compacted = segmentLog.compact(compactionLiveRatio);
+            if (compacted > 0) {
+                log.info(String.format("%d segments of domain %s compacted", compacted, getDomain()));
+            }
+        } catch (Throwable e) {
+            log.error("compact segment log failed.", e);
+        }
+    }
+
+    private Transaction doFind(SegmentLog segmentLog, Xid xid) {
+        byte[] value = segmentLog.get(TransactionXid.toStoreKey(xid));
+        return value == null ? null : getSerializer().deserialize(value);
+    }
+
+    private String getPath(String location, String domain) {
+
+        StringBuilder stringBuilder = new StringBuilder();
+
+        if (StringUtils.isNotEmpty(location)) {
+            stringBuilder.append(location);
+            if (!location.endsWith("/")) {
+                stringBuilder.append("/");
+            }
+        }
+
+        stringBuilder.append(domain);
+
+        return stringBuilder.toString();
+    }
+
+    public String getLocation() {
+        return location;
+    }
+
+    public void setLocation(String location) {
+        this.location = location;
+    }
+
+    public int getSegmentSize() {
+        return segmentSize;
+    }
+
+    public void setSegmentSize(int segmentSize) {
+        this.segmentSize = segmentSize;
+    }
+
+    public boolean isSyncWrite() {
+        return syncWrite;
+    }
+
+    public void setSyncWrite(boolean syncWrite) {
+        this.syncWrite = syncWrite;
+    }
+
+    public int getCheckpointIntervalSeconds() {
+        return checkpointIntervalSeconds;
+    }
+
+    public void setCheckpointIntervalSeconds(int checkpointIntervalSeconds) {
+        this.checkpointIntervalSeconds = checkpointIntervalSeconds;
+    }
+
+    public int getCompactionIntervalSeconds() {
+        return compactionIntervalSeconds;
+    }
+
+    public void setCompactionIntervalSeconds(int compactionIntervalSeconds) {
+        this.compactionIntervalSeconds = compactionIntervalSeconds;
+    }
+
+    public double getCompactionLiveRatio() {
+        return compactionLiveRatio;
+    }
+
+    public void setCompactionLiveRatio(double compactionLiveRatio) {
+        this.compactionLiveRatio = compactionLiveRatio;
+    }
+}
@@ -2,11 +2,29 @@ package org.mengyun.tcctransaction.repository;
 
 import org.mengyun.tcctransaction.SystemException;
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.ha.SentinelController;
+import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
+import org.mengyun.tcctransaction.serializer.TransactionSerializer;
 
 import javax.transaction.xa.Xid;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.locks.Lock;
+import java.util.function.Supplier;
 
+/**
+ * writes to the degraded repository while the sentinel controller degrades.
+ * <p/>
+ * with migrationEnabled, the transactions left in the degraded repository are moved back to the work repository
+ * in background by DegradedTransactionMigrator, until then the calls missing in the work repository fall back to the degraded repository.
+ * <p/>
+ * with hedgeEnabled (requires migrationEnabled), the writes not acknowledged by the work repository in time are also put to
+ * the degraded repository, see HedgedTransactionWriter.
+ */
 public class SentinelTransactionRepository extends AbstractTransactionRepository {
 
     private SentinelController sentinelController;
@@ -15,6 +33,29 @@ public class SentinelTransactionRepository extends AbstractTransactionRepository
 
     private AbstractTransactionRepository degradedTransactionRepository;
 
+    private boolean migrationEnabled = false;
+
+    private double migrationRatePerSecond = 100;
+
+    private int migrationIntervalSeconds = 5;
+
+    private int migrationPageSize = 100;
+
+    private boolean hedgeEnabled = false;
+
+    // the deadline if the sentinel controller has no latency percentile, and the upper bound of it
+    private long hedgeDelayMillis = 100;
+
+    private long hedgeMinDelayMillis = 2;
+
+    private int hedgeThreadPoolSize = 64;
+
+    private TransactionSerializer serializer = new RegisterableKryoTransactionSerializer();
+
+    private DegradedTransactionMigrator migrator;
+
+    private HedgedTransactionWriter hedgedWriter;
+
     public SentinelTransactionRepository() {
     }
 
@@ -31,15 +72,32 @@ public class SentinelTransactionRepository extends AbstractTransactionRepository
         if (sentinelController == null) {
             throw new SystemException("SentinelController cann't be null");
         }
+
+        if (hedgeEnabled && !migrationEnabled) {
+            throw new SystemException("hedgeEnabled requires migrationEnabled");
+        }
+
+        if (migrationEnabled && migrator == null) {
+            migrator = new DegradedTransactionMigrator(this);
+            migrator.start();
+        }
+
+        if (hedgeEnabled && hedgedWriter == null) {
+            hedgedWriter = new HedgedTransactionWriter(this, migrator);
+            hedgedWriter.start();
+        }
     }
 
     @Override
     protected int doCreate(Transaction transaction) {
 
         if (!sentinelController.degrade()) {
-            return workTransactionRepository.doCreate(transaction);
+            if (hedgedWriter != null) {
+                return hedgedWriter.create(transaction);
+            }
+            return callWork(() -> workTransactionRepository.doCreate(transaction));
         } else {
-            return degradedTransactionRepository.doCreate(transaction);
+            return degradedWritten(degradedTransactionRepository.doCreate(transaction));
         }
     }
 
@@ -47,9 +105,13 @@ public class SentinelTransactionRepository extends AbstractTransactionRepository
     protected int doUpdate(Transaction transaction) {
 
         if (!sentinelController.degrade()) {
-            return workTransactionRepository.doUpdate(transaction);
+            if (hedgedWriter != null) {
+                return hedgedWriter.update(transaction);
+            }
+            int result = callWork(() -> workTransactionRepository.doUpdate(transaction));
+            return result <= 0 && isMigrationPending() ? fallbackUpdate(transaction) : result;
         } else {
-            return degradedTransactionRepository.doUpdate(transaction);
+            return degradedWritten(degradedTransactionRepository.doUpdate(transaction));
         }
     }
 
@@ -57,7 +119,10 @@ public class SentinelTransactionRepository extends AbstractTransactionRepository
     protected int doDelete(Transaction transaction) {
 
         if (!sentinelController.degrade()) {
-            return workTransactionRepository.doDelete(transaction);
+            if (hedgedWriter != null) {
+                return hedgedWriter.delete(transaction);
+            }
+            return isMigrationPending() ? fallbackDelete(transaction) : callWork(() -> workTransactionRepository.doDelete(transaction));
         } else {
             return degradedTransactionRepository.doDelete(transaction);
         }
@@ -66,7 +131,8 @@ public class SentinelTransactionRepository extends AbstractTransactionRepository
     @Override
     protected Transaction doFindOne(Xid xid) {
         if (!sentinelController.degrade()) {
-            return workTransactionRepository.doFindOne(xid);
+            Transaction transaction = callWork(() -> workTransactionRepository.doFindOne(xid));
+            return transaction == null && isMigrationPending() ? degradedTransactionRepository.doFindOne(xid) : transaction;
         } else {
             return degradedTransactionRepository.doFindOne(xid);
         }
@@ -75,12 +141,33 @@ public class SentinelTransactionRepository extends AbstractTransactionRepository
     @Override
     protected Transaction doFindRootOne(Xid xid) {
         if (!sentinelController.degrade()) {
-            return workTransactionRepository.doFindRootOne(xid);
+            Transaction transaction = callWork(() -> workTransactionRepository.doFindRootOne(xid));
+            return transaction == null && isMigrationPending() ? degradedTransactionRepository.doFindRootOne(xid) : transaction;
         } else {
             return degradedTransactionRepository.doFindRootOne(xid);
         }
     }
 
+    @Override
+    protected Map<Xid, TransactionStatus> doFindRootStatuses(Collection<Xid> xids) {
+        if (!sentinelController.degrade()) {
+            Map<Xid, TransactionStatus> statuses = callWork(() -> workTransactionRepository.doFindRootStatuses(xids));
+
+            if (isMigrationPending() && statuses.size() < xids.size()) {
+                List<Xid> missed = new ArrayList<>();
+                for (Xid xid : xids) {
+                    if (!statuses.containsKey(xid)) {
+                        missed.add(xid);
+                    }
+                }
+                statuses.putAll(degradedTransactionRepository.doFindRootStatuses(missed));
+            }
+            return statuses;
+        } else {
+            return degradedTransactionRepository.doFindRootStatuses(xids);
+        }
+    }
+
     @Override
     protected Page<Transaction> doFindAllUnmodifiedSince(Date date, String offset, int pageSize) {
 
@@ -91,6 +178,91 @@ public class SentinelTransactionRepository extends AbstractTransactionRepository
         }
     }
 
+    @Override
+    public void close() {
+        if (hedgedWriter != null) {
+            hedgedWriter.stop();
+        }
+        if (migrator != null) {
+            migrator.stop();
+        }
+    }
+
+    /*
+     * true if a hedged write of the transaction to the work repository is not completed.
+     * */
+    boolean isHedging(Xid xid) {
+        return hedgedWriter != null && hedgedWriter.isInflight(xid);
+    }
+
+    private boolean isMigrationPending() {
+        return migrator != null && migrator.isPending();
+    }
+
+    private int degradedWritten(int result) {
+        if (migrator != null && result > 0) {
+            migrator.degradedWritten();
+        }
+        return result;
+    }
+
+    /*
+     * the transaction is in one of the repositories while holding the lock of the migrator.
+     * */
+    private int fallbackUpdate(Transaction transaction) {
+
+        Lock lock = migrator.getLock(transaction.getXid());
+        lock.lock();
+
+        try {
+            long version = transaction.getVersion();
+            Date lastUpdateTime = transaction.getLastUpdateTime();
+
+            int result = callWork(() -> workTransactionRepository.doUpdate(transaction));
+
+            if (result <= 0) {
+                // some repositories change them even if not updated
+                transaction.setVersion(version);
+                transaction.setLastUpdateTime(lastUpdateTime);
+                result = degradedTransactionRepository.doUpdate(transaction);
+            }
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private int fallbackDelete(Transaction transaction) {
+
+        Lock lock = migrator.getLock(transaction.getXid());
+        lock.lock();
+
+        try {
+            int result = callWork(() -> workTransactionRepository.doDelete(transaction));
+            degradedTransactionRepository.doDelete(transaction);
+            return result;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /*
+     * the latency and the failures of the work repository are reported to the sentinel controller.
+     * */
+    <T> T callWork(Supplier<T> call) {
+
+        long start = System.nanoTime();
+
+        try {
+            T result = call.get();
+            sentinelController.recordSuccess(System.nanoTime() - start);
+            return result;
+        } catch (RuntimeException e) {
+            sentinelController.recordFailure(System.nanoTime() - start, e);
+            throw e;
+        }
+    }
+
     public SentinelController getSentinelController() {
         return sentinelController;
     }
@@ -115,6 +287,86 @@ public class SentinelTransactionRepository extends AbstractTransactionRepository
         this.degradedTransactionRepository = degradedTransactionRepository;
     }
 
+    public boolean isMigrationEnabled() {
+        return migrationEnabled;
+    }
+
+    public void setMigrationEnabled(boolean migrationEnabled) {
+        this.migrationEnabled = migrationEnabled;
+    }
+
+    public double getMigrationRatePerSecond() {
+        return migrationRatePerSecond;
+    }
+
+    public void setMigrationRatePerSecond(double migrationRatePerSecond) {
+        this.migrationRatePerSecond = migrationRatePerSecond;
+    }
+
+    public int getMigrationIntervalSeconds() {
+        return migrationIntervalSeconds;
+    }
+
+    public void setMigrationIntervalSeconds(int migrationIntervalSeconds) {
+        this.migrationIntervalSeconds = migrationIntervalSeconds;
+    }
+
+    public int getMigrationPageSize() {
+        return migrationPageSize;
+    }
+
+    public void setMigrationPageSize(int migrationPageSize) {
+        this.migrationPageSize = migrationPageSize;
+    }
+
+    public boolean isHedgeEnabled() {
+        return hedgeEnabled;
+    }
+
+    public void setHedgeEnabled(boolean hedgeEnabled) {
+        this.hedgeEnabled = hedgeEnabled;
+    }
+
+    public long getHedgeDelayMillis() {
+        return hedgeDelayMillis;
+    }
+
+    public void setHedgeDelayMillis(long hedgeDelayMillis) {
+        this.hedgeDelayMillis = hedgeDelayMillis;
+    }
+
+    public long getHedgeMinDelayMillis() {
+        return hedgeMinDelayMillis;
+    }
+
+    public void setHedgeMinDelayMillis(long hedgeMinDelayMillis) {
+        this.hedgeMinDelayMillis = hedgeMinDelayMillis;
+    }
+
+    public int getHedgeThreadPoolSize() {
+        return hedgeThreadPoolSize;
+    }
+
+    public void setHedgeThreadPoolSize(int hedgeThreadPoolSize) {
+        this.hedgeThreadPoolSize = hedgeThreadPoolSize;
+    }
+
+    public TransactionSerializer getSerializer() {
+        return serializer;
+    }
+
+    public void setSerializer(TransactionSerializer serializer) {
+        this.serializer = serializer;
+    }
+
+    public DegradedTransactionMigrator getMigrator() {
+        return migrator;
+    }
+
+    public HedgedTransactionWriter getHedgedWriter() {
+        return hedgedWriter;
+    }
+
     @Override
     public String getDomain() {
         if (!sentinelController.degrade()) {
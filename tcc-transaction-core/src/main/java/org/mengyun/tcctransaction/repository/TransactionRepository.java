@@ -1,10 +1,14 @@
 package org.mengyun.tcctransaction.repository;
 
 import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
 
 import javax.transaction.xa.Xid;
 import java.io.Closeable;
+import java.util.Collection;
 import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
 
 /**
  * 事务存储接口，不同的存储器通过实现该接口，提供事务的增删改查功能。
@@ -26,8 +30,53 @@ public interface TransactionRepository extends Closeable {
 
     Transaction findByRootXid(Xid xid);
 
+    /**
+     * 批量查询根事务的状态，不存在的根事务不在返回结果中。存储支持时只查询状态，不反序列化事务
+     */
+    default Map<Xid, TransactionStatus> findRootStatuses(Collection<Xid> xids) {
+
+        Map<Xid, TransactionStatus> statuses = new HashMap<>();
+
+        for (Xid xid : xids) {
+            Transaction transaction = findByRootXid(xid);
+            if (transaction != null) {
+                statuses.put(xid, transaction.getStatus());
+            }
+        }
+
+        return statuses;
+    }
+
     Page<Transaction> findAllUnmodifiedSince(Date date, String offset, int pageSize);
 
+    /**
+     * 是否支持死信存储，不支持时超过最大重试次数的事务留在事务存储中，以下死信方法不移动、不查询任何事务
+     */
+    default boolean isDeadLetterSupported() {
+        return false;
+    }
+
+    /**
+     * 将超过最大重试次数的事务原子地移到死信存储，不再被恢复查询。存储中的版本与事务版本一致时才移动，返回移动的数量
+     */
+    default int moveToDeadLetter(Transaction transaction) {
+        return 0;
+    }
+
+    /**
+     * 分页查询死信存储中的事务
+     */
+    default Page<Transaction> findAllDeadLetters(String offset, int pageSize) {
+        return new Page<Transaction>();
+    }
+
+    /**
+     * 将死信事务移回事务存储，重试次数清零，由下次恢复重新处理，返回移回的数量
+     */
+    default int replayDeadLetter(Xid xid) {
+        return 0;
+    }
+
     @Override
     default void close() {
 
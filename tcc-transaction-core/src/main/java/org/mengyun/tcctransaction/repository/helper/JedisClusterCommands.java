@@ -19,6 +19,11 @@ public class JedisClusterCommands implements RedisCommands {
         return this.jedisCluster.eval(scripts, keys, args);
     }
 
+    @Override
+    public Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        return this.jedisCluster.evalsha(sha1, keys, args);
+    }
+
     @Override
     public Long del(byte[] key) {
         return this.jedisCluster.del(key);
@@ -29,6 +34,11 @@ public class JedisClusterCommands implements RedisCommands {
         return this.jedisCluster.hgetAll(key);
     }
 
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+        return this.jedisCluster.hget(key, field);
+    }
+
     @Override
     public void hset(byte[] key, byte[] field, byte[] value) {
         this.jedisCluster.hset(key, field, value);
@@ -41,7 +51,7 @@ public class JedisClusterCommands implements RedisCommands {
 
     @Override
     public void expire(byte[] key, int expireTime) {
-        this.expire(key, expireTime);
+        this.jedisCluster.expire(key, expireTime);
     }
 
     @Override
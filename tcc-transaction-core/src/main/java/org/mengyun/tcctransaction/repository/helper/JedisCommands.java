@@ -20,6 +20,11 @@ public class JedisCommands implements RedisCommands {
         return this.jedis.eval(scripts, keys, args);
     }
 
+    @Override
+    public Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        return this.jedis.evalsha(sha1, keys, args);
+    }
+
     @Override
     public Long del(byte[] key) {
         return this.jedis.del(key);
@@ -30,6 +35,11 @@ public class JedisCommands implements RedisCommands {
         return this.jedis.hgetAll(key);
     }
 
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+        return this.jedis.hget(key, field);
+    }
+
     @Override
     public void hset(byte[] key, byte[] field, byte[] value) {
         this.jedis.hset(key, field, value);
@@ -0,0 +1,66 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.apache.commons.lang3.StringUtils;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * offset of scanning all shards at once, records the cursor of every shard.
+ * eg = 0,17,$ means the first shard is not started, the second is at cursor 17 and the third is finished.
+ */
+public class ParallelShardOffset {
+
+    public static String CURSOR_DELIMITER = ",";
+
+    public static String FINISHED_CURSOR = "$";
+
+    private List<String> cursors = new ArrayList<>();
+
+    public ParallelShardOffset(String offset, int shardCount) {
+
+        if (StringUtils.isNotEmpty(offset)) {
+            cursors.addAll(Arrays.asList(offset.split(CURSOR_DELIMITER)));
+        }
+
+        if (cursors.size() != shardCount) {
+            // first page or the shards changed, start over.
+            cursors.clear();
+            for (int i = 0; i < shardCount; i++) {
+                cursors.add(ShardOffset.SCAN_INIT_CURSOR);
+            }
+        }
+    }
+
+    public String getCursor(int shardIndex) {
+        return cursors.get(shardIndex);
+    }
+
+    public void setCursor(int shardIndex, String cursor) {
+        cursors.set(shardIndex, cursor);
+    }
+
+    public boolean isFinished(int shardIndex) {
+        return FINISHED_CURSOR.equals(cursors.get(shardIndex));
+    }
+
+    public void finish(int shardIndex) {
+        cursors.set(shardIndex, FINISHED_CURSOR);
+    }
+
+    public int getUnfinishedCount() {
+        int count = 0;
+        for (String cursor : cursors) {
+            if (!FINISHED_CURSOR.equals(cursor)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public String toString() {
+        return StringUtils.join(cursors, CURSOR_DELIMITER);
+    }
+}
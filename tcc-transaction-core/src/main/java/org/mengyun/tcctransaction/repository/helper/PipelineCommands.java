@@ -20,6 +20,12 @@ public class PipelineCommands implements RedisCommands {
         return null;
     }
 
+    @Override
+    public Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        pipeline.evalsha(sha1, keys, args);
+        return null;
+    }
+
     @Override
     public Long del(byte[] key) {
         pipeline.del(key);
@@ -32,6 +38,12 @@ public class PipelineCommands implements RedisCommands {
         return null;
     }
 
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+        pipeline.hget(key, field);
+        return null;
+    }
+
     @Override
     public void hset(byte[] key, byte[] field, byte[] value) {
         pipeline.hset(key, field, value);
@@ -1,5 +1,7 @@
 package org.mengyun.tcctransaction.repository.helper;
 
+import redis.clients.jedis.exceptions.JedisNoScriptException;
+
 import java.io.Closeable;
 import java.util.List;
 import java.util.Map;
@@ -8,10 +10,23 @@ public interface RedisCommands extends Closeable {
 
     Object eval(byte[] scripts, List<byte[]> keys, List<byte[]> args);
 
+    Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args);
+
+    default Object evalScript(RedisScript script, List<byte[]> keys, List<byte[]> args) {
+        try {
+            return evalsha(script.getSha1(), keys, args);
+        } catch (JedisNoScriptException e) {
+            // script cache flushed or node restarted, EVAL loads the script into the cache again.
+            return eval(script.getScript(), keys, args);
+        }
+    }
+
     Long del(byte[] key);
 
     Map<byte[], byte[]> hgetAll(byte[] key);
 
+    byte[] hget(byte[] key, byte[] field);
+
     void hset(byte[] key, byte[] field, byte[] value);
 
     void hdel(byte[] key, byte[] field);
@@ -1,5 +1,7 @@
 package org.mengyun.tcctransaction.repository.helper;
 
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.utils.ByteUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import redis.clients.jedis.*;
@@ -21,7 +23,54 @@ public class RedisHelper {
 
     public static String REDIS_SCAN_INIT_CURSOR = ShardOffset.SCAN_INIT_CURSOR;
 
+    public static String INDEX_KEY_PREFIX = "TCC_INDEX:";
+
+    public static String DEAD_LETTER_KEY_PREFIX = "DEAD:";
+
+    // KEYS[2] is the optional time index, ARGV[1] is the index score, the rest are the hash fields
+    public static final RedisScript CREATE_SCRIPT = new RedisScript(
+            "if redis.call('exists', KEYS[1]) == 0 then redis.call('hmset', KEYS[1], unpack(ARGV, 2)); " +
+                    "if #KEYS > 1 then redis.call('zadd', KEYS[2], ARGV[1], KEYS[1]); end; return 1; end; return 0;");
+
+    // ARGV[1] is the expected version, ARGV[2] is the index score, the rest are the hash fields
+    // records in the legacy layout (field 'VERSION') are rewritten to the current layout on update
+    // returns -1 if the key does not exist, the transaction may be stored under the legacy key
+    public static final RedisScript UPDATE_SCRIPT = new RedisScript(
+            "if redis.call('exists', KEYS[1]) == 0 then return -1; end; " +
+                    "local version = redis.call('hget', KEYS[1], 'v'); local legacy = not version; " +
+                    "if legacy then version = redis.call('hget', KEYS[1], 'VERSION'); end; " +
+                    "if version == ARGV[1] then if legacy then redis.call('del', KEYS[1]); end; " +
+                    "redis.call('hmset', KEYS[1], unpack(ARGV, 3)); " +
+                    "if #KEYS > 1 then redis.call('zadd', KEYS[2], ARGV[2], KEYS[1]); end; return 1; end; return 0;");
+
+    public static final RedisScript DELETE_SCRIPT = new RedisScript(
+            "local result = redis.call('del', KEYS[1]); " +
+                    "if #KEYS > 1 then redis.call('zrem', KEYS[2], KEYS[1]); end; return result;");
+
+    // KEYS[2] is the dead letter key, KEYS[3] is the optional time index, ARGV[1] is the expected version
+    // returns -1 if the key does not exist, the transaction may be stored under the legacy key
+    public static final RedisScript MOVE_TO_DEAD_LETTER_SCRIPT = new RedisScript(
+            "if redis.call('exists', KEYS[1]) == 0 then return -1; end; " +
+                    "local version = redis.call('hget', KEYS[1], 'v'); " +
+                    "if not version then version = redis.call('hget', KEYS[1], 'VERSION'); end; " +
+                    "if version == ARGV[1] then redis.call('rename', KEYS[1], KEYS[2]); " +
+                    "if #KEYS > 2 then redis.call('zrem', KEYS[3], KEYS[1]); end; return 1; end; return 0;");
+
+    // KEYS[1] is the dead letter key, KEYS[2] is the transaction key, KEYS[3] is the optional time index,
+    // ARGV[1] is the index score, the rest are the hash fields of the replayed transaction
+    public static final RedisScript REPLAY_DEAD_LETTER_SCRIPT = new RedisScript(
+            "if redis.call('exists', KEYS[2]) == 1 or redis.call('del', KEYS[1]) == 0 then return 0; end; " +
+                    "redis.call('hmset', KEYS[2], unpack(ARGV, 2)); " +
+                    "if #KEYS > 2 then redis.call('zadd', KEYS[3], ARGV[1], KEYS[2]); end; return 1;");
+
     public static byte[] getRedisKey(String keyPrefix, Xid xid) {
+        return ByteUtils.concat(keyPrefix.getBytes(), TransactionXid.toStoreKey(xid));
+    }
+
+    /*
+     * key of the transactions stored before the compact binary key is used.
+     * */
+    public static byte[] getLegacyRedisKey(String keyPrefix, Xid xid) {
         return new StringBuilder().append(keyPrefix).append(xid.toString()).toString().getBytes();
     }
 
@@ -34,6 +83,17 @@ public class RedisHelper {
                 .getBytes();
     }
 
+    /*
+     * the dead letter is renamed from the transaction key, so it stays on the same redis node.
+     * */
+    public static byte[] getDeadLetterKey(byte[] key) {
+        return ByteUtils.concat(DEAD_LETTER_KEY_PREFIX.getBytes(), key);
+    }
+
+    public static byte[] getIndexKey(String keyPrefix) {
+        return new StringBuilder().append(INDEX_KEY_PREFIX).append(keyPrefix).toString().getBytes();
+    }
+
     public static <T> T execute(JedisPool jedisPool, JedisCallback<T> callback) {
         try (Jedis jedis = jedisPool.getResource()) {
             return callback.doInJedis(jedis);
@@ -0,0 +1,43 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.mengyun.tcctransaction.SystemException;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * lua script with its sha1 digest, the script is sent by EVALSHA and only falls back to EVAL on NOSCRIPT.
+ */
+public class RedisScript {
+
+    private final byte[] script;
+
+    private final byte[] sha1;
+
+    public RedisScript(String script) {
+        this.script = script.getBytes(StandardCharsets.UTF_8);
+        this.sha1 = sha1Hex(this.script);
+    }
+
+    public byte[] getScript() {
+        return script;
+    }
+
+    public byte[] getSha1() {
+        return sha1;
+    }
+
+    private static byte[] sha1Hex(byte[] script) {
+        try {
+            byte[] digest = MessageDigest.getInstance("SHA-1").digest(script);
+            StringBuilder builder = new StringBuilder(digest.length * 2);
+            for (byte b : digest) {
+                builder.append(Character.forDigit((b >> 4) & 0xF, 16)).append(Character.forDigit(b & 0xF, 16));
+            }
+            return builder.toString().getBytes(StandardCharsets.UTF_8);
+        } catch (NoSuchAlgorithmException e) {
+            throw new SystemException(e);
+        }
+    }
+}
@@ -0,0 +1,192 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import com.google.common.util.concurrent.Uninterruptibles;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteBatch;
+import org.rocksdb.WriteOptions;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * group commit of RocksDB writes, the mutations of concurrent callers are applied to one WriteBatch and written
+ * with one WAL sync, each caller returns once the batch containing its mutation is written.
+ */
+public class RocksDbGroupCommitWriter implements AutoCloseable {
+
+    static final Logger log = LoggerFactory.getLogger(RocksDbGroupCommitWriter.class.getSimpleName());
+
+    private static final long POLL_TIMEOUT_MILLIS = 100;
+
+    private final RocksDB db;
+
+    private final WriteOptions writeOptions;
+
+    private final long flushIntervalNanos;
+
+    private final int maxBatchSize;
+
+    private final BlockingQueue<PendingWrite> queue = new LinkedBlockingQueue<>();
+
+    private final Thread flushThread;
+
+    private volatile boolean closed = false;
+
+    /**
+     * @param flushIntervalMillis how long the first mutation of a batch waits for others, 0 only groups the mutations queued during the last write.
+     * @param maxBatchSize        the max mutations in one batch.
+     */
+    public RocksDbGroupCommitWriter(RocksDB db, WriteOptions writeOptions, long flushIntervalMillis, int maxBatchSize) {
+        this.db = db;
+        this.writeOptions = writeOptions;
+        this.flushIntervalNanos = TimeUnit.MILLISECONDS.toNanos(flushIntervalMillis);
+        this.maxBatchSize = maxBatchSize;
+
+        this.flushThread = new Thread(this::flushLoop, "tcc-rocksdb-group-commit");
+        this.flushThread.setDaemon(true);
+        this.flushThread.start();
+    }
+
+    public void write(Mutation mutation) throws RocksDBException {
+
+        if (closed) {
+            throw new TransactionIOException("group commit writer is closed");
+        }
+
+        PendingWrite pendingWrite = new PendingWrite(mutation);
+        queue.add(pendingWrite);
+
+        // closed while queuing, taken back if neither the flush thread nor close has taken it
+        if (closed && queue.remove(pendingWrite)) {
+            throw new TransactionIOException("group commit writer is closed");
+        }
+
+        try {
+            // not interruptible, the mutation may be written anyway once queued.
+            Uninterruptibles.getUninterruptibly(pendingWrite.future);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RocksDBException) {
+                throw (RocksDBException) e.getCause();
+            }
+            throw new TransactionIOException(e.getCause());
+        }
+    }
+
+    /*
+     * the writes queued before are flushed, the ones queued after the flush thread exits are failed.
+     * */
+    @Override
+    public void close() {
+        closed = true;
+        Uninterruptibles.joinUninterruptibly(flushThread);
+        failPendingWrites(new TransactionIOException("group commit writer is closed"));
+    }
+
+    private void flushLoop() {
+
+        while (!closed || !queue.isEmpty()) {
+
+            try {
+                PendingWrite first = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+
+                if (first == null) {
+                    continue;
+                }
+
+                List<PendingWrite> group = new ArrayList<>();
+                group.add(first);
+
+                long deadline = System.nanoTime() + flushIntervalNanos;
+
+                while (group.size() < maxBatchSize) {
+                    long remaining = deadline - System.nanoTime();
+                    PendingWrite next = remaining > 0 ? queue.poll(remaining, TimeUnit.NANOSECONDS) : queue.poll();
+                    if (next == null) {
+                        break;
+                    }
+                    group.add(next);
+                }
+
+                flush(group);
+
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                log.warn("group commit flush thread interrupted, {} pending writes failed.", queue.size());
+                closed = true;
+                failPendingWrites(new TransactionIOException("group commit flush thread interrupted"));
+                return;
+            } catch (Throwable e) {
+                log.error("group commit flush failed.", e);
+            }
+        }
+    }
+
+    /*
+     * every write of the group is completed, the failed mutations are completed when applied.
+     * */
+    private void flush(List<PendingWrite> group) {
+
+        Throwable failure = null;
+
+        try (WriteBatch writeBatch = new WriteBatch()) {
+
+            for (PendingWrite pendingWrite : group) {
+                writeBatch.setSavePoint();
+                try {
+                    pendingWrite.mutation.apply(writeBatch);
+                    writeBatch.popSavePoint();
+                } catch (Exception e) {
+                    // only the failed mutation is dropped from the batch.
+                    writeBatch.rollbackToSavePoint();
+                    pendingWrite.future.completeExceptionally(e);
+                }
+            }
+
+            db.write(writeOptions, writeBatch);
+
+        } catch (Throwable e) {
+            failure = e;
+            log.error("group commit flush failed.", e);
+        } finally {
+            for (PendingWrite pendingWrite : group) {
+                if (failure == null) {
+                    pendingWrite.future.complete(null);
+                } else {
+                    pendingWrite.future.completeExceptionally(failure);
+                }
+            }
+        }
+    }
+
+    private void failPendingWrites(Throwable failure) {
+
+        PendingWrite pendingWrite;
+        while ((pendingWrite = queue.poll()) != null) {
+            pendingWrite.future.completeExceptionally(failure);
+        }
+    }
+
+    public interface Mutation {
+        void apply(WriteBatch writeBatch) throws RocksDBException;
+    }
+
+    private static class PendingWrite {
+
+        private final Mutation mutation;
+
+        private final CompletableFuture<Void> future = new CompletableFuture<>();
+
+        PendingWrite(Mutation mutation) {
+            this.mutation = mutation;
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.rocksdb.*;
+import org.rocksdb.util.SizeUnit;
+
+/**
+ * tuning of RocksDbTransactionRepository, configured as a bean or taken from the presets durable() and throughput().
+ * <p/>
+ * syncWrite fsyncs the WAL on every write, disableWAL loses the recent writes on a crash, do not disable it for a degraded store.
+ */
+public class RocksDbTuning {
+
+    /**
+     * bits per key of the bloom filter used by point lookups, 0 to disable the filter.
+     */
+    private int bloomFilterBitsPerKey = 10;
+
+    /**
+     * size of the LRU block cache shared by the domain and root domain databases, in bytes.
+     */
+    private long blockCacheSize = 8 * SizeUnit.MB;
+
+    private long writeBufferSize = 64 * SizeUnit.MB;
+
+    private CompactionStyle compactionStyle = CompactionStyle.LEVEL;
+
+    private int maxBackgroundJobs = 2;
+
+    private boolean useDirectReads = false;
+
+    private boolean useDirectIoForFlushAndCompaction = false;
+
+    private boolean syncWrite = false;
+
+    private boolean disableWAL = false;
+
+    public static RocksDbTuning durable() {
+        RocksDbTuning tuning = new RocksDbTuning();
+        tuning.setBlockCacheSize(32 * SizeUnit.MB);
+        tuning.setSyncWrite(true);
+        return tuning;
+    }
+
+    public static RocksDbTuning throughput() {
+        RocksDbTuning tuning = new RocksDbTuning();
+        tuning.setBlockCacheSize(128 * SizeUnit.MB);
+        tuning.setWriteBufferSize(128 * SizeUnit.MB);
+        tuning.setCompactionStyle(CompactionStyle.UNIVERSAL);
+        tuning.setMaxBackgroundJobs(4);
+        tuning.setSyncWrite(false);
+        return tuning;
+    }
+
+    public Options newOptions(Cache blockCache, Filter bloomFilter) {
+
+        BlockBasedTableConfig tableConfig = new BlockBasedTableConfig();
+
+        if (blockCache != null) {
+            tableConfig.setBlockCache(blockCache);
+        }
+
+        if (bloomFilter != null) {
+            tableConfig.setFilterPolicy(bloomFilter);
+        }
+
+        return new Options()
+                .setCreateIfMissing(true)
+                .setKeepLogFileNum(1l)
+                .setTableFormatConfig(tableConfig)
+                .setWriteBufferSize(writeBufferSize)
+                .setCompactionStyle(compactionStyle)
+                .setMaxBackgroundJobs(maxBackgroundJobs)
+                .setUseDirectReads(useDirectReads)
+                .setUseDirectIoForFlushAndCompaction(useDirectIoForFlushAndCompaction);
+    }
+
+    public Cache newBlockCache() {
+        return blockCacheSize > 0 ? new LRUCache(blockCacheSize) : null;
+    }
+
+    public Filter newBloomFilter() {
+        return bloomFilterBitsPerKey > 0 ? new BloomFilter(bloomFilterBitsPerKey, false) : null;
+    }
+
+    public WriteOptions newWriteOptions() {
+        return new WriteOptions().setSync(syncWrite).setDisableWAL(disableWAL);
+    }
+
+    public int getBloomFilterBitsPerKey() {
+        return bloomFilterBitsPerKey;
+    }
+
+    public void setBloomFilterBitsPerKey(int bloomFilterBitsPerKey) {
+        this.bloomFilterBitsPerKey = bloomFilterBitsPerKey;
+    }
+
+    public long getBlockCacheSize() {
+        return blockCacheSize;
+    }
+
+    public void setBlockCacheSize(long blockCacheSize) {
+        this.blockCacheSize = blockCacheSize;
+    }
+
+    public long getWriteBufferSize() {
+        return writeBufferSize;
+    }
+
+    public void setWriteBufferSize(long writeBufferSize) {
+        this.writeBufferSize = writeBufferSize;
+    }
+
+    public CompactionStyle getCompactionStyle() {
+        return compactionStyle;
+    }
+
+    public void setCompactionStyle(CompactionStyle compactionStyle) {
+        this.compactionStyle = compactionStyle;
+    }
+
+    public int getMaxBackgroundJobs() {
+        return maxBackgroundJobs;
+    }
+
+    public void setMaxBackgroundJobs(int maxBackgroundJobs) {
+        this.maxBackgroundJobs = maxBackgroundJobs;
+    }
+
+    public boolean isUseDirectReads() {
+        return useDirectReads;
+    }
+
+    public void setUseDirectReads(boolean useDirectReads) {
+        this.useDirectReads = useDirectReads;
+    }
+
+    public boolean isUseDirectIoForFlushAndCompaction() {
+        return useDirectIoForFlushAndCompaction;
+    }
+
+    public void setUseDirectIoForFlushAndCompaction(boolean useDirectIoForFlushAndCompaction) {
+        this.useDirectIoForFlushAndCompaction = useDirectIoForFlushAndCompaction;
+    }
+
+    public boolean isSyncWrite() {
+        return syncWrite;
+    }
+
+    public void setSyncWrite(boolean syncWrite) {
+        this.syncWrite = syncWrite;
+    }
+
+    public boolean isDisableWAL() {
+        return disableWAL;
+    }
+
+    public void setDisableWAL(boolean disableWAL) {
+        this.disableWAL = disableWAL;
+    }
+}
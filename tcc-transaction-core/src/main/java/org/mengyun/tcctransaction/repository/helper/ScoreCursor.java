@@ -0,0 +1,54 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.mengyun.tcctransaction.utils.ByteUtils;
+
+/**
+ * cursor of paging a sorted set by score and member: score:hex of the last member returned, the members of the same score
+ * are ordered by their bytes, so the page goes on from the score inclusive with the members not after the cursor skipped.
+ * the init cursor and the end cursor are both ShardOffset.SCAN_INIT_CURSOR.
+ */
+public class ScoreCursor {
+
+    public static String CURSOR_DELIMITER = ":";
+
+    private boolean init = true;
+
+    private long score = Long.MIN_VALUE;
+
+    private byte[] member = new byte[0];
+
+    public ScoreCursor(String cursor) {
+
+        if (cursor != null && !ShardOffset.SCAN_INIT_CURSOR.equals(cursor)) {
+            String[] cursorArray = cursor.split(CURSOR_DELIMITER);
+            this.init = false;
+            this.score = Long.parseLong(cursorArray[0]);
+            this.member = ByteUtils.hexToBytes(cursorArray[1]);
+        }
+    }
+
+    public boolean isInit() {
+        return init;
+    }
+
+    public long getScore() {
+        return score;
+    }
+
+    public String getMin() {
+        return init ? "-inf" : String.valueOf(score);
+    }
+
+    /*
+     * true if the member is after the cursor, the ones returned in the last page are not.
+     * */
+    public boolean isAfter(long score, byte[] member) {
+        return init || score > this.score
+                || score == this.score && UnsignedBytes.lexicographicalComparator().compare(member, this.member) > 0;
+    }
+
+    public static String of(long score, byte[] member) {
+        return score + CURSOR_DELIMITER + ByteUtils.bytesToHex(member);
+    }
+}
@@ -0,0 +1,726 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import com.google.common.primitives.UnsignedBytes;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.zip.CRC32;
+
+/**
+ * append-only log of memory mapped segment files with an in-memory index of the latest record of each key.
+ * <p/>
+ * record: length(4) crc32(4) type(1) version(8) lastUpdateTime(8) keyLength(4) key value, length and crc cover the bytes after them.
+ * segments are preallocated and zero filled, a zero length or a crc mismatch ends the records of a segment.
+ * <p/>
+ * writes returns once the record is forced to disk if syncWrite, the concurrent writers share one force.
+ * the index is saved to the checkpoint file with the log position it covers, opening loads the checkpoint and replays the records after it.
+ * compaction copies the live records of the oldest segment to the end of the log and deletes it, only the oldest one is compacted,
+ * so that the records deleted by the tombstones in it do not exist in any older segment.
+ */
+public class SegmentLog implements AutoCloseable {
+
+    static final Logger log = LoggerFactory.getLogger(SegmentLog.class.getSimpleName());
+
+    private static final String SEGMENT_FILE_SUFFIX = ".log";
+    private static final String CHECKPOINT_FILE_NAME = "checkpoint";
+    private static final int CHECKPOINT_MAGIC = 0x7cc10901;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int RECORD_META_SIZE = 1 + 8 + 8 + 4;
+
+    private static final byte TYPE_PUT = 1;
+    private static final byte TYPE_DELETE = 2;
+
+    private final File dir;
+
+    private final int segmentSize;
+
+    private final boolean syncWrite;
+
+    private final boolean readOnly;
+
+    private final NavigableMap<byte[], Entry> index = new ConcurrentSkipListMap<>(UnsignedBytes.lexicographicalComparator());
+
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+
+    private final Object appendLock = new Object();
+
+    private final Object syncLock = new Object();
+
+    private Segment activeSegment;
+
+    private int writePosition;
+
+    // bytes appended since opened, the writers wait until the durable sequence reaches the sequence of their record
+    private long appendedSequence;
+
+    private volatile long durableSequence;
+
+    private volatile boolean closed = false;
+
+    private SegmentLog(File dir, int segmentSize, boolean syncWrite, boolean readOnly) {
+        this.dir = dir;
+        this.segmentSize = segmentSize;
+        this.syncWrite = syncWrite;
+        this.readOnly = readOnly;
+    }
+
+    public static SegmentLog open(File dir, int segmentSize, boolean syncWrite) {
+
+        if (!dir.exists() && !dir.mkdirs()) {
+            throw new TransactionIOException("cannot create segment log dir:" + dir);
+        }
+
+        SegmentLog segmentLog = new SegmentLog(dir, segmentSize, syncWrite, false);
+        segmentLog.load();
+        return segmentLog;
+    }
+
+    /**
+     * read view of the log written by other process, call catchUp() to read the records appended since.
+     */
+    public static SegmentLog openReadOnly(File dir) {
+        SegmentLog segmentLog = new SegmentLog(dir, 0, false, true);
+        segmentLog.catchUp();
+        return segmentLog;
+    }
+
+    public Entry getEntry(byte[] key) {
+        return index.get(key);
+    }
+
+    public byte[] get(byte[] key) {
+        Entry entry = index.get(key);
+        return entry == null ? null : entry.readValue();
+    }
+
+    /**
+     * the index ordered by the unsigned key bytes, read only.
+     */
+    public NavigableMap<byte[], Entry> getIndex() {
+        return Collections.unmodifiableNavigableMap(index);
+    }
+
+    public void put(byte[] key, long version, long lastUpdateTime, byte[] value) {
+        awaitDurable(append(TYPE_PUT, key, version, lastUpdateTime, value));
+    }
+
+    public void delete(byte[] key) {
+        if (index.containsKey(key)) {
+            awaitDurable(append(TYPE_DELETE, key, 0, 0, new byte[0]));
+        }
+    }
+
+    /**
+     * the records of the tail segment are appended by the writer, replay from where the last call stops.
+     */
+    public synchronized void catchUp() {
+
+        File[] files = listSegmentFiles();
+
+        for (File file : files) {
+
+            long id = parseSegmentId(file);
+
+            if (activeSegment != null && id < activeSegment.id) {
+                continue;
+            }
+
+            if (activeSegment == null || id > activeSegment.id) {
+                activeSegment = openSegment(file, id);
+                segments.put(id, activeSegment);
+                writePosition = 0;
+            } else if (file.length() > activeSegment.size) {
+                // mapped before the writer set the length
+                activeSegment = openSegment(file, id);
+                segments.put(id, activeSegment);
+            }
+
+            writePosition = replay(activeSegment, writePosition);
+        }
+
+        // drop the segments compacted by the writer once their records are replayed from the copies
+        segments.values().removeIf(segment -> segment != activeSegment && segment.liveBytes <= 0 && !segment.file.exists());
+    }
+
+    /**
+     * saves the index and the log position it covers, the records before the position are forced to disk first.
+     */
+    public synchronized void checkpoint() {
+
+        if (readOnly || closed) {
+            return;
+        }
+
+        List<Map.Entry<byte[], Entry>> snapshot;
+        long segmentId;
+        int position;
+        long sequence;
+
+        synchronized (appendLock) {
+            snapshot = new ArrayList<>(index.entrySet());
+            segmentId = activeSegment.id;
+            position = writePosition;
+            sequence = appendedSequence;
+        }
+
+        forceTo(sequence);
+
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+
+            out.writeInt(CHECKPOINT_MAGIC);
+            out.writeLong(segmentId);
+            out.writeInt(position);
+            out.writeInt(snapshot.size());
+
+            for (Map.Entry<byte[], Entry> item : snapshot) {
+                Entry entry = item.getValue();
+                out.writeInt(item.getKey().length);
+                out.write(item.getKey());
+                out.writeLong(entry.segment.id);
+                out.writeInt(entry.position);
+                out.writeInt(entry.length);
+                out.writeLong(entry.version);
+                out.writeLong(entry.lastUpdateTime);
+            }
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes.toByteArray());
+            out.writeLong(crc32.getValue());
+            out.flush();
+
+            File tmpFile = new File(dir, CHECKPOINT_FILE_NAME + ".tmp");
+
+            try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+                raf.setLength(0);
+                raf.write(bytes.toByteArray());
+                raf.getChannel().force(true);
+            }
+
+            Files.move(tmpFile.toPath(), new File(dir, CHECKPOINT_FILE_NAME).toPath(),
+                    StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    /**
+     * compacts the oldest segments while their live bytes are less than the ratio of their written bytes.
+     */
+    public synchronized int compact(double liveRatio) {
+
+        if (readOnly) {
+            return 0;
+        }
+
+        int compacted = 0;
+
+        while (!closed) {
+
+            Segment oldest;
+
+            synchronized (appendLock) {
+                oldest = segments.firstEntry().getValue();
+
+                if (oldest == activeSegment || oldest.liveBytes >= oldest.limit * liveRatio) {
+                    break;
+                }
+            }
+
+            for (Map.Entry<byte[], Entry> item : index.entrySet()) {
+                if (item.getValue().segment == oldest) {
+                    relocate(item.getKey(), item.getValue());
+                }
+            }
+
+            long sequence;
+            synchronized (appendLock) {
+                sequence = appendedSequence;
+                segments.remove(oldest.id);
+            }
+
+            // the copies are durable before the segment is deleted, the mapping is kept for the readers holding its entries
+            forceTo(sequence);
+            oldest.closeChannel();
+            if (!oldest.file.delete()) {
+                log.warn("cannot delete compacted segment {}", oldest.file);
+            }
+
+            compacted++;
+        }
+
+        return compacted;
+    }
+
+    @Override
+    public void close() {
+
+        if (closed) {
+            return;
+        }
+
+        if (!readOnly) {
+            checkpoint();
+        }
+
+        closed = true;
+
+        for (Segment segment : segments.values()) {
+            segment.closeChannel();
+        }
+    }
+
+    private void load() {
+
+        long checkpointSegmentId = -1;
+        int checkpointPosition = 0;
+
+        File[] files = listSegmentFiles();
+
+        for (File file : files) {
+            long id = parseSegmentId(file);
+            Segment segment = openSegment(file, id);
+            segment.limit = scanLimit(segment);
+            segments.put(id, segment);
+        }
+
+        Checkpoint checkpoint = readCheckpoint();
+
+        if (checkpoint != null) {
+            checkpointSegmentId = checkpoint.segmentId;
+            checkpointPosition = checkpoint.position;
+
+            for (Map.Entry<byte[], long[]> item : checkpoint.entries.entrySet()) {
+                long[] values = item.getValue();
+                Segment segment = segments.get(values[0]);
+
+                if (segment == null) {
+                    // the segment is compacted after the checkpoint, the copy is replayed later.
+                    continue;
+                }
+
+                index.put(item.getKey(), new Entry(segment, (int) values[1], (int) values[2], values[3], values[4]));
+                segment.liveBytes += values[2];
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+
+            if (segment.id < checkpointSegmentId) {
+                continue;
+            }
+
+            int from = segment.id == checkpointSegmentId ? checkpointPosition : 0;
+            segment.limit = replay(segment, from);
+            activeSegment = segment;
+        }
+
+        if (activeSegment == null) {
+            activeSegment = createSegment(segments.isEmpty() ? 1 : segments.lastKey() + 1, segmentSize);
+        }
+
+        writePosition = activeSegment.limit;
+
+        // clear the bytes of a torn record, so that the stale records after it are not replayed after the new ones.
+        ByteBuffer buffer = activeSegment.buffer.duplicate();
+        for (int i = writePosition; i < activeSegment.size; i++) {
+            if (buffer.get(i) != 0) {
+                buffer.put(i, (byte) 0);
+            }
+        }
+
+        log.info(String.format("segment log %s opened with %d segments and %d keys", dir, segments.size(), index.size()));
+    }
+
+    /*
+     * returns the position after the last valid record.
+     * */
+    private int replay(Segment segment, int from) {
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = from;
+
+        while (position + RECORD_HEADER_SIZE + RECORD_META_SIZE <= segment.size) {
+
+            int length = buffer.getInt(position);
+
+            if (length < RECORD_META_SIZE || position + RECORD_HEADER_SIZE + length > segment.size) {
+                break;
+            }
+
+            byte[] body = new byte[length];
+            buffer.position(position + RECORD_HEADER_SIZE);
+            buffer.get(body);
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(body);
+
+            if ((int) crc32.getValue() != buffer.getInt(position + 4)) {
+                break;
+            }
+
+            ByteBuffer record = ByteBuffer.wrap(body);
+            byte type = record.get();
+            long version = record.getLong();
+            long lastUpdateTime = record.getLong();
+            byte[] key = new byte[record.getInt()];
+            record.get(key);
+
+            if (type == TYPE_PUT) {
+                apply(key, new Entry(segment, position, RECORD_HEADER_SIZE + length, version, lastUpdateTime));
+            } else {
+                apply(key, null);
+            }
+
+            position += RECORD_HEADER_SIZE + length;
+        }
+
+        return position;
+    }
+
+    /*
+     * the position after the last record by following the lengths, the records before it are checked when written.
+     * */
+    private int scanLimit(Segment segment) {
+
+        ByteBuffer buffer = segment.buffer.duplicate();
+        int position = 0;
+
+        while (position + RECORD_HEADER_SIZE + RECORD_META_SIZE <= segment.size) {
+
+            int length = buffer.getInt(position);
+
+            if (length < RECORD_META_SIZE || position + RECORD_HEADER_SIZE + length > segment.size) {
+                break;
+            }
+
+            position += RECORD_HEADER_SIZE + length;
+        }
+        return position;
+    }
+
+    private long append(byte type, byte[] key, long version, long lastUpdateTime, byte[] value) {
+
+        int length = RECORD_META_SIZE + key.length + value.length;
+
+        ByteBuffer body = ByteBuffer.allocate(length);
+        body.put(type).putLong(version).putLong(lastUpdateTime).putInt(key.length).put(key).put(value);
+
+        CRC32 crc32 = new CRC32();
+        crc32.update(body.array());
+
+        synchronized (appendLock) {
+
+            if (closed) {
+                throw new TransactionIOException("segment log is closed:" + dir);
+            }
+
+            int position = reserve(RECORD_HEADER_SIZE + length);
+
+            ByteBuffer buffer = activeSegment.buffer.duplicate();
+            buffer.position(position);
+            buffer.putInt(length).putInt((int) crc32.getValue()).put(body.array());
+
+            apply(key, type == TYPE_PUT ? new Entry(activeSegment, position, RECORD_HEADER_SIZE + length, version, lastUpdateTime) : null);
+
+            return appendedSequence;
+        }
+    }
+
+    /*
+     * copies the record to the end of the log if it is still the latest one of the key.
+     * */
+    private void relocate(byte[] key, Entry entry) {
+
+        synchronized (appendLock) {
+
+            if (closed || index.get(key) != entry) {
+                return;
+            }
+
+            byte[] record = new byte[entry.length];
+            ByteBuffer source = entry.segment.buffer.duplicate();
+            source.position(entry.position);
+            source.get(record);
+
+            int position = reserve(record.length);
+
+            ByteBuffer buffer = activeSegment.buffer.duplicate();
+            buffer.position(position);
+            buffer.put(record);
+
+            apply(key, new Entry(activeSegment, position, entry.length, entry.version, entry.lastUpdateTime));
+        }
+    }
+
+    /*
+     * guarded by appendLock, rolls to a new segment if the record does not fit in the active one.
+     * */
+    private int reserve(int recordSize) {
+
+        if (writePosition + recordSize > activeSegment.size) {
+
+            activeSegment.limit = writePosition;
+            // the sealed segment is not forced by the writers any more.
+            activeSegment.buffer.force();
+
+            activeSegment = createSegment(activeSegment.id + 1, Math.max(segmentSize, recordSize));
+            writePosition = 0;
+        }
+
+        int position = writePosition;
+        writePosition += recordSize;
+        activeSegment.limit = writePosition;
+        appendedSequence += recordSize;
+        return position;
+    }
+
+    private void apply(byte[] key, Entry entry) {
+
+        Entry previous = entry == null ? index.remove(key) : index.put(key, entry);
+
+        if (previous != null) {
+            previous.segment.liveBytes -= previous.length;
+        }
+
+        if (entry != null) {
+            entry.segment.liveBytes += entry.length;
+        }
+    }
+
+    private void awaitDurable(long sequence) {
+        if (syncWrite) {
+            forceTo(sequence);
+        }
+    }
+
+    /*
+     * the writers waiting here while a force is running are covered by the next force together.
+     * */
+    private void forceTo(long sequence) {
+
+        if (durableSequence >= sequence) {
+            return;
+        }
+
+        synchronized (syncLock) {
+
+            if (durableSequence >= sequence) {
+                return;
+            }
+
+            long target;
+            Segment segment;
+
+            synchronized (appendLock) {
+                target = appendedSequence;
+                segment = activeSegment;
+            }
+
+            segment.buffer.force();
+            durableSequence = target;
+        }
+    }
+
+    private Checkpoint readCheckpoint() {
+
+        File file = new File(dir, CHECKPOINT_FILE_NAME);
+
+        if (!file.exists()) {
+            return null;
+        }
+
+        try {
+            byte[] bytes = Files.readAllBytes(file.toPath());
+
+            if (bytes.length < 8) {
+                return null;
+            }
+
+            CRC32 crc32 = new CRC32();
+            crc32.update(bytes, 0, bytes.length - 8);
+
+            if (crc32.getValue() != ByteBuffer.wrap(bytes, bytes.length - 8, 8).getLong()) {
+                log.warn("checkpoint of {} is broken, replay all segments.", dir);
+                return null;
+            }
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+
+            if (in.readInt() != CHECKPOINT_MAGIC) {
+                return null;
+            }
+
+            Checkpoint checkpoint = new Checkpoint();
+            checkpoint.segmentId = in.readLong();
+            checkpoint.position = in.readInt();
+
+            int count = in.readInt();
+
+            for (int i = 0; i < count; i++) {
+                byte[] key = new byte[in.readInt()];
+                in.readFully(key);
+                checkpoint.entries.put(key, new long[]{in.readLong(), in.readInt(), in.readInt(), in.readLong(), in.readLong()});
+            }
+
+            return checkpoint;
+
+        } catch (IOException e) {
+            log.warn("read checkpoint of " + dir + " failed, replay all segments.", e);
+            return null;
+        }
+    }
+
+    private File[] listSegmentFiles() {
+
+        File[] files = dir.listFiles((d, name) -> name.endsWith(SEGMENT_FILE_SUFFIX));
+
+        if (files == null) {
+            return new File[0];
+        }
+
+        Arrays.sort(files, (a, b) -> Long.compare(parseSegmentId(a), parseSegmentId(b)));
+        return files;
+    }
+
+    private Segment createSegment(long id, int size) {
+
+        File file = new File(dir, String.format("%020d%s", id, SEGMENT_FILE_SUFFIX));
+
+        try (RandomAccessFile raf = new RandomAccessFile(file, "rw")) {
+            raf.setLength(size);
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        }
+
+        Segment segment = openSegment(file, id);
+        segments.put(id, segment);
+        return segment;
+    }
+
+    private Segment openSegment(File file, long id) {
+
+        try {
+            RandomAccessFile raf = new RandomAccessFile(file, readOnly ? "r" : "rw");
+            FileChannel channel = raf.getChannel();
+            int size = (int) channel.size();
+            MappedByteBuffer buffer = channel.map(readOnly ? FileChannel.MapMode.READ_ONLY : FileChannel.MapMode.READ_WRITE, 0, size);
+            return new Segment(id, file, channel, buffer, size);
+        } catch (IOException e) {
+            throw new TransactionIOException(e);
+        }
+    }
+
+    private static long parseSegmentId(File file) {
+        String name = file.getName();
+        return Long.parseLong(name.substring(0, name.length() - SEGMENT_FILE_SUFFIX.length()));
+    }
+
+    public static class Entry {
+
+        private final Segment segment;
+
+        private final int position;
+
+        private final int length;
+
+        private final long version;
+
+        private final long lastUpdateTime;
+
+        private Entry(Segment segment, int position, int length, long version, long lastUpdateTime) {
+            this.segment = segment;
+            this.position = position;
+            this.length = length;
+            this.version = version;
+            this.lastUpdateTime = lastUpdateTime;
+        }
+
+        public long getVersion() {
+            return version;
+        }
+
+        public long getLastUpdateTime() {
+            return lastUpdateTime;
+        }
+
+        private byte[] readValue() {
+
+            ByteBuffer buffer = segment.buffer.duplicate();
+            int keyLength = buffer.getInt(position + RECORD_HEADER_SIZE + RECORD_META_SIZE - 4);
+            int valueOffset = RECORD_HEADER_SIZE + RECORD_META_SIZE + keyLength;
+
+            byte[] value = new byte[length - valueOffset];
+            buffer.position(position + valueOffset);
+            buffer.get(value);
+            return value;
+        }
+    }
+
+    private static class Segment {
+
+        private final long id;
+
+        private final File file;
+
+        private final FileChannel channel;
+
+        private final MappedByteBuffer buffer;
+
+        private final int size;
+
+        // bytes written, guarded by appendLock
+        private int limit;
+
+        // bytes of the records in the index, guarded by appendLock
+        private long liveBytes;
+
+        private Segment(long id, File file, FileChannel channel, MappedByteBuffer buffer, int size) {
+            this.id = id;
+            this.file = file;
+            this.channel = channel;
+            this.buffer = buffer;
+            this.size = size;
+        }
+
+        private void closeChannel() {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                log.warn("close segment " + file + " failed.", e);
+            }
+        }
+    }
+
+    private static class Checkpoint {
+
+        private long segmentId;
+
+        private int position;
+
+        private final Map<byte[], long[]> entries = new ConcurrentSkipListMap<>(UnsignedBytes.lexicographicalComparator());
+    }
+}
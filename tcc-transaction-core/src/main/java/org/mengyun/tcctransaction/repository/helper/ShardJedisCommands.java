@@ -31,6 +31,15 @@ public class ShardJedisCommands implements RedisCommands {
         }
     }
 
+    @Override
+    public Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        if (shardKey != null) {
+            return this.shardedJedis.getShard(shardKey).evalsha(sha1, keys, args);
+        } else {
+            throw new UnsupportedOperationException("no shardKey, cann't call evalsha");
+        }
+    }
+
     @Override
     public Long del(byte[] key) {
         return this.shardedJedis.del(key);
@@ -41,6 +50,11 @@ public class ShardJedisCommands implements RedisCommands {
         return this.shardedJedis.hgetAll(key);
     }
 
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+        return this.shardedJedis.hget(key, field);
+    }
+
     @Override
     public void hset(byte[] key, byte[] field, byte[] value) {
         this.shardedJedis.hset(key, field, value);
@@ -19,6 +19,11 @@ public class ShardedPipelineCommand implements RedisCommands {
         throw new UnsupportedOperationException();
     }
 
+    @Override
+    public Object evalsha(byte[] sha1, List<byte[]> keys, List<byte[]> args) {
+        throw new UnsupportedOperationException();
+    }
+
     @Override
     public Long del(byte[] key) {
         this.shardedJedisPipeline.del(key);
@@ -31,6 +36,12 @@ public class ShardedPipelineCommand implements RedisCommands {
         return null;
     }
 
+    @Override
+    public byte[] hget(byte[] key, byte[] field) {
+        this.shardedJedisPipeline.hget(key, field);
+        return null;
+    }
+
     @Override
     public void hset(byte[] key, byte[] field, byte[] value) {
         this.shardedJedisPipeline.hset(key, field, value);
@@ -0,0 +1,96 @@
+package org.mengyun.tcctransaction.repository.helper;
+
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.repository.AsyncTransactionRepository;
+import org.mengyun.tcctransaction.repository.TransactionRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.transaction.xa.Xid;
+
+/**
+ * the writes and reads of the transaction manager and the recovery, done by the async methods when the repository is an
+ * AsyncTransactionRepository, waiting interruptibly for the result up to the command timeout of the repository.
+ */
+public final class TransactionRepositoryHelper {
+
+    static final Logger log = LoggerFactory.getLogger(TransactionRepositoryHelper.class.getSimpleName());
+
+    private TransactionRepositoryHelper() {
+    }
+
+    public static int create(TransactionRepository transactionRepository, Transaction transaction) {
+        if (transactionRepository instanceof AsyncTransactionRepository) {
+            AsyncTransactionRepository asyncTransactionRepository = (AsyncTransactionRepository) transactionRepository;
+            return asyncTransactionRepository.await(asyncTransactionRepository.createAsync(transaction));
+        }
+        return transactionRepository.create(transaction);
+    }
+
+    /**
+     * throws TransactionOptimisticLockException if the version is changed.
+     */
+    public static int update(TransactionRepository transactionRepository, Transaction transaction) {
+        if (transactionRepository instanceof AsyncTransactionRepository) {
+            AsyncTransactionRepository asyncTransactionRepository = (AsyncTransactionRepository) transactionRepository;
+            return asyncTransactionRepository.await(asyncTransactionRepository.updateAsync(transaction));
+        }
+        return transactionRepository.update(transaction);
+    }
+
+    /**
+     * saves the transaction failed to confirm or cancel, the recovery handles it anyway, so the result is not waited
+     * for by an AsyncTransactionRepository and any error is ignored.
+     */
+    public static void updateQuietly(TransactionRepository transactionRepository, Transaction transaction) {
+        try {
+            if (transactionRepository instanceof AsyncTransactionRepository) {
+                ((AsyncTransactionRepository) transactionRepository).updateAsync(transaction).whenComplete((result, e) -> {
+                    if (e != null) {
+                        log.debug(String.format("save transaction failed. txid:%s", transaction.getXid()), e);
+                    }
+                });
+            } else {
+                transactionRepository.update(transaction);
+            }
+        } catch (Exception e) {
+            //ignore any exception here
+        }
+    }
+
+    /**
+     * deletes the completed transaction, not waiting for the result if isAsyncDeleteEnabled, the recovery deletes it again if failed.
+     */
+    public static void delete(TransactionRepository transactionRepository, Transaction transaction) {
+        if (transactionRepository instanceof AsyncTransactionRepository) {
+            AsyncTransactionRepository asyncTransactionRepository = (AsyncTransactionRepository) transactionRepository;
+            if (asyncTransactionRepository.isAsyncDeleteEnabled()) {
+                asyncTransactionRepository.deleteAsync(transaction).whenComplete((result, e) -> {
+                    if (e != null) {
+                        log.warn(String.format("delete completed transaction failed, recovery job will handle it later. txid:%s", transaction.getXid()), e);
+                    }
+                });
+            } else {
+                asyncTransactionRepository.await(asyncTransactionRepository.deleteAsync(transaction));
+            }
+        } else {
+            transactionRepository.delete(transaction);
+        }
+    }
+
+    public static Transaction findByXid(TransactionRepository transactionRepository, Xid xid) {
+        if (transactionRepository instanceof AsyncTransactionRepository) {
+            AsyncTransactionRepository asyncTransactionRepository = (AsyncTransactionRepository) transactionRepository;
+            return asyncTransactionRepository.await(asyncTransactionRepository.findByXidAsync(xid));
+        }
+        return transactionRepository.findByXid(xid);
+    }
+
+    public static Transaction findByRootXid(TransactionRepository transactionRepository, Xid xid) {
+        if (transactionRepository instanceof AsyncTransactionRepository) {
+            AsyncTransactionRepository asyncTransactionRepository = (AsyncTransactionRepository) transactionRepository;
+            return asyncTransactionRepository.await(asyncTransactionRepository.findByRootXidAsync(xid));
+        }
+        return transactionRepository.findByRootXid(xid);
+    }
+}
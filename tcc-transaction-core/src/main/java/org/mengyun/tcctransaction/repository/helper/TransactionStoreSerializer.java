@@ -9,54 +9,198 @@ import org.mengyun.tcctransaction.api.TransactionStatus;
 import org.mengyun.tcctransaction.serializer.TransactionSerializer;
 import org.mengyun.tcctransaction.utils.ByteUtils;
 
+import java.nio.ByteBuffer;
 import java.text.ParseException;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Created by changming.xie on 9/15/16.
+ * <p/>
+ * transactions are stored in hash with one byte field names, times are stored as 8 bytes epoch millis.
+ * status, retried count and version are kept as decimal strings, so that they can be compared and set in lua script.
+ * the legacy layout with long field names and formatted times is still readable.
  */
 public class TransactionStoreSerializer {
 
+    public static final byte[] GLOBAL_TX_ID = {'g'};
+    public static final byte[] BRANCH_QUALIFIER = {'b'};
+    public static final byte[] STATUS = {'s'};
+    public static final byte[] TRANSACTION_TYPE = {'t'};
+    public static final byte[] RETRIED_COUNT = {'r'};
+    public static final byte[] CREATE_TIME = {'c'};
+    public static final byte[] LAST_UPDATE_TIME = {'u'};
+    public static final byte[] VERSION = {'v'};
+    public static final byte[] CONTENT = {'C'};
+    public static final byte[] CONTENT_VIEW = {'V'};
+
+    public static final String LEGACY_GLOBAL_TX_ID = "GLOBAL_TX_ID";
+    public static final String LEGACY_BRANCH_QUALIFIER = "BRANCH_QUALIFIER";
+    public static final String LEGACY_STATUS = "STATUS";
+    public static final String LEGACY_TRANSACTION_TYPE = "TRANSACTION_TYPE";
+    public static final String LEGACY_RETRIED_COUNT = "RETRIED_COUNT";
+    public static final String LEGACY_CREATE_TIME = "CREATE_TIME";
+    public static final String LEGACY_LAST_UPDATE_TIME = "LAST_UPDATE_TIME";
+    public static final String LEGACY_VERSION = "VERSION";
+    public static final String LEGACY_CONTENT = "CONTENT";
+    public static final String LEGACY_CONTENT_VIEW = "CONTENT_VIEW";
+
+    private static final String LEGACY_DATE_FORMAT = "yyyy-MM-dd HH:mm:ss";
+
     public static Map<byte[], byte[]> serialize(TransactionSerializer serializer, Transaction transaction) {
 
-        Map<byte[], byte[]> map = new HashMap<byte[], byte[]>();
-
-        map.put("GLOBAL_TX_ID".getBytes(), transaction.getXid().getGlobalTransactionId());
-        map.put("BRANCH_QUALIFIER".getBytes(), transaction.getXid().getBranchQualifier());
-        map.put("STATUS".getBytes(), ByteUtils.intToBytes(transaction.getStatus().getId()));
-        map.put("TRANSACTION_TYPE".getBytes(), ByteUtils.intToBytes(transaction.getTransactionType().getId()));
-        map.put("RETRIED_COUNT".getBytes(), ByteUtils.intToBytes(transaction.getRetriedCount()));
-        map.put("CREATE_TIME".getBytes(), DateFormatUtils.format(transaction.getCreateTime(), "yyyy-MM-dd HH:mm:ss").getBytes());
-        map.put("LAST_UPDATE_TIME".getBytes(), DateFormatUtils.format(transaction.getLastUpdateTime(), "yyyy-MM-dd HH:mm:ss").getBytes());
-        map.put("VERSION".getBytes(), ByteUtils.longToBytes(transaction.getVersion()));
-        map.put("CONTENT".getBytes(), serializer.serialize(transaction));
-        map.put("CONTENT_VIEW".getBytes(), JSON.toJSONString(transaction).getBytes());
+        Map<byte[], byte[]> map = new HashMap<byte[], byte[]>(16);
+
+        map.put(GLOBAL_TX_ID, transaction.getXid().getGlobalTransactionId());
+        map.put(BRANCH_QUALIFIER, transaction.getXid().getBranchQualifier());
+        map.put(STATUS, ByteUtils.intToBytes(transaction.getStatus().getId()));
+        map.put(TRANSACTION_TYPE, ByteUtils.intToBytes(transaction.getTransactionType().getId()));
+        map.put(RETRIED_COUNT, ByteUtils.intToBytes(transaction.getRetriedCount()));
+        map.put(CREATE_TIME, timeToBytes(transaction.getCreateTime()));
+        map.put(LAST_UPDATE_TIME, timeToBytes(transaction.getLastUpdateTime()));
+        map.put(VERSION, ByteUtils.longToBytes(transaction.getVersion()));
+        map.put(CONTENT, serializer.serialize(transaction));
+        map.put(CONTENT_VIEW, JSON.toJSONString(transaction).getBytes());
         return map;
     }
 
-    public static Transaction deserialize(TransactionSerializer serializer, Map<byte[], byte[]> map1) {
+    public static Transaction deserialize(TransactionSerializer serializer, Map<byte[], byte[]> map) {
 
-        Map<String, byte[]> propertyMap = new HashMap<String, byte[]>();
+        byte[] content = null;
+        byte[] status = null;
+        byte[] retriedCount = null;
+        byte[] lastUpdateTime = null;
+        byte[] version = null;
 
-        for (Map.Entry<byte[], byte[]> entry : map1.entrySet()) {
-            propertyMap.put(new String(entry.getKey()), entry.getValue());
+        for (Map.Entry<byte[], byte[]> entry : map.entrySet()) {
+
+            byte[] field = entry.getKey();
+
+            if (field.length != 1) {
+                continue;
+            }
+
+            switch (field[0]) {
+                case 'C':
+                    content = entry.getValue();
+                    break;
+                case 's':
+                    status = entry.getValue();
+                    break;
+                case 'r':
+                    retriedCount = entry.getValue();
+                    break;
+                case 'u':
+                    lastUpdateTime = entry.getValue();
+                    break;
+                case 'v':
+                    version = entry.getValue();
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (content == null) {
+            return deserializeLegacy(serializer, map);
+        }
+
+        Transaction transaction = serializer.deserialize(content);
+        transaction.setStatus(TransactionStatus.valueOf(ByteUtils.bytesToInt(status)));
+        transaction.setRetriedCount(ByteUtils.bytesToInt(retriedCount));
+        transaction.setLastUpdateTime(bytesToTime(lastUpdateTime));
+        transaction.setVersion(ByteUtils.bytesToLong(version));
+        return transaction;
+    }
+
+    /**
+     * readable properties of both layouts, keyed by the legacy field names and times formatted as yyyy-MM-dd HH:mm:ss.
+     */
+    public static Map<String, byte[]> readProperties(Map<byte[], byte[]> map) {
+
+        Map<String, byte[]> propertyMap = toPropertyMap(map);
+
+        if (!propertyMap.containsKey(new String(CONTENT))) {
+            return propertyMap;
+        }
+
+        Map<String, byte[]> legacyMap = new HashMap<String, byte[]>(16);
+        legacyMap.put(LEGACY_GLOBAL_TX_ID, propertyMap.get(new String(GLOBAL_TX_ID)));
+        legacyMap.put(LEGACY_BRANCH_QUALIFIER, propertyMap.get(new String(BRANCH_QUALIFIER)));
+        legacyMap.put(LEGACY_STATUS, propertyMap.get(new String(STATUS)));
+        legacyMap.put(LEGACY_TRANSACTION_TYPE, propertyMap.get(new String(TRANSACTION_TYPE)));
+        legacyMap.put(LEGACY_RETRIED_COUNT, propertyMap.get(new String(RETRIED_COUNT)));
+        legacyMap.put(LEGACY_CREATE_TIME, formatTime(propertyMap.get(new String(CREATE_TIME))));
+        legacyMap.put(LEGACY_LAST_UPDATE_TIME, formatTime(propertyMap.get(new String(LAST_UPDATE_TIME))));
+        legacyMap.put(LEGACY_VERSION, propertyMap.get(new String(VERSION)));
+        legacyMap.put(LEGACY_CONTENT, propertyMap.get(new String(CONTENT)));
+        legacyMap.put(LEGACY_CONTENT_VIEW, propertyMap.get(new String(CONTENT_VIEW)));
+        return legacyMap;
+    }
+
+    /**
+     * last update time of both layouts without deserializing the content, null if not found.
+     */
+    public static Date readLastUpdateTime(Map<byte[], byte[]> map) {
+
+        Map<String, byte[]> propertyMap = toPropertyMap(map);
+
+        byte[] time = propertyMap.get(new String(LAST_UPDATE_TIME));
+        if (time != null) {
+            return bytesToTime(time);
+        }
+
+        time = propertyMap.get(LEGACY_LAST_UPDATE_TIME);
+        if (time == null) {
+            return null;
         }
 
-        byte[] content = propertyMap.get("CONTENT");
+        try {
+            return DateUtils.parseDate(new String(time), LEGACY_DATE_FORMAT);
+        } catch (ParseException e) {
+            throw new SystemException(e);
+        }
+    }
+
+    private static Transaction deserializeLegacy(TransactionSerializer serializer, Map<byte[], byte[]> map) {
+
+        Map<String, byte[]> propertyMap = toPropertyMap(map);
+
+        byte[] content = propertyMap.get(LEGACY_CONTENT);
         Transaction transaction = serializer.deserialize(content);
-        transaction.setStatus(TransactionStatus.valueOf(ByteUtils.bytesToInt(propertyMap.get("STATUS"))));
-        transaction.setRetriedCount(ByteUtils.bytesToInt(propertyMap.get("RETRIED_COUNT")));
+        transaction.setStatus(TransactionStatus.valueOf(ByteUtils.bytesToInt(propertyMap.get(LEGACY_STATUS))));
+        transaction.setRetriedCount(ByteUtils.bytesToInt(propertyMap.get(LEGACY_RETRIED_COUNT)));
 
         try {
-            transaction.setLastUpdateTime(DateUtils.parseDate(new String(propertyMap.get("LAST_UPDATE_TIME")), "yyyy-MM-dd HH:mm:ss"));
+            transaction.setLastUpdateTime(DateUtils.parseDate(new String(propertyMap.get(LEGACY_LAST_UPDATE_TIME)), LEGACY_DATE_FORMAT));
         } catch (ParseException e) {
             throw new SystemException(e);
         }
 
-        transaction.setVersion(ByteUtils.bytesToLong(propertyMap.get("VERSION")));
+        transaction.setVersion(ByteUtils.bytesToLong(propertyMap.get(LEGACY_VERSION)));
         return transaction;
     }
 
+    private static Map<String, byte[]> toPropertyMap(Map<byte[], byte[]> map) {
+
+        Map<String, byte[]> propertyMap = new HashMap<String, byte[]>(16);
+
+        for (Map.Entry<byte[], byte[]> entry : map.entrySet()) {
+            propertyMap.put(new String(entry.getKey()), entry.getValue());
+        }
+        return propertyMap;
+    }
 
+    private static byte[] formatTime(byte[] time) {
+        return time == null ? null : DateFormatUtils.format(bytesToTime(time), LEGACY_DATE_FORMAT).getBytes();
+    }
+
+    private static byte[] timeToBytes(Date date) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(date.getTime()).array();
+    }
+
+    private static Date bytesToTime(byte[] bytes) {
+        return new Date(ByteBuffer.wrap(bytes).getLong());
+    }
 }
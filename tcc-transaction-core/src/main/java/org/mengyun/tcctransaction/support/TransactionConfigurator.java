@@ -2,7 +2,9 @@ package org.mengyun.tcctransaction.support;
 
 
 import org.mengyun.tcctransaction.TransactionManager;
+import org.mengyun.tcctransaction.recovery.ParticipantRateLimiter;
 import org.mengyun.tcctransaction.recovery.RecoverFrequency;
+import org.mengyun.tcctransaction.recovery.RecoveryPartitioner;
 import org.mengyun.tcctransaction.repository.TransactionRepository;
 
 import java.util.concurrent.locks.Lock;
@@ -19,4 +21,15 @@ public interface TransactionConfigurator {
     RecoverFrequency getRecoverFrequency();
 
     Lock getRecoveryLock();
+
+    default RecoveryPartitioner getRecoveryPartitioner() {
+        return RecoveryPartitioner.DEFAULT_PARTITIONER;
+    }
+
+    /**
+     * null if the recovery calls of the participants are not limited.
+     */
+    default ParticipantRateLimiter getParticipantRateLimiter() {
+        return null;
+    }
 }
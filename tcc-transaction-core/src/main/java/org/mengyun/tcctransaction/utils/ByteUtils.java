@@ -10,6 +10,8 @@ public class ByteUtils {
     public static final byte[] TRUE;
     public static final byte[] FALSE;
 
+    private static final char[] HEX_CHARS = "0123456789abcdef".toCharArray();
+
     static {
         TRUE = bool2bytes(true);
         FALSE = bool2bytes(false);
@@ -32,6 +34,30 @@ public class ByteUtils {
         return Integer.valueOf(new String(bytes));
     }
 
+    public static byte[] concat(byte[] first, byte[] second) {
+        byte[] result = new byte[first.length + second.length];
+        System.arraycopy(first, 0, result, 0, first.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    public static String bytesToHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX_CHARS[(bytes[i] >> 4) & 0x0F];
+            chars[i * 2 + 1] = HEX_CHARS[bytes[i] & 0x0F];
+        }
+        return new String(chars);
+    }
+
+    public static byte[] hexToBytes(String hex) {
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) Integer.parseInt(hex.substring(i * 2, i * 2 + 2), 16);
+        }
+        return bytes;
+    }
+
     /**
      * @param i boolean
      * @return byte[]
@@ -2,10 +2,40 @@ package org.mengyun.tcctransaction.server.constants;
 
 public class LuaScriptConstant {
 
-    public static String HSET_KEY2_IF_KKEY1_EXISTS = "if redis.call(\"exists\",KEYS[1])==1 then\n" +
-            "\treturn redis.call(\"hset\",KEYS[2],KEYS[3],ARGV[1])\n" +
+    // KEYS[1] is the transaction key, ARGV[1] is the field name, ARGV[2] is the field name of legacy layout, ARGV[3] is the value
+    public static String HSET_FIELD_IF_KEY_EXISTS = "if redis.call(\"exists\",KEYS[1])==1 then\n" +
+            "\tif redis.call(\"hexists\",KEYS[1],ARGV[2])==1 then\n" +
+            "\t\treturn redis.call(\"hset\",KEYS[1],ARGV[2],ARGV[3])\n" +
+            "\tend\n" +
+            "\treturn redis.call(\"hset\",KEYS[1],ARGV[1],ARGV[3])\n" +
             "else\n" +
             "\treturn 0\n" +
             "end";
 
+    // KEYS[1] is the key to rename, KEYS[2] is the new key in the same slot, ARGV[1] is the seconds to expire the new key, 0 to persist it
+    public static String RENAMENX_IF_KEY_EXISTS = "if redis.call(\"exists\",KEYS[1])==0 or redis.call(\"renamenx\",KEYS[1],KEYS[2])==0 then\n" +
+            "\treturn 0\n" +
+            "end\n" +
+            "if tonumber(ARGV[1])>0 then\n" +
+            "\tredis.call(\"expire\",KEYS[2],ARGV[1])\n" +
+            "else\n" +
+            "\tredis.call(\"persist\",KEYS[2])\n" +
+            "end\n" +
+            "return 1";
+
+    // KEYS[1] is the dead letter key, KEYS[2] is the transaction key, KEYS[3] is the index key,
+    // ARGV[1] is the retried count field name, ARGV[2] is the field name of legacy layout, ARGV[3] is the reset value, ARGV[4] is the index score, empty to not index it
+    public static String REPLAY_DEAD_LETTER = "if redis.call(\"exists\",KEYS[1])==0 or redis.call(\"renamenx\",KEYS[1],KEYS[2])==0 then\n" +
+            "\treturn 0\n" +
+            "end\n" +
+            "if redis.call(\"hexists\",KEYS[2],ARGV[2])==1 then\n" +
+            "\tredis.call(\"hset\",KEYS[2],ARGV[2],ARGV[3])\n" +
+            "else\n" +
+            "\tredis.call(\"hset\",KEYS[2],ARGV[1],ARGV[3])\n" +
+            "end\n" +
+            "if ARGV[4]~=\"\" then\n" +
+            "\tredis.call(\"zadd\",KEYS[3],ARGV[4],KEYS[2])\n" +
+            "end\n" +
+            "return 1";
+
 }
@@ -2,6 +2,7 @@ package org.mengyun.tcctransaction.server.dao;
 
 
 import org.mengyun.tcctransaction.server.model.Page;
+import org.mengyun.tcctransaction.server.model.Result;
 import org.mengyun.tcctransaction.server.vo.TransactionVo;
 
 import javax.sql.DataSource;
@@ -48,6 +49,10 @@ public class JdbcTransactionDao implements TransactionDao {
         return KEY_NAME_SPACE + "_" + tableSuffix;
     }
 
+    private String getDeadLetterTableName() {
+        return getTableName() + "_DEAD_LETTER";
+    }
+
     public String getTableSuffix() {
         return tableSuffix;
     }
@@ -255,6 +260,94 @@ public class JdbcTransactionDao implements TransactionDao {
 
     }
 
+    @Override
+    public Result<Page<TransactionVo>> findDeadLetters(Integer pageNum, int pageSize) {
+
+        Connection connection = getConnection();
+        List<TransactionVo> transactionVos = new ArrayList<TransactionVo>();
+        PreparedStatement preparedStatement = null;
+        Integer countOfDeadLetters = 0;
+        try {
+            String tableName = getDeadLetterTableName();
+            String sql = "select DOMAIN," +
+                    "GLOBAL_TX_ID," +
+                    "BRANCH_QUALIFIER," +
+                    "STATUS," +
+                    "TRANSACTION_TYPE," +
+                    "RETRIED_COUNT," +
+                    "CREATE_TIME," +
+                    "LAST_UPDATE_TIME from " + tableName + " limit ?,?";
+
+            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setInt(1, (pageNum - 1) * pageSize);
+            preparedStatement.setInt(2, pageSize);
+
+            ResultSet resultSet = preparedStatement.executeQuery();
+
+            buildTransactionVoList(transactionVos, resultSet);
+
+            closeStatement(preparedStatement);
+
+            preparedStatement = connection.prepareStatement("select COUNT(*) as count from " + tableName);
+            resultSet = preparedStatement.executeQuery();
+            if (resultSet.next()) {
+                countOfDeadLetters = resultSet.getInt("count");
+            }
+        } catch (Exception e) {
+            throw new RuntimeException("findDeadLetters error", e);
+        } finally {
+            closeStatement(preparedStatement);
+            releaseConnection(connection);
+        }
+
+        return Result.ok(new Page<TransactionVo>(transactionVos, pageNum, pageSize, countOfDeadLetters));
+    }
+
+    /*
+     * moved back in one local transaction, with the retried count reset and the version increased as the repository does.
+     * a backoff kept in the content still applies before it is recovered.
+     * */
+    @Override
+    public Result<Void> replayDeadLetter(String globalTxId, String branchQualifier) {
+        Connection connection = getConnection();
+        PreparedStatement preparedStatement = null;
+        try {
+            connection.setAutoCommit(false);
+
+            String sql = "INSERT INTO " + getTableName() +
+                    "(DOMAIN,GLOBAL_TX_ID,BRANCH_QUALIFIER,CONTENT,STATUS,TRANSACTION_TYPE,RETRIED_COUNT,CREATE_TIME,LAST_UPDATE_TIME,VERSION)" +
+                    " SELECT DOMAIN,GLOBAL_TX_ID,BRANCH_QUALIFIER,CONTENT,STATUS,TRANSACTION_TYPE,0,CREATE_TIME,LAST_UPDATE_TIME,VERSION+1" +
+                    " FROM " + getDeadLetterTableName() +
+                    " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?";
+            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setBytes(1, DatatypeConverter.parseHexBinary(globalTxId));
+            preparedStatement.setBytes(2, DatatypeConverter.parseHexBinary(branchQualifier));
+
+            if (preparedStatement.executeUpdate() <= 0) {
+                connection.rollback();
+                return Result.err("dead letter not found");
+            }
+
+            closeStatement(preparedStatement);
+
+            sql = "DELETE FROM " + getDeadLetterTableName() +
+                    " WHERE GLOBAL_TX_ID = ? AND BRANCH_QUALIFIER = ?";
+            preparedStatement = connection.prepareStatement(sql);
+            preparedStatement.setBytes(1, DatatypeConverter.parseHexBinary(globalTxId));
+            preparedStatement.setBytes(2, DatatypeConverter.parseHexBinary(branchQualifier));
+            preparedStatement.executeUpdate();
+
+            connection.commit();
+            return Result.ok();
+        } catch (Exception e) {
+            rollback(connection);
+            throw new RuntimeException("replayDeadLetter error", e);
+        } finally {
+            closeStatement(preparedStatement);
+            releaseConnection(connection);
+        }
+    }
+
     private Integer countOfDeletedTransactions() {
         return count(IS_DELETE);
     }
@@ -302,6 +395,16 @@ public class JdbcTransactionDao implements TransactionDao {
         }
     }
 
+    private void rollback(Connection connection) {
+        try {
+            if (connection != null && !connection.getAutoCommit()) {
+                connection.rollback();
+            }
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     private void releaseConnection(Connection connection) {
         try {
             if (connection != null && !connection.isClosed()) {
@@ -2,12 +2,16 @@ package org.mengyun.tcctransaction.server.dao;
 
 import lombok.extern.slf4j.Slf4j;
 import org.assertj.core.util.Lists;
+import org.mengyun.tcctransaction.api.TransactionXid;
 import org.mengyun.tcctransaction.repository.helper.JedisCallback;
 import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.repository.helper.TransactionStoreSerializer;
+import org.mengyun.tcctransaction.server.constants.LuaScriptConstant;
 import org.mengyun.tcctransaction.server.model.Page;
 import org.mengyun.tcctransaction.server.vo.TransactionVo;
 import org.mengyun.tcctransaction.utils.ByteUtils;
 import redis.clients.jedis.*;
+import redis.clients.jedis.util.JedisClusterCRC16;
 
 import java.nio.charset.StandardCharsets;
 import java.util.*;
@@ -24,16 +28,6 @@ public class RedisClusterTransactionDao implements TransactionDao {
 
     private static final String DELETE_KEY_PREIFX = "DELETE:";
     private static final int DELETE_KEY_KEEP_TIME = 3 * 24 * 3600;
-    public static String SCRIPT = "if redis.call(\"exists\",KEYS[1])==1 then\n" +
-            "\treturn redis.call(\"hset\",KEYS[1],'STATUS',ARGV[1])\n" +
-            "else\n" +
-            "\treturn 0\n" +
-            "end";
-    public static String SCRIPT1 = "if redis.call(\"exists\",KEYS[1])==1 then\n" +
-            "\treturn redis.call(\"hset\",KEYS[1],'RETRIED_COUNT',ARGV[1])\n" +
-            "else\n" +
-            "\treturn 0\n" +
-            "end";
     private final JedisCluster cluster;
     private final JedisPool pool;
     private final String domain;
@@ -51,42 +45,79 @@ public class RedisClusterTransactionDao implements TransactionDao {
     @Override
     public void confirm(String globalTxId, String branchQualifier) {
 
-        byte[] key = RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier);
+        byte[] key = getRedisKey(globalTxId, branchQualifier);
 
-        cluster.eval(SCRIPT.getBytes(), Lists.newArrayList(key), Lists.newArrayList(ByteUtils.intToBytes(2)));
+        cluster.eval(LuaScriptConstant.HSET_FIELD_IF_KEY_EXISTS.getBytes(), Lists.newArrayList(key),
+                Lists.newArrayList(TransactionStoreSerializer.STATUS, TransactionStoreSerializer.LEGACY_STATUS.getBytes(), ByteUtils.intToBytes(2)));
 
     }
 
     @Override
     public void cancel(String globalTxId, String branchQualifier) {
-        byte[] key = RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier);
+        byte[] key = getRedisKey(globalTxId, branchQualifier);
 
-        cluster.eval(SCRIPT.getBytes(), Lists.newArrayList(key), Lists.newArrayList(ByteUtils.intToBytes(3)));
+        cluster.eval(LuaScriptConstant.HSET_FIELD_IF_KEY_EXISTS.getBytes(), Lists.newArrayList(key),
+                Lists.newArrayList(TransactionStoreSerializer.STATUS, TransactionStoreSerializer.LEGACY_STATUS.getBytes(), ByteUtils.intToBytes(3)));
     }
 
     @Override
     public void delete(String globalTxId, String branchQualifier) {
-        String key = new String(RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier));
-        String delKeyName = DELETE_KEY_PREIFX + "{" + key + "}";
-        if (cluster.del(delKeyName) > 0) {
+        TransactionXid xid = toXid(globalTxId, branchQualifier);
+        byte[] legacyKey = RedisHelper.getLegacyRedisKey(getDomain(), xid);
+
+        // deleted already, remove it for good
+        if (cluster.del(getDeleteKey(RedisHelper.getRedisKey(getDomain(), xid))) > 0
+                || cluster.del(getDeleteKey(legacyKey)) > 0
+                || cluster.del(getLegacyDeleteKey(legacyKey)) > 0) {
             return;
         }
-        Long result = cluster.renamenx(key, delKeyName);
-        cluster.expire(delKeyName, DELETE_KEY_KEEP_TIME);
+
+        byte[] key = getRedisKey(globalTxId, branchQualifier);
+        renameIfExists(key, getDeleteKey(key), DELETE_KEY_KEEP_TIME);
     }
 
     @Override
     public void restore(String globalTxId, String branchQualifier) {
-        String restoreKeyName = new String(RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier));
-        String deleteKeyName = DELETE_KEY_PREIFX + "{" + restoreKeyName + "}";
-        Long result = cluster.renamenx(deleteKeyName, restoreKeyName);
-        cluster.persist(restoreKeyName);
+        TransactionXid xid = toXid(globalTxId, branchQualifier);
+        byte[] restoreKeyName = RedisHelper.getRedisKey(getDomain(), xid);
+        byte[] legacyKeyName = RedisHelper.getLegacyRedisKey(getDomain(), xid);
+
+        if (renameIfExists(getDeleteKey(restoreKeyName), restoreKeyName, 0)
+                || renameIfExists(getDeleteKey(legacyKeyName), legacyKeyName, 0)) {
+            return;
+        }
+
+        // deleted by an older version, which renamed the legacy key to DELETE:{key}
+        renameIfExists(getLegacyDeleteKey(legacyKeyName), legacyKeyName, 0);
+    }
+
+    /*
+     * the rename and the expire or persist are done in one script, both keys are in the same slot.
+     * */
+    private boolean renameIfExists(byte[] key, byte[] newKey, int expireSeconds) {
+        Object result = cluster.eval(LuaScriptConstant.RENAMENX_IF_KEY_EXISTS.getBytes(), Lists.newArrayList(key, newKey),
+                Lists.newArrayList(String.valueOf(expireSeconds).getBytes()));
+        return Long.valueOf(1L).equals(result);
+    }
+
+    /*
+     * binary keys may contain '{' or '}', so the deleted key is DELETE:{tag}key with a tag hashed to the slot of the key,
+     * which keeps it renamed in the same slot.
+     * */
+    private static byte[] getDeleteKey(byte[] key) {
+        String tag = SlotTags.TAGS[JedisClusterCRC16.getSlot(key)];
+        return ByteUtils.concat((DELETE_KEY_PREIFX + "{" + tag + "}").getBytes(), key);
+    }
+
+    private static byte[] getLegacyDeleteKey(byte[] legacyKey) {
+        return (DELETE_KEY_PREIFX + "{" + new String(legacyKey) + "}").getBytes();
     }
 
     @Override
     public void resetRetryCount(String globalTxId, String branchQualifier) {
-        byte[] key = RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier);
-        cluster.eval(SCRIPT1.getBytes(), Lists.newArrayList(key), Lists.newArrayList(ByteUtils.intToBytes(0)));
+        byte[] key = getRedisKey(globalTxId, branchQualifier);
+        cluster.eval(LuaScriptConstant.HSET_FIELD_IF_KEY_EXISTS.getBytes(), Lists.newArrayList(key),
+                Lists.newArrayList(TransactionStoreSerializer.RETRIED_COUNT, TransactionStoreSerializer.LEGACY_RETRIED_COUNT.getBytes(), ByteUtils.intToBytes(0)));
     }
 
     @Override
@@ -101,7 +132,8 @@ public class RedisClusterTransactionDao implements TransactionDao {
 
     @Override
     public Page<TransactionVo> findDeletedTransactions(Integer pageNum, int pageSize) {
-        return findTransactionByKey(pageNum, pageSize, DELETE_KEY_PREIFX + "{" + getDomain() + "*");
+        // matches both DELETE:{tag}key and the legacy DELETE:{key}
+        return findTransactionByKey(pageNum, pageSize, DELETE_KEY_PREIFX + "*" + getDomain() + "*");
     }
 
     private Page<TransactionVo> findTransactionByKey(Integer pageNum, int pageSize, final String pattern) {
@@ -128,7 +160,7 @@ public class RedisClusterTransactionDao implements TransactionDao {
                 String cursor = RedisHelper.REDIS_SCAN_INIT_CURSOR;
                 ScanParams scanParams = RedisHelper.scanArgs(pattern, RedisHelper.SCAN_COUNT);
                 do {
-                    ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+                    ScanResult<byte[]> scanResult = jedis.scan(cursor.getBytes(), scanParams);
                     count += scanResult.getResult().size();
                     cursor = scanResult.getCursor();
                 } while (!cursor.equals(RedisHelper.REDIS_SCAN_INIT_CURSOR));
@@ -140,21 +172,21 @@ public class RedisClusterTransactionDao implements TransactionDao {
     @Override
     public List<TransactionVo> find(Integer pageNum, int pageSize, String pattern) {
 
-        List<String> keys = RedisHelper.execute(pool, new JedisCallback<List<String>>() {
+        List<byte[]> keys = RedisHelper.execute(pool, new JedisCallback<List<byte[]>>() {
             @Override
-            public List<String> doInJedis(Jedis jedis) {
+            public List<byte[]> doInJedis(Jedis jedis) {
                 int start = (pageNum - 1) * pageSize;
 
                 int end = pageNum * pageSize;
 
-                ArrayList<String> allKeys = new ArrayList<>();
+                ArrayList<byte[]> allKeys = new ArrayList<>();
 
                 String cursor = RedisHelper.REDIS_SCAN_INIT_CURSOR;
 
                 ScanParams scanParams = RedisHelper.scanArgs(pattern, RedisHelper.SCAN_COUNT);
 
                 do {
-                    ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+                    ScanResult<byte[]> scanResult = jedis.scan(cursor.getBytes(), scanParams);
                     allKeys.addAll(scanResult.getResult());
                     cursor = scanResult.getCursor();
                 } while (!cursor.equals(RedisHelper.REDIS_SCAN_INIT_CURSOR) && allKeys.size() < end);
@@ -174,23 +206,25 @@ public class RedisClusterTransactionDao implements TransactionDao {
 
         List<TransactionVo> result = new ArrayList<>();
 
-        for (String k : keys) {
+        for (byte[] k : keys) {
 
-            Map<byte[], byte[]> data = cluster.hgetAll(k.getBytes());
+            Map<byte[], byte[]> hash = cluster.hgetAll(k);
 
-            if (data != null && !data.isEmpty()) {
+            if (hash != null && !hash.isEmpty()) {
+
+                Map<String, byte[]> data = TransactionStoreSerializer.readProperties(hash);
 
                 TransactionVo transactionVo = new TransactionVo();
                 transactionVo.setDomain(domain);
 
-                transactionVo.setGlobalTxId(UUID.nameUUIDFromBytes(data.get("GLOBAL_TX_ID".getBytes())).toString());
-                transactionVo.setBranchQualifier(UUID.nameUUIDFromBytes(data.get("BRANCH_QUALIFIER".getBytes())).toString());
-                transactionVo.setStatus(new String(data.get("STATUS".getBytes()), StandardCharsets.UTF_8));
-                transactionVo.setTransactionType(new String(data.get("TRANSACTION_TYPE".getBytes()), StandardCharsets.UTF_8));
-                transactionVo.setRetriedCount(new String(data.get("RETRIED_COUNT".getBytes()), StandardCharsets.UTF_8));
-                transactionVo.setCreateTime(new String(data.get("CREATE_TIME".getBytes()), StandardCharsets.UTF_8));
-                transactionVo.setLastUpdateTime(new String(data.get("LAST_UPDATE_TIME".getBytes()), StandardCharsets.UTF_8));
-                transactionVo.setContentView(new String(data.get("CONTENT_VIEW".getBytes()), StandardCharsets.UTF_8));
+                transactionVo.setGlobalTxId(ByteUtils.bytesToHex(data.get(TransactionStoreSerializer.LEGACY_GLOBAL_TX_ID)));
+                transactionVo.setBranchQualifier(ByteUtils.bytesToHex(data.get(TransactionStoreSerializer.LEGACY_BRANCH_QUALIFIER)));
+                transactionVo.setStatus(new String(data.get("STATUS"), StandardCharsets.UTF_8));
+                transactionVo.setTransactionType(new String(data.get("TRANSACTION_TYPE"), StandardCharsets.UTF_8));
+                transactionVo.setRetriedCount(new String(data.get("RETRIED_COUNT"), StandardCharsets.UTF_8));
+                transactionVo.setCreateTime(new String(data.get("CREATE_TIME"), StandardCharsets.UTF_8));
+                transactionVo.setLastUpdateTime(new String(data.get("LAST_UPDATE_TIME"), StandardCharsets.UTF_8));
+                transactionVo.setContentView(new String(data.get("CONTENT_VIEW"), StandardCharsets.UTF_8));
 
                 result.add(transactionVo);
             }
@@ -200,6 +234,44 @@ public class RedisClusterTransactionDao implements TransactionDao {
     }
 
 
+    /*
+     * the ids shown in dashboard are hex of the raw ids, see RedisTransactionDao.
+     * */
+    private byte[] getRedisKey(String globalTxId, String branchQualifier) {
+
+        TransactionXid xid = toXid(globalTxId, branchQualifier);
+
+        byte[] key = RedisHelper.getRedisKey(getDomain(), xid);
+
+        if (cluster.exists(key)) {
+            return key;
+        }
+
+        return RedisHelper.getLegacyRedisKey(getDomain(), xid);
+    }
+
+    private static TransactionXid toXid(String globalTxId, String branchQualifier) {
+        return new TransactionXid(ByteUtils.hexToBytes(globalTxId), ByteUtils.hexToBytes(branchQualifier));
+    }
+
+    private static class SlotTags {
+
+        // the first decimal number hashed to each slot
+        static final String[] TAGS = new String[JedisCluster.HASHSLOTS];
+
+        static {
+            int found = 0;
+            for (int i = 0; found < TAGS.length; i++) {
+                String tag = String.valueOf(i);
+                int slot = JedisClusterCRC16.getSlot(tag);
+                if (TAGS[slot] == null) {
+                    TAGS[slot] = tag;
+                    found++;
+                }
+            }
+        }
+    }
+
     public JedisCluster getCluster() {
         return cluster;
     }
@@ -2,15 +2,19 @@ package org.mengyun.tcctransaction.server.dao;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.pool2.impl.GenericObjectPoolConfig;
+import org.mengyun.tcctransaction.api.TransactionXid;
 import org.mengyun.tcctransaction.repository.helper.JedisCallback;
 import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.repository.helper.TransactionStoreSerializer;
 import org.mengyun.tcctransaction.server.S;
 import org.mengyun.tcctransaction.server.constants.LuaScriptConstant;
 import org.mengyun.tcctransaction.server.model.Page;
+import org.mengyun.tcctransaction.server.model.Result;
 import org.mengyun.tcctransaction.server.vo.TransactionVo;
 import org.mengyun.tcctransaction.utils.ByteUtils;
 import redis.clients.jedis.*;
 
+import java.nio.charset.StandardCharsets;
 import java.util.*;
 import java.util.function.BiFunction;
 import java.util.function.Function;
@@ -48,10 +52,10 @@ public class RedisTransactionDao implements TransactionDao {
             @Override
             public Boolean doInJedis(Jedis jedis) {
 
-                byte[] key = RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier);
+                byte[] key = getRedisKey(jedis, globalTxId, branchQualifier);
 
-                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_KEY2_IF_KKEY1_EXISTS.getBytes(),
-                        3, key, key, "STATUS".getBytes(), ByteUtils.intToBytes(2));
+                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_FIELD_IF_KEY_EXISTS.getBytes(),
+                        1, key, TransactionStoreSerializer.STATUS, TransactionStoreSerializer.LEGACY_STATUS.getBytes(), ByteUtils.intToBytes(2));
 
                 return result == 0;
             }
@@ -65,10 +69,10 @@ public class RedisTransactionDao implements TransactionDao {
             @Override
             public Boolean doInJedis(Jedis jedis) {
 
-                byte[] key = RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier);
+                byte[] key = getRedisKey(jedis, globalTxId, branchQualifier);
 
-                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_KEY2_IF_KKEY1_EXISTS.getBytes(),
-                        3, key, key, "STATUS".getBytes(), ByteUtils.intToBytes(3));
+                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_FIELD_IF_KEY_EXISTS.getBytes(),
+                        1, key, TransactionStoreSerializer.STATUS, TransactionStoreSerializer.LEGACY_STATUS.getBytes(), ByteUtils.intToBytes(3));
 
                 return result == 0;
             }
@@ -80,8 +84,8 @@ public class RedisTransactionDao implements TransactionDao {
         RedisHelper.execute(jedisPool, new JedisCallback<Boolean>() {
             @Override
             public Boolean doInJedis(Jedis jedis) {
-                String key = new String(RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier));
-                String delKeyName = DELETE_KEY_PREIFX + key;
+                byte[] key = getRedisKey(jedis, globalTxId, branchQualifier);
+                byte[] delKeyName = ByteUtils.concat(DELETE_KEY_PREIFX.getBytes(), key);
                 if (jedis.del(delKeyName) > 0) {
                     return true;
                 }
@@ -97,10 +101,18 @@ public class RedisTransactionDao implements TransactionDao {
         RedisHelper.execute(jedisPool, new JedisCallback<Boolean>() {
             @Override
             public Boolean doInJedis(Jedis jedis) {
-                String restoreKeyName = new String(RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier));
-                String deleteKeyName = DELETE_KEY_PREIFX + restoreKeyName;
+                TransactionXid xid = toXid(globalTxId, branchQualifier);
+                byte[] restoreKeyName = RedisHelper.getRedisKey(getDomain(), xid);
+                byte[] deleteKeyName = ByteUtils.concat(DELETE_KEY_PREIFX.getBytes(), restoreKeyName);
+                if (!jedis.exists(deleteKeyName)) {
+                    restoreKeyName = RedisHelper.getLegacyRedisKey(getDomain(), xid);
+                    deleteKeyName = ByteUtils.concat(DELETE_KEY_PREIFX.getBytes(), restoreKeyName);
+                }
                 Long result = jedis.renamenx(deleteKeyName, restoreKeyName);
                 jedis.persist(restoreKeyName);
+                if (result > 0) {
+                    index(jedis, restoreKeyName);
+                }
                 return result > 0;
             }
         });
@@ -112,11 +124,11 @@ public class RedisTransactionDao implements TransactionDao {
             @Override
             public Boolean doInJedis(Jedis jedis) {
 
-                byte[] key = RedisHelper.getRedisKey(getDomain(), globalTxId, branchQualifier);
+                byte[] key = getRedisKey(jedis, globalTxId, branchQualifier);
 
 
-                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_KEY2_IF_KKEY1_EXISTS.getBytes(),
-                        3, key, key, "RETRIED_COUNT".getBytes(), ByteUtils.intToBytes(0));
+                Long result = (Long) jedis.eval(LuaScriptConstant.HSET_FIELD_IF_KEY_EXISTS.getBytes(),
+                        1, key, TransactionStoreSerializer.RETRIED_COUNT, TransactionStoreSerializer.LEGACY_RETRIED_COUNT.getBytes(), ByteUtils.intToBytes(0));
 
                 return result == 0;
             }
@@ -138,6 +150,52 @@ public class RedisTransactionDao implements TransactionDao {
         return findTransactionByKey(pageNum, pageSize, DELETE_KEY_PREIFX + getDomain() + "*");
     }
 
+    @Override
+    public Result<Page<TransactionVo>> findDeadLetters(Integer pageNum, int pageSize) {
+        return Result.ok(findTransactionByKey(pageNum, pageSize, RedisHelper.DEAD_LETTER_KEY_PREFIX + getDomain() + "*"));
+    }
+
+    /*
+     * the dead letter is renamed back, its retried count reset and indexed in one script, a backoff kept in the content still applies before it is recovered.
+     * */
+    @Override
+    public Result<Void> replayDeadLetter(String globalTxId, String branchQualifier) {
+        Boolean replayed = RedisHelper.execute(jedisPool, new JedisCallback<Boolean>() {
+            @Override
+            public Boolean doInJedis(Jedis jedis) {
+                TransactionXid xid = toXid(globalTxId, branchQualifier);
+                byte[] replayKeyName = RedisHelper.getRedisKey(getDomain(), xid);
+                byte[] deadLetterKeyName = RedisHelper.getDeadLetterKey(replayKeyName);
+                if (!jedis.exists(deadLetterKeyName)) {
+                    replayKeyName = RedisHelper.getLegacyRedisKey(getDomain(), xid);
+                    deadLetterKeyName = RedisHelper.getDeadLetterKey(replayKeyName);
+                    if (!jedis.exists(deadLetterKeyName)) {
+                        return false;
+                    }
+                }
+                // the dead letter is not changed until it is replayed, so its last update time is read before the script
+                Date lastUpdateTime = TransactionStoreSerializer.readLastUpdateTime(jedis.hgetAll(deadLetterKeyName));
+                byte[] score = lastUpdateTime == null ? new byte[0] : String.valueOf(lastUpdateTime.getTime()).getBytes();
+
+                Long result = (Long) jedis.eval(LuaScriptConstant.REPLAY_DEAD_LETTER.getBytes(),
+                        Arrays.asList(deadLetterKeyName, replayKeyName, RedisHelper.getIndexKey(getDomain())),
+                        Arrays.asList(TransactionStoreSerializer.RETRIED_COUNT, TransactionStoreSerializer.LEGACY_RETRIED_COUNT.getBytes(), ByteUtils.intToBytes(0), score));
+                return result > 0;
+            }
+        });
+        return replayed ? Result.ok() : Result.err("dead letter not found or the transaction exists");
+    }
+
+    /*
+     * scored by the last update time read from the hash, the content is not deserialized in dashboard.
+     * */
+    private void index(Jedis jedis, byte[] key) {
+        Date lastUpdateTime = TransactionStoreSerializer.readLastUpdateTime(jedis.hgetAll(key));
+        if (lastUpdateTime != null) {
+            jedis.zadd(RedisHelper.getIndexKey(getDomain()), lastUpdateTime.getTime(), key);
+        }
+    }
+
     private Page<TransactionVo> findTransactionByKey(Integer pageNum, int pageSize, final String pattern) {
 
         int count = count(pattern);
@@ -183,14 +241,14 @@ public class RedisTransactionDao implements TransactionDao {
 
                 int end = pageNum * pageSize;
 
-                ArrayList<String> allKeys = new ArrayList<>();
+                ArrayList<byte[]> allKeys = new ArrayList<>();
 
                 String cursor = RedisHelper.REDIS_SCAN_INIT_CURSOR;
 
                 ScanParams scanParams = RedisHelper.scanArgs(pattern, RedisHelper.SCAN_COUNT);
 
                 do {
-                    ScanResult<String> scanResult = jedis.scan(cursor, scanParams);
+                    ScanResult<byte[]> scanResult = jedis.scan(cursor.getBytes(), scanParams);
                     allKeys.addAll(scanResult.getResult());
                     cursor = scanResult.getCursor();
                 } while (!cursor.equals(RedisHelper.REDIS_SCAN_INIT_CURSOR) && allKeys.size() < end);
@@ -204,49 +262,78 @@ public class RedisTransactionDao implements TransactionDao {
                     end = allKeys.size();
                 }
 
-                final List<String> keys = allKeys.subList(start, end);
+                final List<byte[]> keys = allKeys.subList(start, end);
 
                 Pipeline pipeline = jedis.pipelined();
 
-                for (final String key : keys) {
+                for (final byte[] key : keys) {
                     pipeline.hgetAll(key);
                 }
 
-                List<Map<String, String>> result = pipeline.syncAndReturnAll().stream()
-                        .map(new Function<Object, Map<String, String>>() {
+                List<Map<String, byte[]>> result = pipeline.syncAndReturnAll().stream()
+                        .map(new Function<Object, Map<String, byte[]>>() {
                             @Override
-                            public Map<String, String> apply(Object o) {
+                            public Map<String, byte[]> apply(Object o) {
 
-                                return (Map<String, String>) o;
+                                return TransactionStoreSerializer.readProperties((Map<byte[], byte[]>) o);
                             }
                         }).collect(Collectors.toList());
 
                 return S.zip(keys.stream(),
                         result.stream(),
-                        new BiFunction<String, Map<String, String>, TransactionVo>() {
+                        new BiFunction<byte[], Map<String, byte[]>, TransactionVo>() {
                             @Override
-                            public TransactionVo apply(String s, Map<String, String> data) {
+                            public TransactionVo apply(byte[] key, Map<String, byte[]> data) {
 
+                                if (data.isEmpty()) {
+                                    // deleted after scanned
+                                    return null;
+                                }
 
                                 TransactionVo transactionVo = new TransactionVo();
                                 transactionVo.setDomain(domain);
-                                transactionVo.setGlobalTxId(UUID.nameUUIDFromBytes(data.get("GLOBAL_TX_ID").getBytes()).toString());
-                                transactionVo.setBranchQualifier(UUID.nameUUIDFromBytes(data.get("BRANCH_QUALIFIER").getBytes()).toString());
-                                transactionVo.setStatus(data.get("STATUS"));
-                                transactionVo.setTransactionType(data.get("TRANSACTION_TYPE"));
-                                transactionVo.setRetriedCount(data.get("RETRIED_COUNT"));
-                                transactionVo.setCreateTime(data.get("CREATE_TIME"));
-                                transactionVo.setLastUpdateTime(data.get("LAST_UPDATE_TIME"));
-                                transactionVo.setContentView(data.get("CONTENT_VIEW"));
+                                transactionVo.setGlobalTxId(ByteUtils.bytesToHex(data.get(TransactionStoreSerializer.LEGACY_GLOBAL_TX_ID)));
+                                transactionVo.setBranchQualifier(ByteUtils.bytesToHex(data.get(TransactionStoreSerializer.LEGACY_BRANCH_QUALIFIER)));
+                                transactionVo.setStatus(asString(data.get("STATUS")));
+                                transactionVo.setTransactionType(asString(data.get("TRANSACTION_TYPE")));
+                                transactionVo.setRetriedCount(asString(data.get("RETRIED_COUNT")));
+                                transactionVo.setCreateTime(asString(data.get("CREATE_TIME")));
+                                transactionVo.setLastUpdateTime(asString(data.get("LAST_UPDATE_TIME")));
+                                transactionVo.setContentView(asString(data.get("CONTENT_VIEW")));
                                 return transactionVo;
                             }
-                        }).distinct().collect(Collectors.toList());
+                        }).filter(Objects::nonNull).distinct().collect(Collectors.toList());
 
 
             }
         });
     }
 
+    /*
+     * the ids shown in dashboard are hex of the raw ids, the transaction is stored under the binary key,
+     * or the legacy string key if it is written by an older version.
+     * */
+    private byte[] getRedisKey(Jedis jedis, String globalTxId, String branchQualifier) {
+
+        TransactionXid xid = toXid(globalTxId, branchQualifier);
+
+        byte[] key = RedisHelper.getRedisKey(getDomain(), xid);
+
+        if (jedis.exists(key)) {
+            return key;
+        }
+
+        return RedisHelper.getLegacyRedisKey(getDomain(), xid);
+    }
+
+    private static TransactionXid toXid(String globalTxId, String branchQualifier) {
+        return new TransactionXid(ByteUtils.hexToBytes(globalTxId), ByteUtils.hexToBytes(branchQualifier));
+    }
+
+    private static String asString(byte[] value) {
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
     @Override
     public void close() throws Exception {
         if (jedisPool != null) {
@@ -1,6 +1,7 @@
 package org.mengyun.tcctransaction.server.dao;
 
 import org.mengyun.tcctransaction.server.model.Page;
+import org.mengyun.tcctransaction.server.model.Result;
 import org.mengyun.tcctransaction.server.vo.TransactionVo;
 
 import java.util.ArrayList;
@@ -35,6 +36,21 @@ public interface TransactionDao extends AutoCloseable {
 
     Page<TransactionVo> findDeletedTransactions(Integer pageNum, int pageSize);
 
+    /**
+     * the transactions moved to the dead letter store after the max retry count, an error if the store keeps no dead letters.
+     */
+    default Result<Page<TransactionVo>> findDeadLetters(Integer pageNum, int pageSize) {
+        return Result.err("dead letter is not supported by " + getClass().getSimpleName());
+    }
+
+    /**
+     * moves the dead letter back with the retried count reset, recovered by the next recovery.
+     * an error if not found or the store keeps no dead letters.
+     */
+    default Result<Void> replayDeadLetter(String globalTxId, String branchQualifier) {
+        return Result.err("dead letter is not supported by " + getClass().getSimpleName());
+    }
+
     @Override
     default void close() throws Exception {
     }
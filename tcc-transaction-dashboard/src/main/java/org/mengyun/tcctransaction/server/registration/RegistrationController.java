@@ -54,9 +54,16 @@ public class RegistrationController {
     public Object list(@RequestParam String domain,
                        @RequestParam String row,
                        @RequestParam(required = false, defaultValue = "false") boolean isDeleted,
+                       @RequestParam(required = false, defaultValue = "false") boolean isDeadLetter,
                        @RequestParam(required = false, defaultValue = "1") Integer pageNum,
                        @RequestParam(required = false, defaultValue = "" + DEFAULT_PAGE_SIZE) Integer pageSize) {
 
+        if (isDeadLetter) {
+            return daos.get(domain, row)
+                    .<Object>map(dao -> dao.findDeadLetters(pageNum, pageSize))
+                    .orElse(Result.err(String.format("domain %s not found", domain)));
+        }
+
         return daos.get(domain, row)
                 .map(new Function<TransactionDao, Page<TransactionVo>>() {
                     @Override
@@ -128,6 +135,22 @@ public class RegistrationController {
                 }).orElse(Result.ok());
     }
 
+    /**
+     * 重放死信
+     *
+     * @return
+     */
+    @PutMapping("/replay")
+    public Object replay(@RequestParam String domain,
+                         @RequestParam String row,
+                         @RequestParam String globalTxId,
+                         @RequestParam String branchQualifier) {
+
+        return daos.get(domain, row)
+                .map(dao -> dao.replayDeadLetter(globalTxId, branchQualifier))
+                .orElse(Result.err(String.format("domain %s not found", domain)));
+    }
+
     /**
      * confirm
      *
@@ -5,4 +5,6 @@ public class ZKpathConstants {
     public static String SENTINEL_CONTROL_ROOT = "/tcctransaction/sentinel";
 
     public static String REGISTRATION_ROOT = "/tcctransaction/registration";
+
+    public static String RECOVERY_MEMBER_ROOT = "/tcctransaction/recovery";
 }
@@ -0,0 +1,90 @@
+package org.mengyun.tcctransaction.ha.zookeeper;
+
+import org.apache.curator.framework.CuratorFramework;
+import org.apache.curator.framework.imps.CuratorFrameworkState;
+import org.apache.curator.framework.recipes.cache.ChildData;
+import org.apache.curator.framework.recipes.cache.PathChildrenCache;
+import org.apache.curator.framework.recipes.nodes.PersistentNode;
+import org.apache.curator.utils.ZKPaths;
+import org.apache.zookeeper.CreateMode;
+import org.mengyun.tcctransaction.recovery.ConsistentHashRecoveryPartitioner;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * the live members of the domain are the ephemeral nodes under root/domain, each node registers its local member
+ * and watches the others, the ring is rebuilt as the members join or leave.
+ */
+public class ZookeeperRecoveryPartitioner extends ConsistentHashRecoveryPartitioner {
+
+    private final CuratorFramework curator;
+    private final String root;
+
+    private String domain;
+
+    private PersistentNode memberNode;
+
+    private PathChildrenCache membersCache;
+
+    public ZookeeperRecoveryPartitioner(CuratorFramework curator, String domain, String root) {
+
+        if (curator.getState() != CuratorFrameworkState.STARTED)
+            throw new IllegalStateException("Curator may not initialized");
+        this.curator = curator;
+        this.root = root;
+        this.domain = domain;
+    }
+
+    public ZookeeperRecoveryPartitioner(CuratorFramework curator, String domain) {
+        this(curator, domain, ZKpathConstants.RECOVERY_MEMBER_ROOT);
+    }
+
+    @PostConstruct
+    public void init() throws Exception {
+
+        String path = ZKPaths.makePath(root, domain);
+
+        memberNode = new PersistentNode(curator, CreateMode.EPHEMERAL, false, ZKPaths.makePath(path, getLocalMember()), new byte[0]);
+        memberNode.start();
+
+        membersCache = new PathChildrenCache(curator, path, false);
+        membersCache.getListenable().addListener((client, event) -> refreshMembers());
+        membersCache.start(PathChildrenCache.StartMode.BUILD_INITIAL_CACHE);
+
+        refreshMembers();
+    }
+
+    @PreDestroy
+    public void close() throws Exception {
+
+        if (membersCache != null) {
+            membersCache.close();
+        }
+
+        if (memberNode != null) {
+            memberNode.close();
+        }
+    }
+
+    private void refreshMembers() {
+
+        List<String> members = new ArrayList<>();
+
+        for (ChildData data : membersCache.getCurrentData()) {
+            members.add(ZKPaths.getNodeFromPath(data.getPath()));
+        }
+
+        setMembers(members);
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public void setDomain(String domain) {
+        this.domain = domain;
+    }
+}
@@ -1,9 +1,11 @@
 package org.mengyun.tcctransaction.spring.support;
 
 
+import org.mengyun.tcctransaction.recovery.ParticipantRateLimiter;
 import org.mengyun.tcctransaction.recovery.RecoverConfiguration;
 import org.mengyun.tcctransaction.recovery.RecoverFrequency;
 import org.mengyun.tcctransaction.recovery.RecoveryLock;
+import org.mengyun.tcctransaction.recovery.RecoveryPartitioner;
 import org.mengyun.tcctransaction.repository.TransactionRepository;
 import org.mengyun.tcctransaction.spring.ConfigurableCoordinatorAspect;
 import org.mengyun.tcctransaction.spring.ConfigurableTransactionAspect;
@@ -28,6 +30,12 @@ public class TccTransactionConfiguration {
     @Autowired(required = false)
     RecoveryLock recoveryLock;
 
+    @Autowired(required = false)
+    RecoveryPartitioner recoveryPartitioner;
+
+    @Autowired(required = false)
+    ParticipantRateLimiter participantRateLimiter;
+
     @Bean("springBeanFactory")
     public SpringBeanFactory getSpringBeanFactory() {
         return new SpringBeanFactory();
@@ -57,6 +65,14 @@ public class TccTransactionConfiguration {
             recoverConfiguration.setRecoveryLock(recoveryLock);
         }
 
+        if (recoveryPartitioner != null) {
+            recoverConfiguration.setRecoveryPartitioner(recoveryPartitioner);
+        }
+
+        if (participantRateLimiter != null) {
+            recoverConfiguration.setParticipantRateLimiter(participantRateLimiter);
+        }
+
         return recoverConfiguration;
     }
 }
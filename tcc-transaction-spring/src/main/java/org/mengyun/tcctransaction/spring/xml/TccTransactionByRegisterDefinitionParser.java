@@ -62,6 +62,14 @@ public class TccTransactionByRegisterDefinitionParser implements BeanDefinitionP
                 recoveryConfigurationDef.getPropertyValues().addPropertyValue("recoveryLock", new RuntimeBeanReference(element.getAttribute("recovery-lock")));
             }
 
+            if (element.hasAttribute("recovery-partitioner")) {
+                recoveryConfigurationDef.getPropertyValues().addPropertyValue("recoveryPartitioner", new RuntimeBeanReference(element.getAttribute("recovery-partitioner")));
+            }
+
+            if (element.hasAttribute("participant-rate-limiter")) {
+                recoveryConfigurationDef.getPropertyValues().addPropertyValue("participantRateLimiter", new RuntimeBeanReference(element.getAttribute("participant-rate-limiter")));
+            }
+
             parserContext.registerBeanComponent(new BeanComponentDefinition(recoveryConfigurationDef, RECOVERY_CONFIGURATION));
         }
 
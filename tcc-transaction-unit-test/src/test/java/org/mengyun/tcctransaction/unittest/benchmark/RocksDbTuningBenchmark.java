@@ -0,0 +1,99 @@
+package org.mengyun.tcctransaction.unittest.benchmark;
+
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.RocksDbTransactionRepository;
+import org.mengyun.tcctransaction.repository.helper.RocksDbTuning;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * write and point lookup throughput of RocksDbTransactionRepository under each tuning preset,
+ * run the main method with the transaction count and writer thread count as the optional arguments, not run by surefire.
+ */
+public class RocksDbTuningBenchmark {
+
+    public static void main(String[] args) throws Exception {
+
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 20000;
+        int threads = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+
+        Map<String, RocksDbTuning> presets = new LinkedHashMap<>();
+        presets.put("default", new RocksDbTuning());
+        presets.put("durable", RocksDbTuning.durable());
+        presets.put("throughput", RocksDbTuning.throughput());
+
+        for (Map.Entry<String, RocksDbTuning> entry : presets.entrySet()) {
+            run(entry.getKey(), entry.getValue(), false, count, threads);
+        }
+
+        run("durable+group-commit", RocksDbTuning.durable(), true, count, threads);
+    }
+
+    private static void run(String name, RocksDbTuning tuning, boolean groupCommit, int count, int threads) throws Exception {
+
+        File location = Files.createTempDirectory("tcc-rocksdb-benchmark").toFile();
+
+        RocksDbTransactionRepository repository = new RocksDbTransactionRepository();
+        repository.setLocation(location.getAbsolutePath());
+        repository.setDomain("BENCHMARK");
+        repository.setTuning(tuning);
+        repository.setGroupCommitEnabled(groupCommit);
+        repository.init();
+
+        ExecutorService executorService = Executors.newFixedThreadPool(threads);
+
+        try {
+            List<Transaction> transactions = new ArrayList<>(count);
+            for (int i = 0; i < count; i++) {
+                transactions.add(new Transaction(TransactionType.ROOT));
+            }
+
+            long start = System.nanoTime();
+            List<Future<?>> futures = new ArrayList<>(threads);
+            for (int i = 0; i < threads; i++) {
+                final int from = i;
+                futures.add(executorService.submit(() -> {
+                    for (int j = from; j < transactions.size(); j += threads) {
+                        repository.create(transactions.get(j));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            long writeNanos = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (Transaction transaction : transactions) {
+                repository.findByXid(transaction.getXid());
+            }
+            long readNanos = System.nanoTime() - start;
+
+            System.out.println(String.format("%-22s writes: %8.0f/s, point lookups: %8.0f/s",
+                    name, count * 1e9 / writeNanos, count * 1e9 / readNanos));
+        } finally {
+            executorService.shutdown();
+            repository.close();
+            deleteRecursively(location);
+        }
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
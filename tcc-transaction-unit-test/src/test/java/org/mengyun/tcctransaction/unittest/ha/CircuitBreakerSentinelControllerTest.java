@@ -0,0 +1,121 @@
+package org.mengyun.tcctransaction.unittest.ha;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.ha.CircuitBreakerSentinelController;
+import org.mengyun.tcctransaction.ha.SentinelController;
+
+import java.util.concurrent.TimeUnit;
+
+public class CircuitBreakerSentinelControllerTest {
+
+    private CircuitBreakerSentinelController controller;
+
+    @Before
+    public void init() {
+        controller = new CircuitBreakerSentinelController();
+        controller.setMinimumRequests(10);
+        controller.setErrorRateThreshold(0.5d);
+        controller.setLatencyThresholdMillis(100);
+        controller.setOpenDurationMillis(200);
+        controller.setProbeSuccessThreshold(3);
+    }
+
+    @Test
+    public void testOpensOnErrorRate() throws InterruptedException {
+
+        for (int i = 0; i < 10; i++) {
+            controller.recordFailure(TimeUnit.MILLISECONDS.toNanos(1), new RuntimeException());
+        }
+        // evaluated at most every 100ms
+        TimeUnit.MILLISECONDS.sleep(120);
+        controller.recordFailure(TimeUnit.MILLISECONDS.toNanos(1), new RuntimeException());
+
+        Assert.assertEquals(CircuitBreakerSentinelController.State.OPEN, controller.getState());
+        Assert.assertTrue(controller.degrade());
+    }
+
+    @Test
+    public void testStaysClosedBelowMinimumRequests() throws InterruptedException {
+
+        for (int i = 0; i < 8; i++) {
+            controller.recordFailure(TimeUnit.MILLISECONDS.toNanos(1), new RuntimeException());
+        }
+        TimeUnit.MILLISECONDS.sleep(120);
+        controller.recordFailure(TimeUnit.MILLISECONDS.toNanos(1), new RuntimeException());
+
+        Assert.assertEquals(CircuitBreakerSentinelController.State.CLOSED, controller.getState());
+        Assert.assertFalse(controller.degrade());
+    }
+
+    @Test
+    public void testOpensOnLatencyPercentile() throws InterruptedException {
+
+        for (int i = 0; i < 10; i++) {
+            controller.recordSuccess(TimeUnit.MILLISECONDS.toNanos(500));
+        }
+        TimeUnit.MILLISECONDS.sleep(120);
+        controller.recordSuccess(TimeUnit.MILLISECONDS.toNanos(500));
+
+        Assert.assertEquals(CircuitBreakerSentinelController.State.OPEN, controller.getState());
+        Assert.assertTrue(controller.getLatencyPercentileNanos() >= TimeUnit.MILLISECONDS.toNanos(100));
+    }
+
+    @Test
+    public void testClosesAfterSuccessfulProbes() throws InterruptedException {
+
+        open();
+
+        TimeUnit.MILLISECONDS.sleep(250);
+        Assert.assertFalse(controller.degrade());
+        Assert.assertEquals(CircuitBreakerSentinelController.State.HALF_OPEN, controller.getState());
+
+        for (int i = 0; i < 3; i++) {
+            controller.recordSuccess(TimeUnit.MILLISECONDS.toNanos(1));
+        }
+
+        Assert.assertEquals(CircuitBreakerSentinelController.State.CLOSED, controller.getState());
+        Assert.assertFalse(controller.degrade());
+    }
+
+    @Test
+    public void testReopensOnSlowProbe() throws InterruptedException {
+
+        open();
+
+        TimeUnit.MILLISECONDS.sleep(250);
+        Assert.assertFalse(controller.degrade());
+
+        controller.recordSuccess(TimeUnit.MILLISECONDS.toNanos(1));
+        controller.recordSuccess(TimeUnit.MILLISECONDS.toNanos(500));
+
+        Assert.assertEquals(CircuitBreakerSentinelController.State.OPEN, controller.getState());
+        Assert.assertTrue(controller.degrade());
+    }
+
+    @Test
+    public void testOverrideControllerForcesDegradation() {
+
+        controller.setOverrideSentinelController(new SentinelController() {
+            @Override
+            public boolean degrade() {
+                return true;
+            }
+        });
+
+        Assert.assertTrue(controller.degrade());
+        Assert.assertEquals(CircuitBreakerSentinelController.State.CLOSED, controller.getState());
+    }
+
+    private void open() throws InterruptedException {
+
+        for (int i = 0; i < 10; i++) {
+            controller.recordFailure(TimeUnit.MILLISECONDS.toNanos(1), new RuntimeException());
+        }
+        TimeUnit.MILLISECONDS.sleep(120);
+        controller.recordFailure(TimeUnit.MILLISECONDS.toNanos(1), new RuntimeException());
+
+        Assert.assertEquals(CircuitBreakerSentinelController.State.OPEN, controller.getState());
+    }
+}
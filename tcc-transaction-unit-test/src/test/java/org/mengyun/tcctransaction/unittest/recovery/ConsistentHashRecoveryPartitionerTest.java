@@ -0,0 +1,82 @@
+package org.mengyun.tcctransaction.unittest.recovery;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.api.TransactionXid;
+import org.mengyun.tcctransaction.recovery.ConsistentHashRecoveryPartitioner;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+public class ConsistentHashRecoveryPartitionerTest {
+
+    @Test
+    public void testNotPartitionedWithoutMembers() {
+
+        ConsistentHashRecoveryPartitioner partitioner = partitioner("a");
+
+        Assert.assertFalse(partitioner.isPartitioned());
+        Assert.assertFalse(partitioner.isOwner(new TransactionXid()));
+
+        partitioner.setMembers(Arrays.asList("a", "b"));
+        Assert.assertTrue(partitioner.isPartitioned());
+
+        partitioner.setMembers(Collections.<String>emptyList());
+        Assert.assertFalse(partitioner.isPartitioned());
+        Assert.assertFalse(partitioner.isOwner(new TransactionXid()));
+    }
+
+    @Test
+    public void testEachXidIsOwnedByOneMember() {
+
+        ConsistentHashRecoveryPartitioner a = partitioner("a", "a", "b", "c");
+        ConsistentHashRecoveryPartitioner b = partitioner("b", "a", "b", "c");
+        ConsistentHashRecoveryPartitioner c = partitioner("c", "a", "b", "c");
+
+        int[] owned = new int[3];
+
+        for (int i = 0; i < 3000; i++) {
+
+            TransactionXid xid = new TransactionXid();
+
+            int owners = 0;
+            if (a.isOwner(xid)) {
+                owners++;
+                owned[0]++;
+            }
+            if (b.isOwner(xid)) {
+                owners++;
+                owned[1]++;
+            }
+            if (c.isOwner(xid)) {
+                owners++;
+                owned[2]++;
+            }
+
+            Assert.assertEquals(1, owners);
+        }
+
+        for (int count : owned) {
+            Assert.assertTrue(count > 500);
+        }
+    }
+
+    @Test
+    public void testLocalMemberNotInMembersOwnsNothing() {
+
+        ConsistentHashRecoveryPartitioner partitioner = partitioner("d", "a", "b", "c");
+
+        for (int i = 0; i < 100; i++) {
+            Assert.assertFalse(partitioner.isOwner(new TransactionXid()));
+        }
+    }
+
+    private ConsistentHashRecoveryPartitioner partitioner(String localMember, String... members) {
+        ConsistentHashRecoveryPartitioner partitioner = new ConsistentHashRecoveryPartitioner();
+        partitioner.setLocalMember(localMember);
+        if (members.length > 0) {
+            partitioner.setMembers(Arrays.asList(members));
+        }
+        return partitioner;
+    }
+}
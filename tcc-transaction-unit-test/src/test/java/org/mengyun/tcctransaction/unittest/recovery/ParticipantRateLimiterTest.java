@@ -0,0 +1,139 @@
+package org.mengyun.tcctransaction.unittest.recovery;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.SystemException;
+import org.mengyun.tcctransaction.recovery.ParticipantRateLimiter;
+
+import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class ParticipantRateLimiterTest {
+
+    private final InvocationContext confirmContext = new InvocationContext(AccountService.class, "confirm", new Class[0]);
+
+    private final InvocationContext cancelContext = new InvocationContext(AccountService.class, "cancel", new Class[0]);
+
+    @Test
+    public void testUnlimitedByDefault() {
+
+        ParticipantRateLimiter limiter = new ParticipantRateLimiter();
+
+        for (int i = 0; i < 100; i++) {
+            limiter.invoke(confirmContext, () -> {
+            });
+        }
+
+        ParticipantRateLimiter.TargetLimit targetLimit = limiter.getTargetLimits().get(AccountService.class.getName());
+        Assert.assertEquals(100, targetLimit.getInvokedCount());
+        Assert.assertEquals(0, targetLimit.getRejectedCount());
+    }
+
+    @Test
+    public void testCallsBeyondPermitsPerSecondAreRejected() {
+
+        ParticipantRateLimiter limiter = new ParticipantRateLimiter();
+        limiter.setPermitsPerSecond(1);
+        limiter.setAcquireTimeoutMillis(0);
+
+        limiter.invoke(confirmContext, () -> {
+        });
+
+        try {
+            limiter.invoke(confirmContext, () -> Assert.fail());
+            Assert.fail();
+        } catch (SystemException expected) {
+        }
+
+        ParticipantRateLimiter.TargetLimit targetLimit = limiter.getTargetLimits().get(AccountService.class.getName());
+        Assert.assertEquals(1, targetLimit.getInvokedCount());
+        Assert.assertEquals(1, targetLimit.getRejectedCount());
+    }
+
+    @Test
+    public void testCallsBeyondMaxConcurrencyAreRejected() throws InterruptedException {
+
+        ParticipantRateLimiter limiter = new ParticipantRateLimiter();
+        limiter.setMaxConcurrency(1);
+        limiter.setAcquireTimeoutMillis(100);
+
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch finish = new CountDownLatch(1);
+
+        Thread thread = new Thread(() -> limiter.invoke(confirmContext, () -> {
+            started.countDown();
+            try {
+                finish.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }));
+        thread.start();
+
+        Assert.assertTrue(started.await(5, TimeUnit.SECONDS));
+
+        ParticipantRateLimiter.TargetLimit targetLimit = limiter.getTargetLimits().get(AccountService.class.getName());
+        Assert.assertEquals(1, targetLimit.getInflight());
+
+        try {
+            limiter.invoke(confirmContext, () -> Assert.fail());
+            Assert.fail();
+        } catch (SystemException expected) {
+        }
+
+        finish.countDown();
+        thread.join(5000);
+
+        Assert.assertEquals(0, targetLimit.getInflight());
+        Assert.assertEquals(1, targetLimit.getRejectedCount());
+    }
+
+    @Test
+    public void testFailedCallReleasesConcurrency() {
+
+        ParticipantRateLimiter limiter = new ParticipantRateLimiter();
+        limiter.setMaxConcurrency(1);
+        limiter.setAcquireTimeoutMillis(0);
+
+        try {
+            limiter.invoke(confirmContext, () -> {
+                throw new IllegalStateException();
+            });
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        limiter.invoke(confirmContext, () -> {
+        });
+
+        Assert.assertEquals(2, limiter.getTargetLimits().get(AccountService.class.getName()).getInvokedCount());
+    }
+
+    @Test
+    public void testTargetsAreKeyedByMethodWithOverrides() {
+
+        ParticipantRateLimiter limiter = new ParticipantRateLimiter();
+        limiter.setKeyByMethod(true);
+        limiter.setPermitsPerSecond(100);
+        limiter.setTargetPermitsPerSecond(Collections.singletonMap(AccountService.class.getName(), 10d));
+        limiter.setTargetMaxConcurrency(Collections.singletonMap(AccountService.class.getName() + "#cancel", 2));
+
+        limiter.invoke(confirmContext, () -> {
+        });
+        limiter.invoke(cancelContext, () -> {
+        });
+
+        ParticipantRateLimiter.TargetLimit confirmLimit = limiter.getTargetLimits().get(AccountService.class.getName() + "#confirm");
+        ParticipantRateLimiter.TargetLimit cancelLimit = limiter.getTargetLimits().get(AccountService.class.getName() + "#cancel");
+
+        Assert.assertEquals(10d, confirmLimit.getPermitsPerSecond(), 0);
+        Assert.assertEquals(0, confirmLimit.getMaxConcurrency());
+        Assert.assertEquals(10d, cancelLimit.getPermitsPerSecond(), 0);
+        Assert.assertEquals(2, cancelLimit.getMaxConcurrency());
+    }
+
+    private static class AccountService {
+    }
+}
@@ -0,0 +1,108 @@
+package org.mengyun.tcctransaction.unittest.recovery;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.recovery.RecoveryConcurrencyLimiter;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class RecoveryConcurrencyLimiterTest {
+
+    private static final long FAST = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private static final long SLOW = TimeUnit.MILLISECONDS.toNanos(500);
+
+    @Test
+    public void testFailuresHalveTheLimit() throws InterruptedException {
+
+        RecoveryConcurrencyLimiter limiter = new RecoveryConcurrencyLimiter(2, 8, 100, 0.5d);
+
+        runWindow(limiter, 8, 8, FAST);
+        Assert.assertEquals(4, limiter.getLimit());
+
+        runWindow(limiter, 4, 4, FAST);
+        Assert.assertEquals(2, limiter.getLimit());
+
+        // not below minLimit
+        runWindow(limiter, 2, 2, FAST);
+        Assert.assertEquals(2, limiter.getLimit());
+    }
+
+    @Test
+    public void testSlowRecoveriesHalveTheLimit() throws InterruptedException {
+
+        RecoveryConcurrencyLimiter limiter = new RecoveryConcurrencyLimiter(1, 8, 100, 0.5d);
+
+        runWindow(limiter, 8, 0, SLOW);
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testSaturatedHealthyWindowIncreasesTheLimit() throws InterruptedException {
+
+        RecoveryConcurrencyLimiter limiter = new RecoveryConcurrencyLimiter(1, 8, 100, 0.5d);
+
+        runWindow(limiter, 8, 8, FAST);
+        Assert.assertEquals(4, limiter.getLimit());
+
+        runWindow(limiter, 4, 0, FAST);
+        Assert.assertEquals(5, limiter.getLimit());
+    }
+
+    @Test
+    public void testUnsaturatedHealthyWindowKeepsTheLimit() throws InterruptedException {
+
+        RecoveryConcurrencyLimiter limiter = new RecoveryConcurrencyLimiter(1, 8, 100, 0.5d);
+
+        runWindow(limiter, 8, 8, FAST);
+        Assert.assertEquals(4, limiter.getLimit());
+
+        for (int i = 0; i < 4; i++) {
+            limiter.acquire();
+            limiter.release(FAST, true);
+        }
+        Assert.assertEquals(4, limiter.getLimit());
+    }
+
+    @Test
+    public void testAcquireBlocksAtTheLimit() throws InterruptedException {
+
+        RecoveryConcurrencyLimiter limiter = new RecoveryConcurrencyLimiter(1, 2, 100, 0.5d);
+
+        limiter.acquire();
+        limiter.acquire();
+
+        CountDownLatch acquired = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            try {
+                limiter.acquire();
+                acquired.countDown();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+        thread.start();
+
+        Assert.assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+
+        limiter.release(FAST, true);
+
+        Assert.assertTrue(acquired.await(5, TimeUnit.SECONDS));
+        Assert.assertEquals(2, limiter.getInflight());
+    }
+
+    /*
+     * acquires count slots at once, then releases them, the first failures of them as failed.
+     * */
+    private void runWindow(RecoveryConcurrencyLimiter limiter, int count, int failures, long latencyNanos) throws InterruptedException {
+
+        for (int i = 0; i < count; i++) {
+            limiter.acquire();
+        }
+
+        for (int i = 0; i < count; i++) {
+            limiter.release(latencyNanos, i >= failures);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package org.mengyun.tcctransaction.unittest.recovery;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.InvocationContext;
+import org.mengyun.tcctransaction.Participant;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.TransactionManager;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.recovery.DefaultRecoverFrequency;
+import org.mengyun.tcctransaction.recovery.ParticipantRateLimiter;
+import org.mengyun.tcctransaction.recovery.RecoverFrequency;
+import org.mengyun.tcctransaction.recovery.RecoveryLock;
+import org.mengyun.tcctransaction.recovery.TransactionRecovery;
+import org.mengyun.tcctransaction.repository.MemoryStoreTransactionRepository;
+import org.mengyun.tcctransaction.repository.TransactionRepository;
+import org.mengyun.tcctransaction.support.TransactionConfigurator;
+
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+public class TransactionRecoveryTimeoutTest {
+
+    @Test
+    public void testTimedOutRecoveryIsCancelled() throws InterruptedException {
+
+        MemoryStoreTransactionRepository repository = new MemoryStoreTransactionRepository();
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        transaction.enlistParticipant(new Participant(null, null,
+                new InvocationContext(String.class, "confirm", new Class[0]), null, null));
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        transaction.setLastUpdateTime(new Date(System.currentTimeMillis() - 60 * 1000L));
+        repository.create(transaction);
+
+        CountDownLatch interrupted = new CountDownLatch(1);
+
+        // the participant hangs until it is interrupted
+        ParticipantRateLimiter participantRateLimiter = new ParticipantRateLimiter() {
+            @Override
+            public void invoke(InvocationContext invocationContext, Runnable call) {
+                try {
+                    Thread.sleep(60 * 1000L);
+                } catch (InterruptedException e) {
+                    interrupted.countDown();
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+
+        DefaultRecoverFrequency recoverFrequency = new DefaultRecoverFrequency();
+        recoverFrequency.setRecoverDuration(1);
+        recoverFrequency.setRecoveryTimeoutSeconds(1);
+
+        TransactionRecovery transactionRecovery = new TransactionRecovery();
+        transactionRecovery.setTransactionConfigurator(new TransactionConfigurator() {
+            @Override
+            public TransactionManager getTransactionManager() {
+                return null;
+            }
+
+            @Override
+            public TransactionRepository getTransactionRepository() {
+                return repository;
+            }
+
+            @Override
+            public RecoverFrequency getRecoverFrequency() {
+                return recoverFrequency;
+            }
+
+            @Override
+            public Lock getRecoveryLock() {
+                return RecoveryLock.DEFAULT_LOCK;
+            }
+
+            @Override
+            public ParticipantRateLimiter getParticipantRateLimiter() {
+                return participantRateLimiter;
+            }
+        });
+
+        long start = System.currentTimeMillis();
+        transactionRecovery.startRecover();
+
+        // ended at the recovery timeout instead of waiting for the participant
+        Assert.assertTrue(System.currentTimeMillis() - start < 10 * 1000L);
+        Assert.assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+
+        // not deleted as the participant is not confirmed
+        Transaction found = repository.findByXid(transaction.getXid());
+        Assert.assertNotNull(found);
+        Assert.assertEquals(1, found.getRetriedCount());
+    }
+}
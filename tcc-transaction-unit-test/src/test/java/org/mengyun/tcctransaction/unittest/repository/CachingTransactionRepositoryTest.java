@@ -0,0 +1,124 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.TransactionOptimisticLockException;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.CachingTransactionRepository;
+import org.mengyun.tcctransaction.repository.MemoryStoreTransactionRepository;
+
+import java.util.concurrent.TimeUnit;
+
+public class CachingTransactionRepositoryTest {
+
+    private static final long WRITE_BEHIND_DELAY_MILLIS = 200;
+
+    private RejectingMemoryStoreTransactionRepository targetRepository;
+
+    private CachingTransactionRepository cachingRepository;
+
+    @Before
+    public void init() {
+        targetRepository = new RejectingMemoryStoreTransactionRepository();
+        cachingRepository = new CachingTransactionRepository();
+        cachingRepository.setTargetTransactionRepository(targetRepository);
+        cachingRepository.setWriteBehindEnabled(true);
+        cachingRepository.setWriteBehindDelayMillis(WRITE_BEHIND_DELAY_MILLIS);
+        cachingRepository.init();
+    }
+
+    @After
+    public void destroy() {
+        cachingRepository.close();
+    }
+
+    @Test
+    public void testUpdatesWithinDelayAreWrittenAsOneCreate() throws Exception {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        cachingRepository.create(transaction);
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        cachingRepository.update(transaction);
+
+        Assert.assertNull(targetRepository.findByXid(transaction.getXid()));
+        Assert.assertEquals(2, cachingRepository.findByXid(transaction.getXid()).getVersion());
+
+        waitFlushed();
+
+        Transaction written = targetRepository.findByXid(transaction.getXid());
+        Assert.assertNotNull(written);
+        Assert.assertEquals(2, written.getVersion());
+        Assert.assertEquals(TransactionStatus.CONFIRMING, written.getStatus());
+    }
+
+    @Test
+    public void testDeletedWithinDelayIsNeverWritten() throws Exception {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        cachingRepository.create(transaction);
+        cachingRepository.delete(transaction);
+
+        waitFlushed();
+
+        Assert.assertNull(targetRepository.findByXid(transaction.getXid()));
+        Assert.assertEquals(0, targetRepository.createCount);
+    }
+
+    @Test
+    public void testUpdateAfterCreateWrittenIsWrittenThrough() throws Exception {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        cachingRepository.create(transaction);
+
+        waitFlushed();
+
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        cachingRepository.update(transaction);
+
+        Transaction written = targetRepository.findByXid(transaction.getXid());
+        Assert.assertEquals(2, written.getVersion());
+        Assert.assertEquals(TransactionStatus.CONFIRMING, written.getStatus());
+    }
+
+    @Test
+    public void testRejectedCreateIsKeptAndReported() throws Exception {
+
+        targetRepository.rejectCreate = true;
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        cachingRepository.create(transaction);
+
+        waitFlushed();
+
+        Assert.assertEquals(1, cachingRepository.getRejectedWriteCount());
+        Assert.assertNotNull(cachingRepository.findByXid(transaction.getXid()));
+
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        try {
+            cachingRepository.update(transaction);
+            Assert.fail();
+        } catch (TransactionOptimisticLockException expected) {
+        }
+    }
+
+    private void waitFlushed() throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(WRITE_BEHIND_DELAY_MILLIS * 3);
+    }
+
+    private static class RejectingMemoryStoreTransactionRepository extends MemoryStoreTransactionRepository {
+
+        private volatile boolean rejectCreate = false;
+
+        private volatile int createCount = 0;
+
+        @Override
+        protected int doCreate(Transaction transaction) {
+            createCount++;
+            return rejectCreate ? 0 : super.doCreate(transaction);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.FileSystemTransactionRepository;
+import org.mengyun.tcctransaction.repository.MemoryStoreTransactionRepository;
+import org.mengyun.tcctransaction.repository.Page;
+import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
+
+import java.util.Date;
+
+public class DeadLetterTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testMoveAndReplay() {
+
+        MemoryStoreTransactionRepository repository = new MemoryStoreTransactionRepository();
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        repository.create(transaction);
+        transaction.setRetriedCount(30);
+
+        Assert.assertTrue(repository.isDeadLetterSupported());
+        Assert.assertEquals(1, repository.moveToDeadLetter(transaction));
+
+        Assert.assertNull(repository.findByXid(transaction.getXid()));
+        Assert.assertTrue(repository.findAllUnmodifiedSince(new Date(System.currentTimeMillis() + 1000), null, 10).getData().isEmpty());
+
+        Page<Transaction> deadLetters = repository.findAllDeadLetters(null, 10);
+        Assert.assertEquals(1, deadLetters.getData().size());
+        Assert.assertEquals(transaction.getXid(), deadLetters.getData().get(0).getXid());
+
+        Assert.assertEquals(1, repository.replayDeadLetter(transaction.getXid()));
+
+        Transaction replayed = repository.findByXid(transaction.getXid());
+        Assert.assertEquals(0, replayed.getRetriedCount());
+        Assert.assertEquals(2, replayed.getVersion());
+        Assert.assertTrue(repository.findAllDeadLetters(null, 10).getData().isEmpty());
+
+        // replayed once only
+        Assert.assertEquals(0, repository.replayDeadLetter(transaction.getXid()));
+    }
+
+    @Test
+    public void testStaleVersionIsNotMoved() {
+
+        MemoryStoreTransactionRepository repository = new MemoryStoreTransactionRepository();
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        repository.create(transaction);
+
+        Transaction stale = new RegisterableKryoTransactionSerializer().clone(transaction);
+        stale.setVersion(0);
+
+        Assert.assertEquals(0, repository.moveToDeadLetter(stale));
+        Assert.assertNotNull(repository.findByXid(transaction.getXid()));
+        Assert.assertTrue(repository.findAllDeadLetters(null, 10).getData().isEmpty());
+    }
+
+    @Test
+    public void testUnsupportedRepositoryKeepsTheTransaction() throws Exception {
+
+        FileSystemTransactionRepository repository = new FileSystemTransactionRepository();
+        repository.setDomain(folder.newFolder().getAbsolutePath());
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        repository.create(transaction);
+
+        Assert.assertFalse(repository.isDeadLetterSupported());
+        Assert.assertEquals(0, repository.moveToDeadLetter(transaction));
+        Assert.assertNotNull(repository.findByXid(transaction.getXid()));
+        Assert.assertTrue(repository.findAllDeadLetters(null, 10).getData().isEmpty());
+        Assert.assertEquals(0, repository.replayDeadLetter(transaction.getXid()));
+    }
+}
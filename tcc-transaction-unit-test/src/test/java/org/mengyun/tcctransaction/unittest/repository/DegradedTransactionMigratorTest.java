@@ -0,0 +1,124 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.ha.SentinelController;
+import org.mengyun.tcctransaction.repository.MemoryStoreTransactionRepository;
+import org.mengyun.tcctransaction.repository.SentinelTransactionRepository;
+import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
+
+import java.util.concurrent.TimeUnit;
+
+public class DegradedTransactionMigratorTest {
+
+    private MemoryStoreTransactionRepository workRepository;
+
+    private MemoryStoreTransactionRepository degradedRepository;
+
+    private SentinelTransactionRepository sentinelRepository;
+
+    private volatile boolean degrade = false;
+
+    private final RegisterableKryoTransactionSerializer serializer = new RegisterableKryoTransactionSerializer();
+
+    @Before
+    public void init() {
+        workRepository = new MemoryStoreTransactionRepository();
+        degradedRepository = new MemoryStoreTransactionRepository();
+
+        sentinelRepository = new SentinelTransactionRepository();
+        sentinelRepository.setWorkTransactionRepository(workRepository);
+        sentinelRepository.setDegradedTransactionRepository(degradedRepository);
+        sentinelRepository.setSentinelController(new SentinelController() {
+            @Override
+            public boolean degrade() {
+                return degrade;
+            }
+        });
+        sentinelRepository.setMigrationEnabled(true);
+        sentinelRepository.setMigrationIntervalSeconds(1);
+    }
+
+    @After
+    public void destroy() {
+        sentinelRepository.close();
+    }
+
+    @Test
+    public void testDegradedTransactionIsMigrated() throws InterruptedException {
+
+        degrade = true;
+        sentinelRepository.init();
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        sentinelRepository.create(transaction);
+        Assert.assertNull(workRepository.findByXid(transaction.getXid()));
+
+        degrade = false;
+        awaitMigrated();
+
+        Assert.assertNull(degradedRepository.findByXid(transaction.getXid()));
+        Assert.assertEquals(1, workRepository.findByXid(transaction.getXid()).getVersion());
+        Assert.assertEquals(1, sentinelRepository.getMigrator().getMigratedCount());
+    }
+
+    @Test
+    public void testNewerDegradedTransactionIsResolved() throws InterruptedException {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        workRepository.create(serializer.clone(transaction));
+
+        Transaction degradedCopy = serializer.clone(transaction);
+        degradedRepository.create(degradedCopy);
+        degradedCopy.changeStatus(TransactionStatus.CONFIRMING);
+        degradedCopy.setVersion(3);
+
+        sentinelRepository.init();
+        awaitMigrated();
+
+        Transaction migrated = workRepository.findByXid(transaction.getXid());
+        Assert.assertEquals(3, migrated.getVersion());
+        Assert.assertEquals(TransactionStatus.CONFIRMING, migrated.getStatus());
+        Assert.assertNull(degradedRepository.findByXid(transaction.getXid()));
+        Assert.assertEquals(1, sentinelRepository.getMigrator().getConflictCount());
+
+        // the caller holding the degraded version goes on updating the work repository
+        transaction.setVersion(3);
+        Assert.assertEquals(1, sentinelRepository.update(transaction));
+        Assert.assertEquals(4, workRepository.findByXid(transaction.getXid()).getVersion());
+    }
+
+    @Test
+    public void testOlderDegradedTransactionIsDeleted() throws InterruptedException {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        Transaction workCopy = serializer.clone(transaction);
+        workRepository.create(workCopy);
+        workCopy.setVersion(2);
+
+        degradedRepository.create(serializer.clone(transaction));
+
+        sentinelRepository.init();
+        awaitMigrated();
+
+        Assert.assertEquals(2, workRepository.findByXid(transaction.getXid()).getVersion());
+        Assert.assertNull(degradedRepository.findByXid(transaction.getXid()));
+        Assert.assertEquals(0, sentinelRepository.getMigrator().getConflictCount());
+    }
+
+    private void awaitMigrated() throws InterruptedException {
+
+        long deadline = System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(10);
+
+        while (sentinelRepository.getMigrator().isPending() && System.currentTimeMillis() < deadline) {
+            TimeUnit.MILLISECONDS.sleep(100);
+        }
+
+        Assert.assertFalse(sentinelRepository.getMigrator().isPending());
+    }
+}
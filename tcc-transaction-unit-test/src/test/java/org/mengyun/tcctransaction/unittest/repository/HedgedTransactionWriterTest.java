@@ -0,0 +1,131 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.TransactionOptimisticLockException;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.ha.SentinelController;
+import org.mengyun.tcctransaction.repository.MemoryStoreTransactionRepository;
+import org.mengyun.tcctransaction.repository.SentinelTransactionRepository;
+import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
+
+import java.util.concurrent.TimeUnit;
+
+public class HedgedTransactionWriterTest {
+
+    private SlowMemoryStoreTransactionRepository workRepository;
+
+    private MemoryStoreTransactionRepository degradedRepository;
+
+    private SentinelTransactionRepository sentinelRepository;
+
+    private final RegisterableKryoTransactionSerializer serializer = new RegisterableKryoTransactionSerializer();
+
+    @Before
+    public void init() {
+        workRepository = new SlowMemoryStoreTransactionRepository();
+        degradedRepository = new MemoryStoreTransactionRepository();
+
+        sentinelRepository = new SentinelTransactionRepository();
+        sentinelRepository.setWorkTransactionRepository(workRepository);
+        sentinelRepository.setDegradedTransactionRepository(degradedRepository);
+        sentinelRepository.setSentinelController(new SentinelController() {
+        });
+        sentinelRepository.setMigrationEnabled(true);
+        sentinelRepository.setMigrationIntervalSeconds(3600);
+        sentinelRepository.setHedgeEnabled(true);
+        sentinelRepository.setHedgeDelayMillis(50);
+        sentinelRepository.init();
+    }
+
+    @After
+    public void destroy() {
+        sentinelRepository.close();
+    }
+
+    @Test
+    public void testSlowCreateIsAcknowledgedByDegradedRepository() {
+
+        workRepository.slowMillis = 500;
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+
+        long start = System.nanoTime();
+        Assert.assertEquals(1, sentinelRepository.create(transaction));
+
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 400);
+        Assert.assertNotNull(degradedRepository.findByXid(transaction.getXid()));
+        Assert.assertEquals(1, sentinelRepository.getHedgedWriter().getHedgedCount());
+    }
+
+    @Test
+    public void testSlowUpdateIsAcknowledgedByDegradedRepository() {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        workRepository.create(serializer.clone(transaction));
+        transaction.setVersion(1);
+
+        workRepository.slowMillis = 500;
+
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        Assert.assertEquals(1, sentinelRepository.update(transaction));
+
+        Assert.assertEquals(2, transaction.getVersion());
+        Assert.assertEquals(2, degradedRepository.findByXid(transaction.getXid()).getVersion());
+        Assert.assertEquals(1, sentinelRepository.getHedgedWriter().getDegradedAcknowledgedCount());
+    }
+
+    @Test
+    public void testSlowUpdateOfStaleVersionIsRejected() {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        Transaction stored = serializer.clone(transaction);
+        workRepository.create(stored);
+        stored.setVersion(3);
+
+        workRepository.slowMillis = 500;
+
+        transaction.setVersion(1);
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+
+        try {
+            sentinelRepository.update(transaction);
+            Assert.fail();
+        } catch (TransactionOptimisticLockException expected) {
+        }
+
+        Assert.assertNull(degradedRepository.findByXid(transaction.getXid()));
+        Assert.assertEquals(0, sentinelRepository.getHedgedWriter().getDegradedAcknowledgedCount());
+    }
+
+    private static class SlowMemoryStoreTransactionRepository extends MemoryStoreTransactionRepository {
+
+        private volatile long slowMillis = 0;
+
+        @Override
+        protected int doCreate(Transaction transaction) {
+            sleep();
+            return super.doCreate(transaction);
+        }
+
+        @Override
+        protected int doUpdate(Transaction transaction) {
+            sleep();
+            return super.doUpdate(transaction);
+        }
+
+        private void sleep() {
+            if (slowMillis > 0) {
+                try {
+                    TimeUnit.MILLISECONDS.sleep(slowMillis);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import io.lettuce.core.RedisClient;
+import io.lettuce.core.RedisFuture;
+import io.lettuce.core.api.StatefulRedisConnection;
+import io.lettuce.core.api.async.RedisAsyncCommands;
+import io.lettuce.core.cluster.RedisClusterClient;
+import io.lettuce.core.cluster.api.StatefulRedisClusterConnection;
+import io.lettuce.core.cluster.api.async.RedisAdvancedClusterAsyncCommands;
+import io.lettuce.core.codec.RedisCodec;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.TransactionOptimisticLockException;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.LettuceTransactionRepository;
+import org.mengyun.tcctransaction.repository.helper.RedisHelper;
+import org.mengyun.tcctransaction.repository.helper.RedisScript;
+import org.mengyun.tcctransaction.repository.helper.TransactionRepositoryHelper;
+import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
+
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * runs against an in-process stand-in of the redis commands, the scripts are emulated by their sha1.
+ */
+public class LettuceTransactionRepositoryTest {
+
+    private final FakeRedis fakeRedis = new FakeRedis();
+
+    private final List<Runnable> shutdowns = new ArrayList<>();
+
+    @After
+    public void destroy() {
+        for (Runnable shutdown : shutdowns) {
+            shutdown.run();
+        }
+    }
+
+    @Test
+    public void testUpdateAsyncOfStaleVersionCompletesWithOptimisticLockException() throws InterruptedException {
+
+        LettuceTransactionRepository repository = standaloneRepository();
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        repository.create(transaction);
+
+        Transaction stale = new RegisterableKryoTransactionSerializer().clone(transaction);
+        Transaction anotherStale = new RegisterableKryoTransactionSerializer().clone(transaction);
+
+        transaction.changeStatus(TransactionStatus.CONFIRMING);
+        repository.update(transaction);
+
+        try {
+            repository.updateAsync(stale).toCompletableFuture().get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TransactionOptimisticLockException);
+        }
+
+        // not wrapped when waited for by the transaction manager and the recovery
+        try {
+            TransactionRepositoryHelper.update(repository, anotherStale);
+            Assert.fail();
+        } catch (TransactionOptimisticLockException expected) {
+        }
+
+        Transaction found = repository.findByXid(transaction.getXid());
+        Assert.assertEquals(2, found.getVersion());
+        Assert.assertEquals(TransactionStatus.CONFIRMING, found.getStatus());
+    }
+
+    @Test
+    public void testClusterWritesUseTheTransactionKeyOnly() throws InterruptedException {
+
+        LettuceTransactionRepository repository = clusterRepository();
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        TransactionRepositoryHelper.create(repository, transaction);
+
+        Transaction stale = new RegisterableKryoTransactionSerializer().clone(transaction);
+
+        transaction.changeStatus(TransactionStatus.CANCELLING);
+        TransactionRepositoryHelper.update(repository, transaction);
+
+        try {
+            repository.updateAsync(stale).toCompletableFuture().get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TransactionOptimisticLockException);
+        }
+
+        Transaction found = TransactionRepositoryHelper.findByXid(repository, transaction.getXid());
+        Assert.assertEquals(TransactionStatus.CANCELLING, found.getStatus());
+
+        TransactionRepositoryHelper.delete(repository, transaction);
+        Assert.assertNull(repository.findByXid(transaction.getXid()));
+
+        // the time index is in another slot than the transaction keys
+        Assert.assertFalse(fakeRedis.scriptKeyCounts.isEmpty());
+        for (int keyCount : fakeRedis.scriptKeyCounts) {
+            Assert.assertEquals(1, keyCount);
+        }
+    }
+
+    private LettuceTransactionRepository standaloneRepository() {
+
+        RedisClient redisClient = new RedisClient() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> StatefulRedisConnection<K, V> connect(RedisCodec<K, V> codec) {
+                return (StatefulRedisConnection<K, V>) fakeRedis.connection(StatefulRedisConnection.class, RedisAsyncCommands.class);
+            }
+        };
+        shutdowns.add(() -> redisClient.shutdown(0, 0, TimeUnit.SECONDS));
+
+        LettuceTransactionRepository repository = new LettuceTransactionRepository();
+        repository.setDomain("TCC_LETTUCE:");
+        repository.setRedisClient(redisClient);
+        return repository;
+    }
+
+    private LettuceTransactionRepository clusterRepository() {
+
+        RedisClusterClient redisClusterClient = new RedisClusterClient() {
+            @Override
+            @SuppressWarnings("unchecked")
+            public <K, V> StatefulRedisClusterConnection<K, V> connect(RedisCodec<K, V> codec) {
+                return (StatefulRedisClusterConnection<K, V>) fakeRedis.connection(StatefulRedisClusterConnection.class, RedisAdvancedClusterAsyncCommands.class);
+            }
+        };
+        shutdowns.add(() -> redisClusterClient.shutdown(0, 0, TimeUnit.SECONDS));
+
+        LettuceTransactionRepository repository = new LettuceTransactionRepository();
+        repository.setDomain("TCC_LETTUCE:");
+        repository.setRedisClusterClient(redisClusterClient);
+        return repository;
+    }
+
+    static class FakeRedis {
+
+        private final Map<ByteBuffer, Map<ByteBuffer, byte[]>> hashes = new HashMap<>();
+
+        private final List<Integer> scriptKeyCounts = new ArrayList<>();
+
+        Object connection(Class<?> connectionType, Class<?> commandsType) {
+
+            Object commands = Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{commandsType}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "evalsha":
+                        return completed(eval((String) args[0], (byte[][]) args[2], (byte[][]) args[3]));
+                    case "hgetall":
+                        return completed(hgetall((byte[]) args[0]));
+                    case "hget":
+                        return completed(hget((byte[]) args[0], (byte[]) args[1]));
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+
+            return Proxy.newProxyInstance(getClass().getClassLoader(), new Class[]{connectionType}, (proxy, method, args) -> {
+                switch (method.getName()) {
+                    case "async":
+                        return commands;
+                    case "getTimeout":
+                        return Duration.ofSeconds(1);
+                    case "close":
+                        return null;
+                    default:
+                        throw new UnsupportedOperationException(method.getName());
+                }
+            });
+        }
+
+        private synchronized Long eval(String sha1, byte[][] keys, byte[][] args) {
+
+            scriptKeyCounts.add(keys.length);
+
+            ByteBuffer key = ByteBuffer.wrap(keys[0]);
+            Map<ByteBuffer, byte[]> hash = hashes.get(key);
+
+            if (is(RedisHelper.CREATE_SCRIPT, sha1)) {
+                if (hash != null) {
+                    return 0L;
+                }
+                hashes.put(key, fields(args, 1));
+                return 1L;
+            }
+
+            if (is(RedisHelper.UPDATE_SCRIPT, sha1)) {
+                if (hash == null) {
+                    return -1L;
+                }
+                if (!Arrays.equals(hash.get(ByteBuffer.wrap(new byte[]{'v'})), args[0])) {
+                    return 0L;
+                }
+                hashes.put(key, fields(args, 2));
+                return 1L;
+            }
+
+            if (is(RedisHelper.DELETE_SCRIPT, sha1)) {
+                return hashes.remove(key) == null ? 0L : 1L;
+            }
+
+            throw new UnsupportedOperationException(sha1);
+        }
+
+        private synchronized Map<Object, byte[]> hgetall(byte[] key) {
+
+            Map<Object, byte[]> result = new HashMap<>();
+            Map<ByteBuffer, byte[]> hash = hashes.get(ByteBuffer.wrap(key));
+
+            if (hash != null) {
+                for (Map.Entry<ByteBuffer, byte[]> entry : hash.entrySet()) {
+                    result.put(entry.getKey().array(), entry.getValue());
+                }
+            }
+            return result;
+        }
+
+        private synchronized byte[] hget(byte[] key, byte[] field) {
+            Map<ByteBuffer, byte[]> hash = hashes.get(ByteBuffer.wrap(key));
+            return hash == null ? null : hash.get(ByteBuffer.wrap(field));
+        }
+
+        private static Map<ByteBuffer, byte[]> fields(byte[][] args, int from) {
+            Map<ByteBuffer, byte[]> hash = new HashMap<>();
+            for (int i = from; i + 1 < args.length; i += 2) {
+                hash.put(ByteBuffer.wrap(args[i]), args[i + 1]);
+            }
+            return hash;
+        }
+
+        private static boolean is(RedisScript script, String sha1) {
+            return new String(script.getSha1(), StandardCharsets.UTF_8).equals(sha1);
+        }
+
+        private static <T> RedisFuture<T> completed(T value) {
+            CompletedRedisFuture<T> future = new CompletedRedisFuture<>();
+            future.complete(value);
+            return future;
+        }
+    }
+
+    static class CompletedRedisFuture<T> extends CompletableFuture<T> implements RedisFuture<T> {
+
+        @Override
+        public String getError() {
+            return null;
+        }
+
+        @Override
+        public boolean await(long timeout, TimeUnit unit) {
+            return true;
+        }
+    }
+}
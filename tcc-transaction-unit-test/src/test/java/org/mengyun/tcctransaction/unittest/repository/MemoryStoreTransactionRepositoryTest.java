@@ -0,0 +1,93 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.MemoryStoreTransactionRepository;
+
+import java.util.concurrent.TimeUnit;
+
+public class MemoryStoreTransactionRepositoryTest {
+
+    private MemoryStoreTransactionRepository repository;
+
+    private FailingMemoryStoreTransactionRepository spillRepository;
+
+    @Before
+    public void init() {
+        spillRepository = new FailingMemoryStoreTransactionRepository();
+
+        repository = new MemoryStoreTransactionRepository();
+        repository.setCapacity(2);
+        repository.setSpillTransactionRepository(spillRepository);
+    }
+
+    @Test
+    public void testOldestTransactionIsSpilledWithItsVersion() throws InterruptedException {
+
+        Transaction oldest = new Transaction(TransactionType.ROOT);
+        repository.create(oldest);
+        oldest.changeStatus(TransactionStatus.CONFIRMING);
+        repository.update(oldest);
+
+        Transaction second = createLater();
+        Transaction third = createLater();
+
+        Transaction spilled = spillRepository.findByXid(oldest.getXid());
+        Assert.assertNotNull(spilled);
+        Assert.assertNotSame(oldest, spilled);
+        Assert.assertEquals(2, spilled.getVersion());
+        Assert.assertEquals(TransactionStatus.CONFIRMING, spilled.getStatus());
+
+        Assert.assertNull(spillRepository.findByXid(second.getXid()));
+        Assert.assertNull(spillRepository.findByXid(third.getXid()));
+
+        // found and updated through the memory store with the version the caller holds
+        Assert.assertEquals(2, repository.findByXid(oldest.getXid()).getVersion());
+        Assert.assertEquals(1, repository.update(oldest));
+        Assert.assertEquals(3, spillRepository.findByXid(oldest.getXid()).getVersion());
+    }
+
+    @Test
+    public void testFailedSpillDoesNotFailTheCreate() throws InterruptedException {
+
+        spillRepository.failing = true;
+
+        Transaction oldest = createLater();
+        createLater();
+        Transaction third = createLater();
+
+        Assert.assertNotNull(repository.findByXid(oldest.getXid()));
+        Assert.assertNotNull(repository.findByXid(third.getXid()));
+
+        // spilled on the next create once the spill repository is back
+        spillRepository.failing = false;
+        createLater();
+
+        Assert.assertNotNull(spillRepository.findByXid(oldest.getXid()));
+        Assert.assertEquals(1, spillRepository.findByXid(oldest.getXid()).getVersion());
+    }
+
+    private Transaction createLater() throws InterruptedException {
+        TimeUnit.MILLISECONDS.sleep(5);
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        repository.create(transaction);
+        return transaction;
+    }
+
+    private static class FailingMemoryStoreTransactionRepository extends MemoryStoreTransactionRepository {
+
+        private volatile boolean failing = false;
+
+        @Override
+        protected int doCreate(Transaction transaction) {
+            if (failing) {
+                throw new IllegalStateException("spill repository is down");
+            }
+            return super.doCreate(transaction);
+        }
+    }
+}
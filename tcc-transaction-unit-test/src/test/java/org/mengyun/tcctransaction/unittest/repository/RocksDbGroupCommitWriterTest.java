@@ -0,0 +1,166 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mengyun.tcctransaction.repository.TransactionIOException;
+import org.mengyun.tcctransaction.repository.helper.RocksDbGroupCommitWriter;
+import org.rocksdb.Options;
+import org.rocksdb.RocksDB;
+import org.rocksdb.RocksDBException;
+import org.rocksdb.WriteOptions;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+public class RocksDbGroupCommitWriterTest {
+
+    static {
+        RocksDB.loadLibrary();
+    }
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private Options options;
+
+    private WriteOptions writeOptions;
+
+    private RocksDB db;
+
+    private RocksDbGroupCommitWriter writer;
+
+    @Before
+    public void init() throws Exception {
+        options = new Options().setCreateIfMissing(true);
+        writeOptions = new WriteOptions();
+        db = RocksDB.open(options, folder.newFolder().getAbsolutePath());
+        writer = new RocksDbGroupCommitWriter(db, writeOptions, 5, 16);
+    }
+
+    @After
+    public void destroy() {
+        writer.close();
+        db.close();
+        writeOptions.close();
+        options.close();
+    }
+
+    @Test
+    public void testConcurrentWritesAreAllWritten() throws Exception {
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 200; i++) {
+            final byte[] key = ("key" + i).getBytes();
+            futures.add(executorService.submit(() -> {
+                writer.write(writeBatch -> writeBatch.put(key, key));
+                return null;
+            }));
+        }
+
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executorService.shutdown();
+
+        for (int i = 0; i < 200; i++) {
+            Assert.assertArrayEquals(("key" + i).getBytes(), db.get(("key" + i).getBytes()));
+        }
+    }
+
+    @Test
+    public void testFailedMutationOnlyFailsItsCaller() throws Exception {
+
+        ExecutorService executorService = Executors.newFixedThreadPool(2);
+
+        Future<?> failed = executorService.submit(() -> {
+            writer.write(writeBatch -> {
+                writeBatch.put("failed".getBytes(), "v".getBytes());
+                throw new RocksDBException("mutation failed");
+            });
+            return null;
+        });
+        Future<?> succeeded = executorService.submit(() -> {
+            writer.write(writeBatch -> writeBatch.put("succeeded".getBytes(), "v".getBytes()));
+            return null;
+        });
+
+        try {
+            failed.get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (java.util.concurrent.ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof RocksDBException);
+        }
+        succeeded.get(10, TimeUnit.SECONDS);
+        executorService.shutdown();
+
+        Assert.assertNull(db.get("failed".getBytes()));
+        Assert.assertNotNull(db.get("succeeded".getBytes()));
+    }
+
+    @Test
+    public void testUnexpectedFlushFailureCompletesTheWrite() throws Exception {
+
+        ExecutorService executorService = Executors.newSingleThreadExecutor();
+
+        Future<?> future = executorService.submit(() -> {
+            writer.write(writeBatch -> {
+                throw new AssertionError("not an exception");
+            });
+            return null;
+        });
+
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (java.util.concurrent.ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TransactionIOException);
+        }
+        executorService.shutdown();
+
+        // the flush thread is still alive
+        writer.write(writeBatch -> writeBatch.put("after".getBytes(), "v".getBytes()));
+        Assert.assertNotNull(db.get("after".getBytes()));
+    }
+
+    @Test(expected = TransactionIOException.class)
+    public void testWriteAfterClose() throws Exception {
+        writer.close();
+        writer.write(writeBatch -> writeBatch.put("closed".getBytes(), "v".getBytes()));
+    }
+
+    @Test
+    public void testWritesRacingCloseNeverBlock() throws Exception {
+
+        ExecutorService executorService = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+
+        for (int i = 0; i < 200; i++) {
+            final byte[] key = ("race" + i).getBytes();
+            futures.add(executorService.submit(() -> {
+                try {
+                    writer.write(writeBatch -> writeBatch.put(key, key));
+                } catch (TransactionIOException ignore) {
+                    // closed
+                }
+                return null;
+            }));
+        }
+
+        writer.close();
+
+        for (Future<?> future : futures) {
+            future.get(10, TimeUnit.SECONDS);
+        }
+        executorService.shutdown();
+    }
+}
@@ -0,0 +1,75 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.Page;
+import org.mengyun.tcctransaction.repository.RocksDbTransactionRepository;
+import org.mengyun.tcctransaction.serializer.RegisterableKryoTransactionSerializer;
+
+import java.util.Date;
+
+public class RocksDbTransactionRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private RocksDbTransactionRepository repository;
+
+    @Before
+    public void init() throws Exception {
+        repository = new RocksDbTransactionRepository();
+        repository.setLocation(folder.newFolder().getAbsolutePath());
+        repository.setDomain("TCC_ROCKSDB");
+        repository.init();
+    }
+
+    @After
+    public void destroy() {
+        repository.close();
+    }
+
+    @Test
+    public void testCreateOfExistingKeyReplacesItsTimeIndex() {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        transaction.setLastUpdateTime(new Date(System.currentTimeMillis() - 60 * 1000L));
+        repository.create(transaction);
+
+        // written again as by the spill or migrate paths
+        Transaction again = new RegisterableKryoTransactionSerializer().clone(transaction);
+        again.setLastUpdateTime(new Date());
+        repository.create(again);
+
+        Page<Transaction> stalePage = repository.findAllUnmodifiedSince(new Date(System.currentTimeMillis() - 30 * 1000L), null, 10);
+        Assert.assertTrue(stalePage.getData().isEmpty());
+
+        Page<Transaction> page = repository.findAllUnmodifiedSince(new Date(System.currentTimeMillis() + 1000), null, 10);
+        Assert.assertEquals(1, page.getData().size());
+    }
+
+    @Test
+    public void testTransactionInBackoffIsFoundAtItsNextRetryTime() {
+
+        long recoverDuration = 30 * 1000L;
+        Date unmodifiedSince = new Date(System.currentTimeMillis() - recoverDuration);
+
+        Transaction due = new Transaction(TransactionType.ROOT);
+        due.setNextRetryTime(new Date(System.currentTimeMillis() - 1000), recoverDuration);
+        repository.create(due);
+
+        Transaction notDue = new Transaction(TransactionType.ROOT);
+        notDue.setNextRetryTime(new Date(System.currentTimeMillis() + 10 * 1000L), recoverDuration);
+        repository.create(notDue);
+
+        // updated just now, but its next retry time has passed, the recover duration is not waited again
+        Page<Transaction> page = repository.findAllUnmodifiedSince(unmodifiedSince, null, 10);
+        Assert.assertEquals(1, page.getData().size());
+        Assert.assertEquals(due.getXid(), page.getData().get(0).getXid());
+    }
+}
@@ -0,0 +1,176 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mengyun.tcctransaction.repository.helper.SegmentLog;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SegmentLogTest {
+
+    // header(8) + meta(21) + key(1) + value(10)
+    private static final int RECORD_SIZE = 40;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private File dir;
+
+    private final List<SegmentLog> segmentLogs = new ArrayList<>();
+
+    @Before
+    public void init() throws IOException {
+        dir = folder.newFolder();
+    }
+
+    @After
+    public void destroy() {
+        for (SegmentLog segmentLog : segmentLogs) {
+            segmentLog.close();
+        }
+    }
+
+    @Test
+    public void testTornTailIsDroppedOnReopen() throws IOException {
+
+        SegmentLog segmentLog = open(4096);
+        segmentLog.put(key("a"), 1, 100, value("a", 1));
+        segmentLog.put(key("b"), 1, 100, value("b", 1));
+
+        // crashed in the middle of writing b
+        try (RandomAccessFile raf = new RandomAccessFile(segmentFiles()[0], "rw")) {
+            raf.seek(RECORD_SIZE * 2 - 1);
+            raf.write('x');
+        }
+
+        SegmentLog reopened = open(4096);
+        Assert.assertArrayEquals(value("a", 1), reopened.get(key("a")));
+        Assert.assertNull(reopened.get(key("b")));
+
+        // written over the torn record and found after the next reopen
+        reopened.put(key("c"), 1, 100, value("c", 1));
+
+        SegmentLog reopenedAgain = open(4096);
+        Assert.assertArrayEquals(value("a", 1), reopenedAgain.get(key("a")));
+        Assert.assertNull(reopenedAgain.get(key("b")));
+        Assert.assertArrayEquals(value("c", 1), reopenedAgain.get(key("c")));
+    }
+
+    @Test
+    public void testRecordsAfterCheckpointAreReplayed() {
+
+        SegmentLog segmentLog = open(4096);
+        segmentLog.put(key("a"), 1, 100, value("a", 1));
+        segmentLog.put(key("b"), 1, 100, value("b", 1));
+        segmentLog.checkpoint();
+
+        segmentLog.put(key("a"), 2, 200, value("a", 2));
+        segmentLog.delete(key("b"));
+        segmentLog.put(key("c"), 1, 300, value("c", 1));
+
+        // not closed, so that the records after the checkpoint are only found by replaying them
+        SegmentLog reopened = open(4096);
+
+        Assert.assertEquals(2, reopened.getEntry(key("a")).getVersion());
+        Assert.assertEquals(200, reopened.getEntry(key("a")).getLastUpdateTime());
+        Assert.assertArrayEquals(value("a", 2), reopened.get(key("a")));
+        Assert.assertNull(reopened.get(key("b")));
+        Assert.assertArrayEquals(value("c", 1), reopened.get(key("c")));
+        Assert.assertEquals(2, reopened.getIndex().size());
+    }
+
+    @Test
+    public void testCompactedRecordsAreFoundAfterReopen() {
+
+        // three records each segment
+        SegmentLog segmentLog = open(RECORD_SIZE * 3 + 8);
+
+        segmentLog.put(key("a"), 1, 100, value("a", 1));
+        segmentLog.put(key("b"), 1, 100, value("b", 1));
+        segmentLog.put(key("c"), 1, 100, value("c", 1));
+
+        segmentLog.put(key("a"), 2, 200, value("a", 2));
+        segmentLog.delete(key("b"));
+        segmentLog.put(key("d"), 1, 200, value("d", 1));
+        segmentLog.put(key("e"), 1, 200, value("e", 1));
+
+        Assert.assertEquals(3, segmentFiles().length);
+
+        // only c is live in the oldest segment
+        Assert.assertEquals(1, segmentLog.compact(0.5));
+        Assert.assertEquals(2, segmentFiles().length);
+        Assert.assertArrayEquals(value("c", 1), segmentLog.get(key("c")));
+
+        segmentLog.close();
+
+        SegmentLog reopened = open(RECORD_SIZE * 3 + 8);
+
+        Assert.assertArrayEquals(value("a", 2), reopened.get(key("a")));
+        Assert.assertNull(reopened.get(key("b")));
+        Assert.assertArrayEquals(value("c", 1), reopened.get(key("c")));
+        Assert.assertEquals(1, reopened.getEntry(key("c")).getVersion());
+        Assert.assertArrayEquals(value("d", 1), reopened.get(key("d")));
+        Assert.assertArrayEquals(value("e", 1), reopened.get(key("e")));
+        Assert.assertEquals(4, reopened.getIndex().size());
+    }
+
+    @Test
+    public void testTombstonesDeleteTheRecordsOfOlderSegments() {
+
+        SegmentLog segmentLog = open(RECORD_SIZE * 3 + 8);
+
+        segmentLog.put(key("a"), 1, 100, value("a", 1));
+        segmentLog.put(key("b"), 1, 100, value("b", 1));
+        segmentLog.put(key("c"), 1, 100, value("c", 1));
+
+        // the tombstone is in a newer segment than the record it deletes
+        segmentLog.delete(key("a"));
+        segmentLog.put(key("d"), 1, 200, value("d", 1));
+
+        // b and c keep the oldest segment live enough
+        Assert.assertEquals(0, segmentLog.compact(0.5));
+
+        // not closed, the index is built by replaying all segments
+        SegmentLog reopened = open(RECORD_SIZE * 3 + 8);
+
+        Assert.assertNull(reopened.get(key("a")));
+        Assert.assertEquals(3, reopened.getIndex().size());
+
+        // the segment of a is compacted before the one of its tombstone
+        Assert.assertTrue(reopened.compact(1) > 0);
+
+        SegmentLog reopenedAgain = open(RECORD_SIZE * 3 + 8);
+
+        Assert.assertNull(reopenedAgain.get(key("a")));
+        Assert.assertArrayEquals(value("b", 1), reopenedAgain.get(key("b")));
+        Assert.assertArrayEquals(value("c", 1), reopenedAgain.get(key("c")));
+        Assert.assertArrayEquals(value("d", 1), reopenedAgain.get(key("d")));
+        Assert.assertEquals(3, reopenedAgain.getIndex().size());
+    }
+
+    private SegmentLog open(int segmentSize) {
+        SegmentLog segmentLog = SegmentLog.open(dir, segmentSize, false);
+        segmentLogs.add(segmentLog);
+        return segmentLog;
+    }
+
+    private File[] segmentFiles() {
+        return dir.listFiles((d, name) -> name.endsWith(".log"));
+    }
+
+    private static byte[] key(String key) {
+        return key.getBytes();
+    }
+
+    private static byte[] value(String key, int version) {
+        return String.format("value-%s%03d", key, version).getBytes();
+    }
+}
@@ -0,0 +1,86 @@
+package org.mengyun.tcctransaction.unittest.repository;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mengyun.tcctransaction.Transaction;
+import org.mengyun.tcctransaction.TransactionOptimisticLockException;
+import org.mengyun.tcctransaction.api.TransactionStatus;
+import org.mengyun.tcctransaction.common.TransactionType;
+import org.mengyun.tcctransaction.repository.Page;
+import org.mengyun.tcctransaction.repository.SegmentLogTransactionRepository;
+
+import java.io.IOException;
+import java.util.Date;
+
+public class SegmentLogTransactionRepositoryTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private String location;
+
+    private SegmentLogTransactionRepository repository;
+
+    @Before
+    public void init() throws IOException {
+        location = folder.newFolder().getAbsolutePath();
+        repository = open();
+    }
+
+    @After
+    public void destroy() {
+        repository.close();
+    }
+
+    @Test
+    public void testTransactionsAreFoundAfterReopen() {
+
+        Transaction updated = new Transaction(TransactionType.ROOT);
+        repository.create(updated);
+        updated.changeStatus(TransactionStatus.CONFIRMING);
+        repository.update(updated);
+
+        Transaction deleted = new Transaction(TransactionType.ROOT);
+        repository.create(deleted);
+        repository.delete(deleted);
+
+        repository.close();
+        repository = open();
+
+        Transaction found = repository.findByXid(updated.getXid());
+        Assert.assertNotNull(found);
+        Assert.assertEquals(2, found.getVersion());
+        Assert.assertEquals(TransactionStatus.CONFIRMING, found.getStatus());
+
+        Assert.assertNull(repository.findByXid(deleted.getXid()));
+
+        Page<Transaction> page = repository.findAllUnmodifiedSince(new Date(System.currentTimeMillis() + 1000), null, 10);
+        Assert.assertEquals(1, page.getData().size());
+        Assert.assertEquals(updated.getXid(), page.getData().get(0).getXid());
+    }
+
+    @Test(expected = TransactionOptimisticLockException.class)
+    public void testUpdateOfStaleVersionFails() {
+
+        Transaction transaction = new Transaction(TransactionType.ROOT);
+        repository.create(transaction);
+
+        Transaction stale = repository.findByXid(transaction.getXid());
+
+        repository.update(transaction);
+        repository.update(stale);
+    }
+
+    private SegmentLogTransactionRepository open() {
+        SegmentLogTransactionRepository segmentLogTransactionRepository = new SegmentLogTransactionRepository();
+        segmentLogTransactionRepository.setLocation(location);
+        segmentLogTransactionRepository.setDomain("TCC_SEGMENT");
+        segmentLogTransactionRepository.setSegmentSize(64 * 1024);
+        segmentLogTransactionRepository.init();
+        return segmentLogTransactionRepository;
+    }
+}